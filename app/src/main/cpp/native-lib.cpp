@@ -4,23 +4,96 @@
 
 #include <jni.h>
 #include <android/bitmap.h>
+#if defined(__ARM_NEON)
 #include <arm_neon.h>
+#endif
 #include <android/log.h>
+#include <algorithm>
+#include <cerrno>
+#include <cmath>
+#include <map>
+#include <memory>
+#include <mutex>
+#include <sched.h>
+#include <sys/mman.h>
+#include <unistd.h>
+#include <tuple>
+#include <vector>
 
 #define LOG_TAG "BitmapProcessing"
 #define LOGD(...) __android_log_print(ANDROID_LOG_DEBUG, LOG_TAG, __VA_ARGS__)
 
-inline void processPixel(uint32_t pixel, int bgRed, int bgGreen, int bgBlue,
-                         float* rChannel, float* gChannel, float* bChannel) {
-    constexpr float scale = 1.0f / (255.0f * 255.0f);
-    const uint32_t alpha = (pixel >> 24) & 0xFF;
-    const uint32_t red = (pixel >> 16) & 0xFF;
-    const uint32_t green = (pixel >> 8) & 0xFF;
-    const uint32_t blue = pixel & 0xFF;
-
-    *rChannel = (red * alpha + bgRed * (255 - alpha)) * scale;
-    *gChannel = (green * alpha + bgGreen * (255 - alpha)) * scale;
-    *bChannel = (blue * alpha + bgBlue * (255 - alpha)) * scale;
+// Per-channel constants so a normalized value is value * scale + offset - alpha * alphaScale
+struct ChannelNorm {
+    float scale;
+    float offset;
+    float alphaScale;
+};
+
+static void loadNormalization(JNIEnv *env, jfloatArray mean, jfloatArray std, jint bgColor, ChannelNorm norm[3]) {
+    float meanValues[3] = {0.0f, 0.0f, 0.0f};
+    float stdValues[3] = {1.0f, 1.0f, 1.0f};
+    if (mean != nullptr && env->GetArrayLength(mean) >= 3) {
+        env->GetFloatArrayRegion(mean, 0, 3, meanValues);
+    }
+    if (std != nullptr && env->GetArrayLength(std) >= 3) {
+        env->GetFloatArrayRegion(std, 0, 3, stdValues);
+    }
+    const int bg[3] = {(bgColor >> 16) & 0xFF, (bgColor >> 8) & 0xFF, bgColor & 0xFF};
+    for (int c = 0; c < 3; c++) {
+        const float invStd = 1.0f / stdValues[c];
+        const float bgNorm = bg[c] / 255.0f;
+        // Bitmap pixels are premultiplied, so blending over the background is value + bg * (1 - alpha)
+        norm[c].scale = invStd / 255.0f;
+        norm[c].offset = (bgNorm - meanValues[c]) * invStd;
+        norm[c].alphaScale = bgNorm * invStd / 255.0f;
+    }
+}
+
+inline void processPixel(const uint8_t *pixel, const ChannelNorm norm[3],
+                         float *rChannel, float *gChannel, float *bChannel) {
+    // Bitmap memory is RGBA in byte order
+    const float alpha = pixel[3];
+    *rChannel = pixel[0] * norm[0].scale + norm[0].offset - alpha * norm[0].alphaScale;
+    *gChannel = pixel[1] * norm[1].scale + norm[1].offset - alpha * norm[1].alphaScale;
+    *bChannel = pixel[2] * norm[2].scale + norm[2].offset - alpha * norm[2].alphaScale;
+}
+
+static void processRow(const uint8_t *row, int width, const ChannelNorm norm[3],
+                       float *rChannel, float *gChannel, float *bChannel) {
+    int x = 0;
+#if defined(__ARM_NEON)
+    float32x4_t scale[3];
+    float32x4_t offset[3];
+    float32x4_t alphaScale[3];
+    for (int c = 0; c < 3; c++) {
+        scale[c] = vdupq_n_f32(norm[c].scale);
+        offset[c] = vdupq_n_f32(norm[c].offset);
+        alphaScale[c] = vdupq_n_f32(norm[c].alphaScale);
+    }
+    float *channels[3] = {rChannel, gChannel, bChannel};
+
+    // 8 pixels per iteration, de-interleaved into one register per channel
+    for (; x + 8 <= width; x += 8) {
+        const uint8x8x4_t rgba = vld4_u8(row + x * 4);
+        const uint16x8_t alpha16 = vmovl_u8(rgba.val[3]);
+        const float32x4_t alphaLow = vcvtq_f32_u32(vmovl_u16(vget_low_u16(alpha16)));
+        const float32x4_t alphaHigh = vcvtq_f32_u32(vmovl_u16(vget_high_u16(alpha16)));
+        for (int c = 0; c < 3; c++) {
+            const uint16x8_t value16 = vmovl_u8(rgba.val[c]);
+            float32x4_t low = vcvtq_f32_u32(vmovl_u16(vget_low_u16(value16)));
+            float32x4_t high = vcvtq_f32_u32(vmovl_u16(vget_high_u16(value16)));
+            low = vmlsq_f32(vmlaq_f32(offset[c], low, scale[c]), alphaLow, alphaScale[c]);
+            high = vmlsq_f32(vmlaq_f32(offset[c], high, scale[c]), alphaHigh, alphaScale[c]);
+            vst1q_f32(channels[c] + x, low);
+            vst1q_f32(channels[c] + x + 4, high);
+        }
+    }
+#endif
+    // Scalar tail (and the whole row on non-NEON ABIs)
+    for (; x < width; x++) {
+        processPixel(row + x * 4, norm, rChannel + x, gChannel + x, bChannel + x);
+    }
 }
 
 extern "C" {
@@ -31,7 +104,8 @@ Java_com_example_arbenchapp_util_ImageConversionUtil_nativeProcessPixels(
         jobject bitmap,
         jobject floatBuffer,
         jint bgColor,
-        jint totalPixels) {
+        jfloatArray mean,
+        jfloatArray std) {
     AndroidBitmapInfo bitmapInfo;
     void *pixels;
     int result;
@@ -45,76 +119,83 @@ Java_com_example_arbenchapp_util_ImageConversionUtil_nativeProcessPixels(
         LOGD("Unsupported bitmap format");
         return;
     }
-    if ((result = AndroidBitmap_lockPixels(env, bitmap, &pixels)) < 0) {
-        LOGD("AndroidBitmap_lockPixels failed: %d", result);
+
+    // Get direct buffer access
+    auto *floatBufferPtr = static_cast<float *>(env->GetDirectBufferAddress(floatBuffer));
+    if (floatBufferPtr == nullptr) {
+        LOGD("nativeProcessPixels requires a direct buffer");
+        return;
+    }
+    if (env->GetDirectBufferCapacity(floatBuffer) < 3L * bitmapInfo.width * bitmapInfo.height) {
+        LOGD("nativeProcessPixels output buffer too small for %ux%u", bitmapInfo.width, bitmapInfo.height);
         return;
     }
 
-    // Extract background color components
-    const int bgRed = (bgColor >> 16) & 0xFF;
-    const int bgGreen = (bgColor >> 8) & 0xFF;
-    const int bgBlue = bgColor & 0xFF;
+    ChannelNorm norm[3];
+    loadNormalization(env, mean, std, bgColor, norm);
 
-    // Get direct buffer access
-    float *floatBufferPtr = (float *) env->GetDirectBufferAddress(floatBuffer);
-    auto *pixelPtr = static_cast<uint32_t *>(pixels);
-
-    // Process all pixels
-    for (int i = 0; i < totalPixels; i++) {
-        const uint32_t pixel = pixelPtr[i];
-        float *rChannel = floatBufferPtr + i;
-        float *gChannel = rChannel + totalPixels;
-        float *bChannel = gChannel + totalPixels;
+    if ((result = AndroidBitmap_lockPixels(env, bitmap, &pixels)) < 0) {
+        LOGD("AndroidBitmap_lockPixels failed: %d", result);
+        return;
+    }
 
-        processPixel(pixel, bgRed, bgGreen, bgBlue, rChannel, gChannel, bChannel);
+    const int width = (int) bitmapInfo.width;
+    const int height = (int) bitmapInfo.height;
+    const int planeSize = width * height;
+    float *rChannel = floatBufferPtr;
+    float *gChannel = rChannel + planeSize;
+    float *bChannel = gChannel + planeSize;
+
+    // Rows may be padded, so walk them by stride rather than assuming width * 4
+    for (int y = 0; y < height; y++) {
+        const auto *row = static_cast<const uint8_t *>(pixels) + (size_t) y * bitmapInfo.stride;
+        const int offset = y * width;
+        processRow(row, width, norm, rChannel + offset, gChannel + offset, bChannel + offset);
     }
 
     AndroidBitmap_unlockPixels(env, bitmap);
 }
 }
 
-extern "C"
-JNIEXPORT void JNICALL
-Java_com_example_arbenchapp_util_ImageConversionUtil_convertToBitmapNative(
-        JNIEnv *env,
-        jclass clazz,
-        jfloatArray data,
-        jint layers,
-        jint channels,
-        jint height,
-        jint width,
-        jobject bitmap,
-        jobjectArray colors) { // Add colors as a 2D array
-    // Lock the Bitmap to get a pointer to its pixel data
-    AndroidBitmapInfo bitmapInfo;
-    void *pixels;
-    AndroidBitmap_getInfo(env, bitmap, &bitmapInfo);
-    AndroidBitmap_lockPixels(env, bitmap, &pixels);
+// Output converters, shared by the float[] entry points and the direct buffer path.
+// data points at one [channels][height][width] item of the output tensor.
+static void argmaxColorToPixels(const float *data, int channels, int height, int width,
+                                void *pixels, uint32_t stride, const int (*colors)[3], int numColors) {
+    const int planeSize = height * width;
+    for (int h = 0; h < height; h++) {
+        auto *row = (uint32_t *) ((uint8_t *) pixels + h * stride);
+        for (int w = 0; w < width; w++) {
+            int chosenChannel = 0;
+            float maxChannel = data[h * width + w];
 
-    // Get the float array data
-    jfloat *dataArray = env->GetFloatArrayElements(data, nullptr);
+            // Find the channel with the maximum value
+            for (int c = 1; c < channels; c++) {
+                float currentChannel = data[c * planeSize + h * width + w];
+                if (currentChannel > maxChannel) {
+                    chosenChannel = c;
+                    maxChannel = currentChannel;
+                }
+            }
 
-    // Get the color array
-    jsize numColors = env->GetArrayLength(colors);
-    int colorArray[numColors][3];
-    for (int i = 0; i < numColors; i++) {
-        jintArray color = (jintArray) env->GetObjectArrayElement(colors, i);
-        jint *colorComponents = env->GetIntArrayElements(color, nullptr);
-        colorArray[i][0] = colorComponents[0]; // Red
-        colorArray[i][1] = colorComponents[1]; // Green
-        colorArray[i][2] = colorComponents[2]; // Blue
-        env->ReleaseIntArrayElements(color, colorComponents, 0);
+            // Get the color for the chosen channel
+            const int *color = colors[chosenChannel % numColors];
+            row[w] = 0xFF000000 | (color[0] << 16) | (color[1] << 8) | color[2];
+        }
     }
+}
 
-    // Iterate over height and width
+static void gradientToPixels(const float *data, int channels, int height, int width,
+                             void *pixels, uint32_t stride) {
+    const int planeSize = height * width;
     for (int h = 0; h < height; h++) {
+        auto *row = (uint32_t *) ((uint8_t *) pixels + h * stride);
         for (int w = 0; w < width; w++) {
             int chosenChannel = 0;
-            float maxChannel = dataArray[0 * height * width + h * width + w];
+            float maxChannel = data[h * width + w];
 
             // Find the channel with the maximum value
             for (int c = 1; c < channels; c++) {
-                float currentChannel = dataArray[c * height * width + h * width + w];
+                float currentChannel = data[c * planeSize + h * width + w];
                 if (currentChannel > maxChannel) {
                     chosenChannel = c;
                     maxChannel = currentChannel;
@@ -122,24 +203,58 @@ Java_com_example_arbenchapp_util_ImageConversionUtil_convertToBitmapNative(
             }
 
             // Get the color for the chosen channel
-            int red = colorArray[chosenChannel][0];
-            int green = colorArray[chosenChannel][1];
-            int blue = colorArray[chosenChannel][2];
+            float ratio = (float) chosenChannel / (float) channels;
+            int red = ratio < 0.5 ? 255 - (int) (2.0 * (0.5 - ratio) * 255.0) : 0;
+            int green = ratio < 0.5 ? (int) (2.0 * ratio * 255.0) : (int) (((-2.0 * ratio) + 2) *
+                                                                           255.0);
+            int blue = ratio < 0.5 ? 0 : (int) (2.0 * (ratio - 0.5) * 255.0);
+            row[w] = 0xFF000000 | (red << 16) | (green << 8) | blue;
+        }
+    }
+}
+
+static void gradientBWToPixels(const float *data, int height, int width, void *pixels, uint32_t stride) {
+    for (int h = 0; h < height; h++) {
+        auto *row = (uint32_t *) ((uint8_t *) pixels + h * stride);
+        for (int w = 0; w < width; w++) {
+            float value = data[h * width + w];
 
-            // Set the pixel in the Bitmap (ARGB format)
-            uint32_t *pixel = (uint32_t *) pixels + h * width + w;
-            *pixel = 0xFF000000 | (red << 16) | (green << 8) | blue;
+            int red = value < 0.5 ? 255 - (int) (2.0 * (0.5 - value) * 255.0) : 0;
+            int green = value < 0.5 ? (int) (2.0 * value * 255.0) : (int) (((-2.0 * value) + 2) *
+                                                                           255.0);
+            int blue = value < 0.5 ? 0 : (int) (2.0 * (value - 0.5) * 255.0);
+            row[w] = 0xFF000000 | (red << 16) | (green << 8) | blue;
         }
     }
+}
 
-    // Unlock the Bitmap and release the float array
-    AndroidBitmap_unlockPixels(env, bitmap);
-    env->ReleaseFloatArrayElements(data, dataArray, 0);
+static void grayscaleToPixels(const float *data, int height, int width, void *pixels, uint32_t stride) {
+    for (int h = 0; h < height; h++) {
+        auto *row = (uint32_t *) ((uint8_t *) pixels + h * stride);
+        for (int w = 0; w < width; w++) {
+            // Convert the float value to grayscale (0-255)
+            int g = (int) (data[h * width + w] * 255.0);
+            row[w] = 0xFF000000 | (g << 16) | (g << 8) | g;
+        }
+    }
 }
 
+static int readColors(JNIEnv *env, jobjectArray colors, int colorArray[][3], int maxColors) {
+    jsize numColors = env->GetArrayLength(colors);
+    if (numColors > maxColors) numColors = maxColors;
+    for (int i = 0; i < numColors; i++) {
+        auto color = (jintArray) env->GetObjectArrayElement(colors, i);
+        env->GetIntArrayRegion(color, 0, 3, colorArray[i]);
+        env->DeleteLocalRef(color);
+    }
+    return numColors;
+}
+
+static const int kMaxColors = 256;
+
 extern "C"
 JNIEXPORT void JNICALL
-Java_com_example_arbenchapp_util_ImageConversionUtil_convertWithGradient(
+Java_com_example_arbenchapp_util_ImageConversionUtil_convertToBitmapNative(
         JNIEnv *env,
         jclass clazz,
         jfloatArray data,
@@ -147,88 +262,67 @@ Java_com_example_arbenchapp_util_ImageConversionUtil_convertWithGradient(
         jint channels,
         jint height,
         jint width,
-        jobject bitmap) { // Add colors as a 2D array
+        jobject bitmap,
+        jobjectArray colors) { // Add colors as a 2D array
     // Lock the Bitmap to get a pointer to its pixel data
     AndroidBitmapInfo bitmapInfo;
     void *pixels;
     AndroidBitmap_getInfo(env, bitmap, &bitmapInfo);
     AndroidBitmap_lockPixels(env, bitmap, &pixels);
 
-    // Get the float array data
-    jfloat *dataArray = env->GetFloatArrayElements(data, nullptr);
-
-    // Iterate over height and width
-    for (int h = 0; h < height; h++) {
-        for (int w = 0; w < width; w++) {
-            int chosenChannel = 0;
-            float maxChannel = dataArray[0 * height * width + h * width + w];
-
-            // Find the channel with the maximum value
-            for (int c = 1; c < channels; c++) {
-                float currentChannel = dataArray[c * height * width + h * width + w];
-                if (currentChannel > maxChannel) {
-                    chosenChannel = c;
-                    maxChannel = currentChannel;
-                }
-            }
-
-            // Get the color for the chosen channel
-            float ratio = (float) chosenChannel / (float) channels;
-            int red = ratio < 0.5 ? 255 - (int) (2.0 * (0.5 - ratio) * 255.0) : 0;
-            int green = ratio < 0.5 ? (int) (2.0 * ratio * 255.0) : (int) (((-2.0 * ratio) + 2) *
-                                                                           255.0);
-            int blue = ratio < 0.5 ? 0 : (int) (2.0 * (ratio - 0.5) * 255.0);
+    int colorArray[kMaxColors][3];
+    int numColors = readColors(env, colors, colorArray, kMaxColors);
 
-            // Set the pixel in the Bitmap (ARGB format)
-            uint32_t *pixel = (uint32_t *) pixels + h * width + w;
-            *pixel = 0xFF000000 | (red << 16) | (green << 8) | blue;
-        }
-    }
+    jfloat *dataArray = env->GetFloatArrayElements(data, nullptr);
+    argmaxColorToPixels(dataArray, channels, height, width, pixels, bitmapInfo.stride, colorArray, numColors);
 
     // Unlock the Bitmap and release the float array
     AndroidBitmap_unlockPixels(env, bitmap);
-    env->ReleaseFloatArrayElements(data, dataArray, 0);
+    env->ReleaseFloatArrayElements(data, dataArray, JNI_ABORT);
 }
 
 extern "C"
 JNIEXPORT void JNICALL
-Java_com_example_arbenchapp_util_ImageConversionUtil_convertWithGradientBW(
+Java_com_example_arbenchapp_util_ImageConversionUtil_convertWithGradient(
         JNIEnv *env,
         jclass clazz,
         jfloatArray data,
+        jint layers,
+        jint channels,
         jint height,
         jint width,
-        jobject bitmap) { // Add colors as a 2D array
-    // Lock the Bitmap to get a pointer to its pixel data
+        jobject bitmap) {
     AndroidBitmapInfo bitmapInfo;
     void *pixels;
     AndroidBitmap_getInfo(env, bitmap, &bitmapInfo);
     AndroidBitmap_lockPixels(env, bitmap, &pixels);
 
-    // Get the float array data
     jfloat *dataArray = env->GetFloatArrayElements(data, nullptr);
+    gradientToPixels(dataArray, channels, height, width, pixels, bitmapInfo.stride);
 
-    // Iterate over height and width
-    for (int h = 0; h < height; h++) {
-        for (int w = 0; w < width; w++) {
-            int index = 0 * height * width + h * width + w;
-            float value = dataArray[index];
+    AndroidBitmap_unlockPixels(env, bitmap);
+    env->ReleaseFloatArrayElements(data, dataArray, JNI_ABORT);
+}
 
-            // Get the color for the chosen channel
-            int red = value < 0.5 ? 255 - (int) (2.0 * (0.5 - value) * 255.0) : 0;
-            int green = value < 0.5 ? (int) (2.0 * value * 255.0) : (int) (((-2.0 * value) + 2) *
-                                                                           255.0);
-            int blue = value < 0.5 ? 0 : (int) (2.0 * (value - 0.5) * 255.0);
+extern "C"
+JNIEXPORT void JNICALL
+Java_com_example_arbenchapp_util_ImageConversionUtil_convertWithGradientBW(
+        JNIEnv *env,
+        jclass clazz,
+        jfloatArray data,
+        jint height,
+        jint width,
+        jobject bitmap) {
+    AndroidBitmapInfo bitmapInfo;
+    void *pixels;
+    AndroidBitmap_getInfo(env, bitmap, &bitmapInfo);
+    AndroidBitmap_lockPixels(env, bitmap, &pixels);
 
-            // Set the pixel in the Bitmap (ARGB format)
-            uint32_t *pixel = (uint32_t *) pixels + h * width + w;
-            *pixel = 0xFF000000 | (red << 16) | (green << 8) | blue;
-        }
-    }
+    jfloat *dataArray = env->GetFloatArrayElements(data, nullptr);
+    gradientBWToPixels(dataArray, height, width, pixels, bitmapInfo.stride);
 
-    // Unlock the Bitmap and release the float array
     AndroidBitmap_unlockPixels(env, bitmap);
-    env->ReleaseFloatArrayElements(data, dataArray, 0);
+    env->ReleaseFloatArrayElements(data, dataArray, JNI_ABORT);
 }
 
 extern "C"
@@ -240,32 +334,565 @@ Java_com_example_arbenchapp_util_ImageConversionUtil_convertToGrayscale(
         jint height,
         jint width,
         jobject bitmap) {
-    // Lock the Bitmap to get a pointer to its pixel data
     AndroidBitmapInfo bitmapInfo;
     void *pixels;
     AndroidBitmap_getInfo(env, bitmap, &bitmapInfo);
     AndroidBitmap_lockPixels(env, bitmap, &pixels);
 
     jfloat *flatData = env->GetFloatArrayElements(data, nullptr);
+    grayscaleToPixels(flatData, height, width, pixels, bitmapInfo.stride);
+
+    env->ReleaseFloatArrayElements(data, flatData, JNI_ABORT);
+
+    // Unlock the Bitmap
+    AndroidBitmap_unlockPixels(env, bitmap);
+}
+
+// Must match the OUTPUT_* constants in ImageConversionUtil
+enum OutputConversion {
+    OUTPUT_ARGMAX_COLOR = 0,
+    OUTPUT_BW = 1,
+    OUTPUT_COLOR_GRADIENT = 2,
+    OUTPUT_BW_GRADIENT = 3
+};
+
+extern "C"
+JNIEXPORT void JNICALL
+Java_com_example_arbenchapp_util_ImageConversionUtil_convertOutputNative(
+        JNIEnv *env,
+        jclass clazz,
+        jobject floatBuffer, // direct buffer, or null when the data is in floatArray
+        jfloatArray floatArray,
+        jint offset,
+        jint channels,
+        jint height,
+        jint width,
+        jint conversion,
+        jobject bitmap,
+        jobjectArray colors) {
+    AndroidBitmapInfo bitmapInfo;
+    void *pixels;
+    int result;
+    if ((result = AndroidBitmap_getInfo(env, bitmap, &bitmapInfo)) < 0) {
+        LOGD("AndroidBitmap_getInfo failed: %d", result);
+        return;
+    }
+
+    // Checked before anything is locked, a mismatched output shape would otherwise be read and written out of bounds
+    if (channels <= 0 || height <= 0 || width <= 0 || offset < 0) {
+        LOGD("convertOutputNative invalid shape %dx%dx%d at %d", channels, height, width, offset);
+        return;
+    }
+    if (bitmapInfo.format != ANDROID_BITMAP_FORMAT_RGBA_8888 ||
+        (int) bitmapInfo.width < width || (int) bitmapInfo.height < height) {
+        LOGD("convertOutputNative needs an RGBA bitmap of at least %dx%d", width, height);
+        return;
+    }
+    const jlong needed = (jlong) offset + (jlong) channels * height * width;
+    const jlong available = floatBuffer != nullptr ? env->GetDirectBufferCapacity(floatBuffer) :
+                            floatArray != nullptr ? env->GetArrayLength(floatArray) : 0;
+    if (available < needed) {
+        LOGD("convertOutputNative has %lld floats, needs %lld", (long long) available, (long long) needed);
+        return;
+    }
+
+    int colorArray[kMaxColors][3];
+    int numColors = 0;
+    if (conversion == OUTPUT_ARGMAX_COLOR) {
+        numColors = readColors(env, colors, colorArray, kMaxColors);
+        if (numColors == 0) {
+            LOGD("convertOutputNative needs at least one color");
+            return;
+        }
+    }
+
+    // No JNI calls are allowed while the array is held critical, so lock the bitmap first
+    if ((result = AndroidBitmap_lockPixels(env, bitmap, &pixels)) < 0) {
+        LOGD("AndroidBitmap_lockPixels failed: %d", result);
+        return;
+    }
+
+    // Direct buffers are read in place, heap buffers are pinned rather than copied where the VM allows it
+    const float *data;
+    void *critical = nullptr;
+    if (floatBuffer != nullptr) {
+        data = static_cast<const float *>(env->GetDirectBufferAddress(floatBuffer));
+    } else {
+        critical = env->GetPrimitiveArrayCritical(floatArray, nullptr);
+        data = static_cast<const float *>(critical);
+    }
+
+    if (data == nullptr) {
+        LOGD("convertOutputNative could not access the output data");
+    } else {
+        data += offset;
+        switch (conversion) {
+            case OUTPUT_ARGMAX_COLOR:
+                argmaxColorToPixels(data, channels, height, width, pixels, bitmapInfo.stride, colorArray, numColors);
+                break;
+            case OUTPUT_COLOR_GRADIENT:
+                gradientToPixels(data, channels, height, width, pixels, bitmapInfo.stride);
+                break;
+            case OUTPUT_BW_GRADIENT:
+                gradientBWToPixels(data, height, width, pixels, bitmapInfo.stride);
+                break;
+            default:
+                grayscaleToPixels(data, height, width, pixels, bitmapInfo.stride);
+                break;
+        }
+    }
+
+    if (critical != nullptr) {
+        env->ReleasePrimitiveArrayCritical(floatArray, critical, JNI_ABORT);
+    }
+    AndroidBitmap_unlockPixels(env, bitmap);
+}
+
+extern "C"
+JNIEXPORT void JNICALL
+Java_com_example_arbenchapp_util_ImageConversionUtil_nativeYuvToTensor(
+        JNIEnv *env,
+        jclass clazz,
+        jobject yBuffer,
+        jobject uBuffer,
+        jobject vBuffer,
+        jint yRowStride,
+        jint uvRowStride,
+        jint uvPixelStride,
+        jint srcWidth,
+        jint srcHeight,
+        jint rotation,
+        jobject floatBuffer,
+        jint dstWidth,
+        jint dstHeight,
+        jfloatArray mean,
+        jfloatArray std,
+        jfloatArray signature) {
+    // Get direct buffer access for the three planes and the output tensor
+    auto *yPlane = static_cast<const uint8_t *>(env->GetDirectBufferAddress(yBuffer));
+    auto *uPlane = static_cast<const uint8_t *>(env->GetDirectBufferAddress(uBuffer));
+    auto *vPlane = static_cast<const uint8_t *>(env->GetDirectBufferAddress(vBuffer));
+    auto *floatBufferPtr = static_cast<float *>(env->GetDirectBufferAddress(floatBuffer));
+    if (yPlane == nullptr || uPlane == nullptr || vPlane == nullptr || floatBufferPtr == nullptr) {
+        LOGD("nativeYuvToTensor requires direct buffers");
+        return;
+    }
+
+    // Dimensions of the upright (rotated) frame
+    const bool swapAxes = rotation == 90 || rotation == 270;
+    const int rotWidth = swapAxes ? srcHeight : srcWidth;
+    const int rotHeight = swapAxes ? srcWidth : srcHeight;
+
+    const int planeSize = dstWidth * dstHeight;
+    if (dstWidth <= 0 || dstHeight <= 0 || env->GetDirectBufferCapacity(floatBuffer) < 3L * planeSize) {
+        LOGD("nativeYuvToTensor output buffer too small for %dx%d", dstWidth, dstHeight);
+        return;
+    }
+    if (srcWidth <= 0 || srcHeight <= 0 ||
+        env->GetDirectBufferCapacity(yBuffer) < (jlong) (srcHeight - 1) * yRowStride + srcWidth) {
+        LOGD("nativeYuvToTensor Y plane too small for %dx%d", srcWidth, srcHeight);
+        return;
+    }
+    // Chroma is subsampled 2x2, and the last row of a plane is often not padded out to the full stride
+    const jlong uvSize = (jlong) ((srcHeight - 1) / 2) * uvRowStride + (jlong) ((srcWidth - 1) / 2) * uvPixelStride + 1;
+    if (env->GetDirectBufferCapacity(uBuffer) < uvSize || env->GetDirectBufferCapacity(vBuffer) < uvSize) {
+        LOGD("nativeYuvToTensor U/V planes too small for %dx%d", srcWidth, srcHeight);
+        return;
+    }
+
+    // Downscaling averages a box of source pixels per output pixel instead of picking one, so
+    // fine detail doesn't alias. Past 4x4 the box is sampled on a 4x4 grid to bound the cost.
+    const int boxWidth = std::max(1, rotWidth / dstWidth);
+    const int boxHeight = std::max(1, rotHeight / dstHeight);
+    const int stepX = std::max(1, boxWidth / 4);
+    const int stepY = std::max(1, boxHeight / 4);
+    float *rChannel = floatBufferPtr;
+    float *gChannel = rChannel + planeSize;
+    float *bChannel = gChannel + planeSize;
+
+    // Camera frames are opaque, so a black background leaves only value * scale + offset
+    ChannelNorm norm[3];
+    loadNormalization(env, mean, std, 0, norm);
+
+    // Optional grid x grid mean luma of the upright frame, gathered from samples this pass reads anyway
+    const int cells = signature == nullptr ? 0 : env->GetArrayLength(signature);
+    const int grid = (int) std::sqrt((float) cells);
+    std::vector<float> lumaSum(grid * grid, 0.0f);
+    std::vector<int> lumaCount(grid * grid, 0);
+
+    for (int y = 0; y < dstHeight; y++) {
+        const int ry0 = y * rotHeight / dstHeight;
+        const int cellRow = grid == 0 ? 0 : y * grid / dstHeight * grid;
+        for (int x = 0; x < dstWidth; x++) {
+            const int rx0 = x * rotWidth / dstWidth;
+
+            // YUV to RGB is linear, so averaging Y, U and V first gives the same result for a fraction of the work
+            float ySum = 0.0f, uSum = 0.0f, vSum = 0.0f;
+            int samples = 0;
+            for (int ry = ry0; ry < ry0 + boxHeight; ry += stepY) {
+                for (int rx = rx0; rx < rx0 + boxWidth; rx += stepX) {
+                    // Map the upright pixel back to sensor coordinates
+                    int sx, sy;
+                    switch (rotation) {
+                        case 90:
+                            sx = ry;
+                            sy = srcHeight - 1 - rx;
+                            break;
+                        case 180:
+                            sx = srcWidth - 1 - rx;
+                            sy = srcHeight - 1 - ry;
+                            break;
+                        case 270:
+                            sx = srcWidth - 1 - ry;
+                            sy = rx;
+                            break;
+                        default:
+                            sx = rx;
+                            sy = ry;
+                            break;
+                    }
+                    ySum += yPlane[sy * yRowStride + sx];
+                    const int uvIndex = (sy >> 1) * uvRowStride + (sx >> 1) * uvPixelStride;
+                    uSum += uPlane[uvIndex];
+                    vSum += vPlane[uvIndex];
+                    samples++;
+                }
+            }
+
+            const float yValue = ySum / samples;
+            if (grid > 0) {
+                const int cell = cellRow + x * grid / dstWidth;
+                lumaSum[cell] += yValue;
+                lumaCount[cell]++;
+            }
+            const float u = uSum / samples - 128.0f;
+            const float v = vSum / samples - 128.0f;
+
+            // Full range BT.601, same as the JPEG encoder used previously
+            float r = yValue + 1.402f * v;
+            float g = yValue - 0.344136f * u - 0.714136f * v;
+            float b = yValue + 1.772f * u;
+            r = r < 0.0f ? 0.0f : (r > 255.0f ? 255.0f : r);
+            g = g < 0.0f ? 0.0f : (g > 255.0f ? 255.0f : g);
+            b = b < 0.0f ? 0.0f : (b > 255.0f ? 255.0f : b);
+
+            const int index = y * dstWidth + x;
+            rChannel[index] = r * norm[0].scale + norm[0].offset;
+            gChannel[index] = g * norm[1].scale + norm[1].offset;
+            bChannel[index] = b * norm[2].scale + norm[2].offset;
+        }
+    }
+
+    if (grid > 0) {
+        for (int i = 0; i < grid * grid; i++) {
+            lumaSum[i] = lumaCount[i] == 0 ? 0.0f : lumaSum[i] / lumaCount[i];
+        }
+        env->SetFloatArrayRegion(signature, 0, grid * grid, lumaSum.data());
+    }
+}
+
+extern "C"
+JNIEXPORT void JNICALL
+Java_com_example_arbenchapp_util_ImageConversionUtil_convertTensorToBitmap(
+        JNIEnv *env,
+        jclass clazz,
+        jobject floatBuffer,
+        jint height,
+        jint width,
+        jobject bitmap,
+        jfloatArray mean,
+        jfloatArray std) {
+    AndroidBitmapInfo bitmapInfo;
+    void *pixels;
+    int result;
+
+    if ((result = AndroidBitmap_getInfo(env, bitmap, &bitmapInfo)) < 0) {
+        LOGD("AndroidBitmap_getInfo failed: %d", result);
+        return;
+    }
+    if (bitmapInfo.format != ANDROID_BITMAP_FORMAT_RGBA_8888 ||
+        (int) bitmapInfo.width < width || (int) bitmapInfo.height < height) {
+        LOGD("convertTensorToBitmap needs an RGBA bitmap of at least %dx%d", width, height);
+        return;
+    }
+
+    auto *floatBufferPtr = static_cast<const float *>(env->GetDirectBufferAddress(floatBuffer));
+    if (floatBufferPtr == nullptr) {
+        LOGD("convertTensorToBitmap requires a direct buffer");
+        return;
+    }
+    const int planeSize = height * width;
+    if (width <= 0 || height <= 0 || env->GetDirectBufferCapacity(floatBuffer) < 3L * planeSize) {
+        LOGD("convertTensorToBitmap input buffer too small for %dx%d", width, height);
+        return;
+    }
+
+    // Undo the input normalization
+    float meanValues[3] = {0.0f, 0.0f, 0.0f};
+    float stdValues[3] = {1.0f, 1.0f, 1.0f};
+    if (mean != nullptr && env->GetArrayLength(mean) >= 3) {
+        env->GetFloatArrayRegion(mean, 0, 3, meanValues);
+    }
+    if (std != nullptr && env->GetArrayLength(std) >= 3) {
+        env->GetFloatArrayRegion(std, 0, 3, stdValues);
+    }
+
+    if ((result = AndroidBitmap_lockPixels(env, bitmap, &pixels)) < 0) {
+        LOGD("AndroidBitmap_lockPixels failed: %d", result);
+        return;
+    }
 
-    // Iterate over height and width
     for (int h = 0; h < height; h++) {
+        auto *row = (uint32_t *) ((uint8_t *) pixels + h * bitmapInfo.stride);
         for (int w = 0; w < width; w++) {
-            // Access the first channel (c = 0)
-            int index = 0 * height * width + h * width + w;
-            float value = flatData[index];
+            const int index = h * width + w;
+            float values[3];
+            for (int c = 0; c < 3; c++) {
+                float value = (floatBufferPtr[c * planeSize + index] * stdValues[c] + meanValues[c]) * 255.0f;
+                values[c] = value < 0.0f ? 0.0f : (value > 255.0f ? 255.0f : value);
+            }
+            // Bitmap memory is RGBA in byte order
+            row[w] = 0xFF000000 | ((uint32_t) values[2] << 16) | ((uint32_t) values[1] << 8) | (uint32_t) values[0];
+        }
+    }
 
-            // Convert the float value to grayscale (0-255)
-            int g = (int) (value * 255.0);
+    AndroidBitmap_unlockPixels(env, bitmap);
+}
+
+// Resampling taps for one axis: destination index d reads count[d] consecutive source
+// indices from start[d], weighted by weights[d * maxTaps + k]
+struct AxisTaps {
+    std::vector<int> start;
+    std::vector<int> count;
+    std::vector<float> weights;
+    int maxTaps = 1;
+};
+
+struct ResizeTables {
+    AxisTaps x;
+    AxisTaps y;
+};
+
+// Must match ResizeMethod on the Java side
+enum ResizeMethod {
+    RESIZE_BILINEAR = 0,
+    RESIZE_AREA = 1
+};
+
+static AxisTaps buildBilinearTaps(int srcSize, int dstSize) {
+    AxisTaps taps;
+    taps.maxTaps = 2;
+    taps.start.resize(dstSize);
+    taps.count.resize(dstSize);
+    taps.weights.assign(dstSize * 2, 0.0f);
+    const float scale = (float) srcSize / (float) dstSize;
+    for (int d = 0; d < dstSize; d++) {
+        // Half-pixel centers, same sampling as Bitmap.createScaledBitmap with filtering
+        float center = (d + 0.5f) * scale - 0.5f;
+        if (center < 0.0f) center = 0.0f;
+        int i0 = (int) center;
+        if (i0 > srcSize - 1) i0 = srcSize - 1;
+        const float frac = center - i0;
+        taps.start[d] = i0;
+        if (i0 + 1 < srcSize && frac > 0.0f) {
+            taps.count[d] = 2;
+            taps.weights[d * 2] = 1.0f - frac;
+            taps.weights[d * 2 + 1] = frac;
+        } else {
+            taps.count[d] = 1;
+            taps.weights[d * 2] = 1.0f;
+        }
+    }
+    return taps;
+}
 
-            // Set the pixel in the Bitmap (ARGB format)
-            uint32_t *pixel = (uint32_t *) ((uint8_t *) pixels + h * bitmapInfo.stride) + w;
-            *pixel = 0xFF000000 | (g << 16) | (g << 8) | g;
+static AxisTaps buildAreaTaps(int srcSize, int dstSize) {
+    // Area averaging only makes sense when shrinking
+    if (srcSize <= dstSize) {
+        return buildBilinearTaps(srcSize, dstSize);
+    }
+    AxisTaps taps;
+    const float scale = (float) srcSize / (float) dstSize;
+    taps.maxTaps = (int) std::ceil(scale) + 1;
+    taps.start.resize(dstSize);
+    taps.count.resize(dstSize);
+    taps.weights.assign(dstSize * taps.maxTaps, 0.0f);
+    for (int d = 0; d < dstSize; d++) {
+        const float begin = d * scale;
+        const float end = (d + 1) * scale;
+        const int first = (int) std::floor(begin);
+        int last = (int) std::ceil(end) - 1;
+        if (last > srcSize - 1) last = srcSize - 1;
+        taps.start[d] = first;
+        taps.count[d] = last - first + 1;
+        for (int i = first; i <= last; i++) {
+            const float overlap = std::fmin(end, (float) (i + 1)) - std::fmax(begin, (float) i);
+            taps.weights[d * taps.maxTaps + (i - first)] = overlap / scale;
         }
     }
+    return taps;
+}
 
-    env->ReleaseFloatArrayElements(data, flatData, 0);
+// Tables only depend on the sizes, so they are built once per (src, dst, method)
+static std::mutex resizeCacheMutex;
+static std::map<std::tuple<int, int, int, int, int>, std::shared_ptr<const ResizeTables>> resizeCache;
+static const size_t kMaxResizeTables = 16;
+
+static std::shared_ptr<const ResizeTables> getResizeTables(int srcWidth, int srcHeight,
+                                                           int dstWidth, int dstHeight, int method) {
+    const auto key = std::make_tuple(srcWidth, srcHeight, dstWidth, dstHeight, method);
+    std::lock_guard<std::mutex> lock(resizeCacheMutex);
+    auto it = resizeCache.find(key);
+    if (it != resizeCache.end()) {
+        return it->second;
+    }
+    auto tables = std::make_shared<ResizeTables>();
+    if (method == RESIZE_AREA) {
+        tables->x = buildAreaTaps(srcWidth, dstWidth);
+        tables->y = buildAreaTaps(srcHeight, dstHeight);
+    } else {
+        tables->x = buildBilinearTaps(srcWidth, dstWidth);
+        tables->y = buildBilinearTaps(srcHeight, dstHeight);
+    }
+    if (resizeCache.size() >= kMaxResizeTables) {
+        resizeCache.clear();
+    }
+    resizeCache[key] = tables;
+    return tables;
+}
+
+extern "C"
+JNIEXPORT void JNICALL
+Java_com_example_arbenchapp_util_ImageConversionUtil_nativeResizeToTensor(
+        JNIEnv *env,
+        jclass clazz,
+        jobject bitmap,
+        jobject floatBuffer,
+        jint dstWidth,
+        jint dstHeight,
+        jint method,
+        jint bgColor,
+        jfloatArray mean,
+        jfloatArray std) {
+    AndroidBitmapInfo bitmapInfo;
+    void *pixels;
+    int result;
+
+    if ((result = AndroidBitmap_getInfo(env, bitmap, &bitmapInfo)) < 0) {
+        LOGD("AndroidBitmap_getInfo failed: %d", result);
+        return;
+    }
+    if (bitmapInfo.format != ANDROID_BITMAP_FORMAT_RGBA_8888) {
+        LOGD("Unsupported bitmap format");
+        return;
+    }
+    auto *floatBufferPtr = static_cast<float *>(env->GetDirectBufferAddress(floatBuffer));
+    if (floatBufferPtr == nullptr) {
+        LOGD("nativeResizeToTensor requires a direct buffer");
+        return;
+    }
+    if (dstWidth <= 0 || dstHeight <= 0 || env->GetDirectBufferCapacity(floatBuffer) < 3L * dstWidth * dstHeight) {
+        LOGD("nativeResizeToTensor output buffer too small for %dx%d", dstWidth, dstHeight);
+        return;
+    }
+
+    ChannelNorm norm[3];
+    loadNormalization(env, mean, std, bgColor, norm);
+    const std::shared_ptr<const ResizeTables> tables = getResizeTables(
+            (int) bitmapInfo.width, (int) bitmapInfo.height, dstWidth, dstHeight, method);
+    const AxisTaps &xTaps = tables->x;
+    const AxisTaps &yTaps = tables->y;
+
+    if ((result = AndroidBitmap_lockPixels(env, bitmap, &pixels)) < 0) {
+        LOGD("AndroidBitmap_lockPixels failed: %d", result);
+        return;
+    }
+
+    const int planeSize = dstWidth * dstHeight;
+    float *rChannel = floatBufferPtr;
+    float *gChannel = rChannel + planeSize;
+    float *bChannel = gChannel + planeSize;
+
+    // Premultiplied RGBA sums for one destination row
+    std::vector<float> acc(dstWidth * 4);
+    for (int y = 0; y < dstHeight; y++) {
+        std::fill(acc.begin(), acc.end(), 0.0f);
+        for (int ky = 0; ky < yTaps.count[y]; ky++) {
+            const float wy = yTaps.weights[y * yTaps.maxTaps + ky];
+            const auto *row = static_cast<const uint8_t *>(pixels) +
+                              (size_t) (yTaps.start[y] + ky) * bitmapInfo.stride;
+            for (int x = 0; x < dstWidth; x++) {
+                const uint8_t *src = row + xTaps.start[x] * 4;
+                const float *wx = &xTaps.weights[x * xTaps.maxTaps];
+                float r = 0.0f, g = 0.0f, b = 0.0f, a = 0.0f;
+                for (int kx = 0; kx < xTaps.count[x]; kx++) {
+                    r += wx[kx] * src[kx * 4];
+                    g += wx[kx] * src[kx * 4 + 1];
+                    b += wx[kx] * src[kx * 4 + 2];
+                    a += wx[kx] * src[kx * 4 + 3];
+                }
+                float *out = &acc[x * 4];
+                out[0] += wy * r;
+                out[1] += wy * g;
+                out[2] += wy * b;
+                out[3] += wy * a;
+            }
+        }
+        // Blend and normalize straight into the NCHW planes
+        const int offset = y * dstWidth;
+        for (int x = 0; x < dstWidth; x++) {
+            const float *value = &acc[x * 4];
+            rChannel[offset + x] = value[0] * norm[0].scale + norm[0].offset - value[3] * norm[0].alphaScale;
+            gChannel[offset + x] = value[1] * norm[1].scale + norm[1].offset - value[3] * norm[1].alphaScale;
+            bChannel[offset + x] = value[2] * norm[2].scale + norm[2].offset - value[3] * norm[2].alphaScale;
+        }
+    }
 
-    // Unlock the Bitmap
     AndroidBitmap_unlockPixels(env, bitmap);
 }
+
+extern "C"
+JNIEXPORT jint JNICALL
+Java_com_example_arbenchapp_util_ThreadUtil_nativePinToCore(
+        JNIEnv *env,
+        jclass clazz,
+        jint core) {
+    cpu_set_t set;
+    CPU_ZERO(&set);
+    CPU_SET(core, &set);
+    // pid 0 means the calling thread
+    if (sched_setaffinity(0, sizeof(set), &set) != 0) {
+        const int error = errno;
+        LOGD("sched_setaffinity(%d) failed: %d", core, error);
+        return -error;
+    }
+    return 0;
+}
+
+extern "C"
+JNIEXPORT jlong JNICALL
+Java_com_example_arbenchapp_util_MappedModel_nativeResidentBytes(
+        JNIEnv *env,
+        jclass clazz,
+        jobject buffer) {
+    auto *address = static_cast<uint8_t *>(env->GetDirectBufferAddress(buffer));
+    const jlong length = env->GetDirectBufferCapacity(buffer);
+    if (address == nullptr || length <= 0) {
+        return -1;
+    }
+    // mincore wants a page aligned start, asset mappings usually start part way into a page
+    const auto pageSize = static_cast<uintptr_t>(sysconf(_SC_PAGESIZE));
+    const auto start = reinterpret_cast<uintptr_t>(address) & ~(pageSize - 1);
+    const size_t span = reinterpret_cast<uintptr_t>(address) + length - start;
+    std::vector<unsigned char> pages((span + pageSize - 1) / pageSize);
+    if (mincore(reinterpret_cast<void *>(start), span, pages.data()) != 0) {
+        const int error = errno;
+        LOGD("mincore failed: %d", error);
+        return -error;
+    }
+    jlong resident = 0;
+    for (unsigned char page : pages) {
+        resident += page & 1;
+    }
+    return std::min<jlong>(resident * static_cast<jlong>(pageSize), length);
+}
@@ -5,8 +5,9 @@ import static java.lang.Math.abs;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
 import android.os.Bundle;
-import android.provider.MediaStore;
 import android.util.Log;
 import android.view.MenuItem;
 import android.view.View;
@@ -14,13 +15,20 @@ import android.view.Menu;
 
 import com.example.arbenchapp.datatypes.postprocessing.ImagePage;
 import com.example.arbenchapp.datatypes.postprocessing.ImagePageAdapter;
+import com.example.arbenchapp.datatypes.preprocessing.BatchResult;
+import com.example.arbenchapp.datatypes.preprocessing.CameraFrame;
+import com.example.arbenchapp.datatypes.preprocessing.ConfigChange;
 import com.example.arbenchapp.datatypes.preprocessing.MTLBoxStruct;
 import com.example.arbenchapp.datatypes.preprocessing.Resolution;
 import com.example.arbenchapp.datatypes.preprocessing.Settings;
+import com.example.arbenchapp.datatypes.preprocessing.ThermalLimits;
+import com.example.arbenchapp.monitor.DatasetBenchmark;
 import com.example.arbenchapp.monitor.HardwareMonitor;
 import com.example.arbenchapp.monitor.MTLBox;
+import com.example.arbenchapp.monitor.ThermalGovernor;
 import com.example.arbenchapp.util.CameraUtil;
 import com.example.arbenchapp.util.ConversionUtil;
+import com.example.arbenchapp.util.ImageConversionUtil;
 import com.google.android.material.navigation.NavigationView;
 
 import androidx.activity.result.ActivityResultLauncher;
@@ -40,6 +48,8 @@ import androidx.viewpager2.widget.ViewPager2;
 
 import com.example.arbenchapp.databinding.ActivityMainBinding;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
@@ -48,19 +58,32 @@ import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
-public class MainActivity extends AppCompatActivity implements CameraUtil.CameraCallback {
+public class MainActivity extends AppCompatActivity implements CameraUtil.CameraCallback, ThermalGovernor.Listener {
     private AppBarConfiguration mAppBarConfiguration;
     private ActivityMainBinding binding;
     private CameraUtil cameraUtil;
     private boolean cameraOn;
     private ImagePageAdapter adapter;
+    private ViewPager2 viewPager2;
     private List<ImagePage> imagePageList;
-    private MTLBox mtlBox;
+    // written by the pager on the main thread, read per frame on the camera executor
+    private volatile int visiblePage = 0;
+    private volatile MTLBox mtlBox;
+    private final Object boxLock = new Object();
+    // only builds boxes, so a long benchmark never holds up a model or provider change
+    private final ExecutorService boxExecutor = Executors.newSingleThreadExecutor();
+    // batched image sets and dataset runs
+    private final ExecutorService workExecutor = Executors.newSingleThreadExecutor();
+    private final AtomicInteger boxGeneration = new AtomicInteger();
+    // set under boxLock in onDestroy, a build that finishes afterwards closes its box instead of publishing it
+    private boolean destroyed = false;
     private Resolution res;
-    private final ExecutorService inferenceExecutor = Executors.newFixedThreadPool(1);
+    private ThermalGovernor thermalGovernor;
     private final Object processingLock = new Object();
-    private volatile boolean isProcessingInference = false;
+    private int framesInFlight = 0;
     private SharedPreferences prefs;
     private SharedPreferences.OnSharedPreferenceChangeListener listener;
 
@@ -71,31 +94,146 @@ public class MainActivity extends AppCompatActivity implements CameraUtil.Camera
                 // photo picker
                 if (uri != null) {
                     Log.d("PhotoPicker", "Selected URI: " + uri);
-                    try {
-                        Bitmap bitmap = MediaStore.Images.Media.getBitmap(this.getContentResolver(), uri);
-
-                        MTLBoxStruct processed = mtlBox.run(bitmap);
-                        Map<String, Bitmap> bms = processed.getBitmaps();
-
-                        ImagePage inputIp = new ImagePage(processed.getInput(), "Input Image");
-                        imagePageList.clear();
-                        adapter.notifyDataSetChanged();
-                        imagePageList.add(inputIp);
-                        adapter.notifyItemChanged(0);
-                        boolean write = true;
-                        for (Map.Entry<String, Bitmap> entry : bms.entrySet()) {
-                            imagePageList.add(new ImagePage(entry.getValue(), createDisplayString(entry.getKey(), processed, write)));
-                            adapter.notifyItemChanged(imagePageList.size() - 1);
-                            write = false;
+                    // decoded and run queued behind a model that is still being built, and off the main thread
+                    boxExecutor.execute(() -> {
+                        MTLBox box = retainBox();
+                        if (box == null) {
+                            Log.e("PhotoPicker", "No model loaded");
+                            return;
                         }
-                    } catch (Exception e) {
-                        throw new RuntimeException(e);
-                    }
+                        MTLBoxStruct processed;
+                        try {
+                            // a full size photo is far larger than the model input, so it is decoded close to it
+                            Settings settings = box.viewSettings();
+                            processed = box.run(decodeSampled(uri, settings.getImgWidth(), settings.getImgHeight()));
+                        } catch (IOException e) {
+                            Log.e("PhotoPicker", "Could not load the image", e);
+                            return;
+                        } finally {
+                            box.release();
+                        }
+                        runOnUiThread(() -> {
+                            Map<String, Bitmap> bms = processed.getBitmaps();
+
+                            ImagePage inputIp = new ImagePage(processed.getInput(), "Input Image");
+                            imagePageList.clear();
+                            adapter.notifyDataSetChanged();
+                            imagePageList.add(inputIp);
+                            adapter.notifyItemChanged(0);
+                            boolean write = true;
+                            for (Map.Entry<String, Bitmap> entry : bms.entrySet()) {
+                                imagePageList.add(new ImagePage(entry.getValue(), createDisplayString(entry.getKey(), processed, write)));
+                                adapter.notifyItemChanged(imagePageList.size() - 1);
+                                write = false;
+                            }
+                        });
+                    });
                 } else {
                     Log.d("PhotoPicker", "No media selected");
                 }
             });
 
+    // Registers a photo picker activity launcher in multi-select mode, for batched image sets.
+    ActivityResultLauncher<PickVisualMediaRequest> pickImageSet =
+            registerForActivityResult(new ActivityResultContracts.PickMultipleVisualMedia(MAX_BATCH_IMAGES), uris -> {
+                if (uris.isEmpty()) {
+                    Log.d("PhotoPicker", "No media selected");
+                    return;
+                }
+                Log.d("PhotoPicker", "Selected " + uris.size() + " images");
+                int[] batchSizes = parseBatchSizes(prefs.getString("batch_sizes", "1,2,4,8"));
+                // decoding a whole set takes a while, so it happens off the main thread as well
+                workExecutor.execute(() -> {
+                    MTLBox box = retainBox();
+                    if (box == null) {
+                        Log.e("PhotoPicker", "No model loaded");
+                        return;
+                    }
+                    try {
+                        List<Bitmap> images = new ArrayList<>();
+                        Settings settings = box.viewSettings();
+                        for (Uri uri : uris) {
+                            // 32 full size photos would not fit in memory, each is decoded close to the model resolution
+                            images.add(decodeSampled(uri, settings.getImgWidth(), settings.getImgHeight()));
+                        }
+                        showBatchResult(box.runBatches(images, batchSizes));
+                    } catch (IOException e) {
+                        Log.e("PhotoPicker", "Could not load the image set", e);
+                    } finally {
+                        box.release();
+                    }
+                });
+            });
+
+    private static final int MAX_BATCH_IMAGES = 32;
+    // onDestroy waits this long for a running build before leaving it to close its own box
+    private static final long EXECUTOR_SHUTDOWN_MS = 2_000;
+
+    private Bitmap decodeSampled(Uri uri, int targetWidth, int targetHeight) throws IOException {
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        try (InputStream in = getContentResolver().openInputStream(uri)) {
+            BitmapFactory.decodeStream(in, null, bounds);
+        }
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = ImageConversionUtil.sampleSize(bounds.outWidth, bounds.outHeight, targetWidth, targetHeight);
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        Bitmap bitmap;
+        try (InputStream in = getContentResolver().openInputStream(uri)) {
+            bitmap = BitmapFactory.decodeStream(in, null, options);
+        }
+        if (bitmap == null) {
+            throw new IOException("Could not decode " + uri);
+        }
+        return bitmap;
+    }
+
+    private static int[] parseBatchSizes(String sizes) {
+        List<Integer> parsed = new ArrayList<>();
+        for (String size : sizes.split(",")) {
+            try {
+                parsed.add(Integer.parseInt(size.trim()));
+            } catch (NumberFormatException e) {
+                System.err.println("ERROR: INVALID BATCH SIZE " + size);
+            }
+        }
+        if (parsed.isEmpty()) {
+            parsed.add(1);
+        }
+        int[] result = new int[parsed.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = parsed.get(i);
+        }
+        return result;
+    }
+
+    private void showBatchResult(BatchResult result) {
+        String[] report = result.getReport(2);
+        String dtfTime = LocalDateTime.now().format(DateTimeFormatter.ofPattern("HH-mm-ss"));
+        String filename = "batch_" + LocalDate.now() + "_" + dtfTime + "_" +
+                prefs.getString("model_file_selection", "UNKNOWN-FILE").split("\\.")[0] + ".txt";
+        ConversionUtil.logArray(this, report, filename);
+        String reportText = String.join("\n", report);
+        List<ImagePage> pages = new ArrayList<>();
+        List<Bitmap> inputs = result.getInputs();
+        List<Map<String, Bitmap>> outputs = result.getOutputs();
+        for (int i = 0; i < inputs.size(); i++) {
+            String caption = "Image " + (i + 1) + " of " + inputs.size();
+            // the throughput table goes with the first image
+            pages.add(new ImagePage(inputs.get(i), i == 0 ? caption + "\n" + reportText : caption));
+            if (i < outputs.size()) {
+                for (Map.Entry<String, Bitmap> entry : outputs.get(i).entrySet()) {
+                    pages.add(new ImagePage(entry.getValue(), caption + ": " + entry.getKey()));
+                }
+            }
+        }
+        runOnUiThread(() -> {
+            imagePageList.clear();
+            imagePageList.addAll(pages);
+            adapter.notifyDataSetChanged();
+        });
+    }
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -107,23 +245,60 @@ public class MainActivity extends AppCompatActivity implements CameraUtil.Camera
         // cameraUtil = new CameraUtil(context, context);
         cameraOn = false;
 
-        ViewPager2 viewPager2 = findViewById(R.id.viewPager);
+        viewPager2 = findViewById(R.id.viewPager);
         imagePageList = new ArrayList<>();
         adapter = new ImagePageAdapter(context, imagePageList);
         viewPager2.setAdapter(adapter);
+        viewPager2.registerOnPageChangeCallback(new ViewPager2.OnPageChangeCallback() {
+            @Override
+            public void onPageSelected(int position) {
+                visiblePage = position;
+            }
+        });
 
         prefs = PreferenceManager.getDefaultSharedPreferences(this);
         res = new Resolution(prefs.getString("resolution", "224,224"));
-        Settings s = new Settings(res.getHeight(), res.getWidth());
-        mtlBox = new MTLBox(s, this, this);
+        // polls all the time, but only limits anything while its setting is on
+        thermalGovernor = new ThermalGovernor(this, this);
+        // models load and warm up in the background, camera frames are dropped until the box is ready
+        rebuildMtlBox();
+        runDatasetIfRequested(getIntent());
 
         listener = new SharedPreferences.OnSharedPreferenceChangeListener() {
             @Override
             public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, @Nullable String s) {
-                System.out.println("ONNX preferences changed");
-                res = new Resolution(sharedPreferences.getString("resolution", "224,224"));
-                Settings new_s = new Settings(res.getHeight(), res.getWidth());
-                mtlBox = new MTLBox(new_s, context, context);
+                ConfigChange change = ConfigChange.classify(s);
+                System.out.println("ONNX preferences changed: " + s + " (" + change + ")");
+                synchronized (boxLock) {
+                    if (mtlBox == null && change != ConfigChange.MODEL) {
+                        // the first box is still being built and will read the new value itself
+                        return;
+                    }
+                    switch (change) {
+                        case DISPLAY:
+                            // read straight from the preferences when the next result is shown
+                            break;
+                        case METRICS:
+                            mtlBox.applyMetricsSettings(sharedPreferences);
+                            break;
+                        case POSTPROCESS:
+                            mtlBox.applyOutputMappings();
+                            break;
+                        case RESOLUTION:
+                            Settings settings = Settings.fromPreferences(sharedPreferences);
+                            mtlBox.applySettings(settings, sharedPreferences);
+                            onResolutionChanged(settings);
+                            break;
+                        case MODEL:
+                            if ("decoder_selection".equals(s) && mtlBox != null &&
+                                    mtlBox.applyDecoderSelection(sharedPreferences)) {
+                                // a subset of the loaded decoders, the box just skips the rest
+                                break;
+                            }
+                            rebuildMtlBox();
+                            break;
+                    }
+                }
             }
         };
         prefs.registerOnSharedPreferenceChangeListener(listener);
@@ -132,7 +307,11 @@ public class MainActivity extends AppCompatActivity implements CameraUtil.Camera
         binding.appBarMain.fab.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View view) {
-                if (!prefs.getBoolean("use_camera", false)) {
+                if (!prefs.getBoolean("use_camera", false) && prefs.getBoolean("batch_mode", false)) {
+                    pickImageSet.launch(new PickVisualMediaRequest.Builder()
+                            .setMediaType(ActivityResultContracts.PickVisualMedia.ImageOnly.INSTANCE)
+                            .build());
+                } else if (!prefs.getBoolean("use_camera", false)) {
                     pickMedia.launch(new PickVisualMediaRequest.Builder()
                             .setMediaType(ActivityResultContracts.PickVisualMedia.ImageOnly.INSTANCE)
                             .build());
@@ -145,12 +324,16 @@ public class MainActivity extends AppCompatActivity implements CameraUtil.Camera
                     }
                     if (cameraOn) {
                         cameraUtil.shutdown();
-                        int success = mtlBox.resetMetricsRecording();
+                        int success = mtlBox == null ? 1 : mtlBox.resetMetricsRecording();
                         if (success == 1) {
                             System.err.println("ERROR: Unable to reset metrics with camera shutdown.");
                         }
                     } else {
                         cameraUtil = new CameraUtil(context, context);
+                        if (mtlBox != null) {
+                            // the governor may have moved the box off the preference size
+                            onResolutionChanged(mtlBox.viewSettings());
+                        }
                         cameraUtil.startCamera();
                     }
                     cameraOn = !cameraOn;
@@ -194,45 +377,45 @@ public class MainActivity extends AppCompatActivity implements CameraUtil.Camera
     }
 
     @Override
-    public void onFrameCaptured(Bitmap bitmap) {
-        runOnUiThread(() -> {
-            ImagePage ip = new ImagePage(bitmap, "Input Image");
-            if (imagePageList.isEmpty()) {
-                imagePageList.add(ip);
-                adapter.notifyItemChanged(0);
-            } else {
-                imagePageList.set(0, ip);
-                adapter.notifyItemChanged(0);
-            }
-        });
+    public void onFrameCaptured(CameraFrame frame) {
+        // the input bitmap is only built while the input page is actually visible
+        // an empty pager also reports page 0
+        if (visiblePage == 0) {
+            Bitmap bitmap = frame.getBitmap();
+            runOnUiThread(() -> {
+                ImagePage ip = new ImagePage(bitmap, "Input Image");
+                if (imagePageList.isEmpty()) {
+                    imagePageList.add(ip);
+                    adapter.notifyItemChanged(0);
+                } else {
+                    imagePageList.set(0, ip);
+                    adapter.notifyItemChanged(0);
+                }
+            });
+        }
 
         if (prefs.getBoolean("run_inference", true)) {
+            // the box can be swapped by a background rebuild at any point
+            MTLBox box = mtlBox;
+            if (box == null) {
+                frame.release();
+                return;
+            }
             synchronized (processingLock) {
-                if (isProcessingInference) {
+                if (framesInFlight >= box.getMaxFramesInFlight()) {
+                    frame.release();
                     return;
                 }
-                isProcessingInference = true;
+                framesInFlight++;
+            }
+            // the box hands results back through updateDisplay and frees the slot itself
+            if (!box.submit(frame)) {
+                unlock();
             }
-            inferenceExecutor.execute(() -> {
-                if (!prefs.getBoolean("split_inference", false)) {
-                    updateDisplay(bitmap);
-                    synchronized (processingLock) {
-                        isProcessingInference = false;
-                    }
-                } else if (!prefs.getBoolean("split_pipeline", false)) {
-                    // run sequentially
-                    MTLBoxStruct processed = mtlBox.run(bitmap); // will run split inference
-                    updateDisplay(processed);
-                    synchronized (processingLock) {
-                        isProcessingInference = false;
-                    }
-                } else {
-                    mtlBox.run(bitmap);
-                }
-            });
         } else {
             runOnUiThread(() -> {
-                ImagePage ip = new ImagePage(bitmap, "Test Second Image");
+                ImagePage ip = new ImagePage(frame.getBitmap(), "Test Second Image");
+                frame.release();
                 if (imagePageList.size() < 2) {
                     imagePageList.add(ip);
                     adapter.notifyItemChanged(imagePageList.size() - 1);
@@ -250,67 +433,152 @@ public class MainActivity extends AppCompatActivity implements CameraUtil.Camera
         if (cameraUtil != null) {
             cameraUtil.shutdown();
         }
-        if (inferenceExecutor != null && !inferenceExecutor.isShutdown()) {
-            inferenceExecutor.shutdown();
-        }
         if (prefs != null && listener != null) {
             prefs.unregisterOnSharedPreferenceChangeListener(listener);
         }
+        if (thermalGovernor != null) {
+            thermalGovernor.close();
+        }
+        MTLBox box;
+        synchronized (boxLock) {
+            destroyed = true;
+            box = mtlBox;
+            mtlBox = null;
+        }
+        // interrupts a running batch or dataset run
+        workExecutor.shutdownNow();
+        // queued rebuilds are dropped, a build already running sees destroyed and closes its own box
+        boxExecutor.shutdownNow();
+        try {
+            if (!boxExecutor.awaitTermination(EXECUTOR_SHUTDOWN_MS, TimeUnit.MILLISECONDS)) {
+                Log.w("MainActivity", "A model build is still running, it closes its box when done");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (box != null) {
+            box.close();
+        }
     }
 
-    public void unlock() {
-        synchronized (processingLock) {
-            isProcessingInference = false;
+    private void runDatasetIfRequested(Intent intent) {
+        // e.g. adb shell am start -n com.example.arbenchapp/.MainActivity --es dataset datasets/val --ei dataset_limit 1000
+        String dataset = intent == null ? null : intent.getStringExtra("dataset");
+        if (dataset == null) {
+            return;
+        }
+        int limit = intent.getIntExtra("dataset_limit", 0);
+        // queued behind the box that is being built, then handed over so later rebuilds don't wait for the run
+        // results go to Documents/BeAR_Logs
+        boxExecutor.execute(() -> {
+            synchronized (boxLock) {
+                if (destroyed) {
+                    return;
+                }
+                workExecutor.execute(() -> {
+                    MTLBox box = retainBox();
+                    if (box == null) {
+                        Log.e("Dataset", "No model loaded");
+                        return;
+                    }
+                    try {
+                        new DatasetBenchmark(this, box).run(dataset, limit);
+                    } finally {
+                        box.release();
+                    }
+                });
+            }
+        });
+    }
+
+    private MTLBox retainBox() {
+        // a rebuild or the thermal governor can replace the box mid-run, the old one stays open until released
+        synchronized (boxLock) {
+            MTLBox box = mtlBox;
+            return box != null && box.retain() ? box : null;
         }
     }
 
-    public void updateDisplay(MTLBoxStruct processed) {
-        try {
-            Map<String, Bitmap> bms = processed.getBitmaps();
-            final List<ImagePage> newPages = new ArrayList<>();
-            boolean write = true;
-            for (Map.Entry<String, Bitmap> entry : bms.entrySet()) {
-                newPages.add(new ImagePage(entry.getValue(), createDisplayString(entry.getKey(), processed, write)));
-                write = false;
+    private void rebuildMtlBox() {
+        // the old box keeps serving frames until the new one is ready
+        int generation = boxGeneration.incrementAndGet();
+        synchronized (boxLock) {
+            if (destroyed) {
+                // the executor is shut down, nothing would close a box built now
+                return;
             }
-            runOnUiThread(() -> {
-                System.out.println("ONNX adding pages");
-                for (int i = 0; i < newPages.size(); i++) {
-                    if (imagePageList.size() < i + 2) {
-                        imagePageList.add(newPages.get(i));
+            boxExecutor.execute(() -> {
+                if (generation != boxGeneration.get()) {
+                    // a newer change is already queued and will rebuild anyway
+                    return;
+                }
+                MTLBox newBox;
+                try {
+                    newBox = new MTLBox(Settings.fromPreferences(prefs), this, this);
+                } catch (RuntimeException e) {
+                    Log.e("MainActivity", "Failed to build MTLBox, keeping the previous one", e);
+                    return;
+                }
+                MTLBox oldBox;
+                synchronized (boxLock) {
+                    if (destroyed) {
+                        // finished after onDestroy, nobody will use or close it
+                        oldBox = newBox;
                     } else {
-                        if (processed.hasOldMetrics()) {
-                            System.out.println("ONNX no new metrics");
-                            ImagePage hasPrevMetrics = new ImagePage(newPages.get(i).getImage(), imagePageList.get(i + 1).getCaption());
-                            imagePageList.set(i + 1, hasPrevMetrics);
-                        } else {
-                            imagePageList.set(i + 1, newPages.get(i));
+                        // lighter changes made during the build only went to the old box
+                        newBox.applySettings(Settings.fromPreferences(prefs), prefs);
+                        newBox.applyMetricsSettings(prefs);
+                        newBox.applyOutputMappings();
+                        newBox.applyDecoderSelection(prefs);
+                        if (thermalGovernor != null) {
+                            newBox.applyThermalLimits(thermalGovernor.getLimits());
                         }
+                        oldBox = mtlBox;
+                        mtlBox = newBox;
+                        onResolutionChanged(newBox.viewSettings());
                     }
                 }
-                adapter.notifyDataSetChanged();
-            });
-        } catch (Exception e) {
-            Log.e("MainActivity", "ONNX Error processing frame", e);
-            runOnUiThread(() -> {
-                Bitmap disp = Bitmap.createBitmap(1, 1, Bitmap.Config.ARGB_8888);
-                if (processed != null) {
-                    disp = processed.getInput();
-                }
-                ImagePage ip = new ImagePage(disp, "Error processing image: " + e.getMessage());
-                if (imagePageList.size() < 2) {
-                    imagePageList.add(ip);
-                } else {
-                    imagePageList.set(1, ip);
+                if (oldBox != null) {
+                    // deferred while a batch or dataset run still holds it
+                    oldBox.close();
                 }
-                adapter.notifyDataSetChanged();
             });
         }
     }
 
-    public void updateDisplay(Bitmap bitmap) {
+    public void onResolutionChanged(Settings settings) {
+        // frames are converted straight to the model input size, so the camera follows the box
+        res = new Resolution(settings.getImgWidth(), settings.getImgHeight());
+        CameraUtil camera = cameraUtil;
+        if (camera != null) {
+            camera.setTarget(res, settings);
+        }
+    }
+
+    @Override
+    public void onThermalLimitsChanged(ThermalLimits limits, boolean providerChanged) {
+        synchronized (boxLock) {
+            if (mtlBox != null) {
+                mtlBox.applyThermalLimits(limits);
+            }
+        }
+        if (providerChanged) {
+            // sessions are built for one provider, the old box keeps running until the new one is ready
+            rebuildMtlBox();
+        }
+    }
+
+    public void unlock() {
+        synchronized (processingLock) {
+            // one frame left the pipeline, finished or dropped
+            if (framesInFlight > 0) {
+                framesInFlight--;
+            }
+        }
+    }
+
+    public void updateDisplay(MTLBoxStruct processed) {
         try {
-            MTLBoxStruct processed = mtlBox.run(bitmap);
             Map<String, Bitmap> bms = processed.getBitmaps();
             final List<ImagePage> newPages = new ArrayList<>();
             boolean write = true;
@@ -338,7 +606,11 @@ public class MainActivity extends AppCompatActivity implements CameraUtil.Camera
         } catch (Exception e) {
             Log.e("MainActivity", "ONNX Error processing frame", e);
             runOnUiThread(() -> {
-                ImagePage ip = new ImagePage(bitmap, "Error processing image: " + e.getMessage());
+                Bitmap disp = Bitmap.createBitmap(1, 1, Bitmap.Config.ARGB_8888);
+                if (processed != null && processed.getInput() != null) {
+                    disp = processed.getInput();
+                }
+                ImagePage ip = new ImagePage(disp, "Error processing image: " + e.getMessage());
                 if (imagePageList.size() < 2) {
                     imagePageList.add(ip);
                 } else {
@@ -406,6 +678,91 @@ public class MainActivity extends AppCompatActivity implements CameraUtil.Camera
                 "Final Temperature: " + ConversionUtil.round(metrics.finalTemperatureCelsius, decimalPoints) + " degrees Celsius" : "";
         String averageCurrentDisplay = prefs.getBoolean("current_avg", true) ?
                 "Average Current: " + ConversionUtil.round(metrics.averageCurrentDrainMicroAmps, decimalPoints) + " microA" : "";
+        String tensorAllocationsDisplay = prefs.getBoolean("tensor_allocations", false) ?
+                "Input Tensor Allocations: " + metrics.tensorAllocations + " (" + metrics.tensorPoolInUse + " in use)" +
+                        "\nOutput Tensor Allocations: " + metrics.outputTensorAllocations + " (" +
+                        ConversionUtil.byteString(metrics.outputTensorBytes, decimalPoints) + " pinned)" : "";
+        String nativeMemoryDisplay = prefs.getBoolean("native_memory", false) ?
+                "Native Heap: " + ConversionUtil.byteString(metrics.nativeHeapBytes, decimalPoints) +
+                        " (" + (metrics.nativeHeapDeltaBytes < 0 ? "-" : "+") +
+                        ConversionUtil.byteString(abs(metrics.nativeHeapDeltaBytes), decimalPoints) + "), " +
+                        metrics.openOrtValues + " open ORT values" : "";
+        String warmUpDisplay = prefs.getBoolean("warmup_stats", false) ?
+                "Warm-up: " + metrics.warmUpRuns + " runs in " + ConversionUtil.round(metrics.warmUpMs, decimalPoints) +
+                        " ms (first inference " + ConversionUtil.round(metrics.firstInferenceMs, decimalPoints) + " ms)" : "";
+        StringBuilder providerDisplay = new StringBuilder();
+        if (prefs.getBoolean("provider_info", false) && metrics.executionProviders != null) {
+            providerDisplay.append("Execution Providers:");
+            for (Map.Entry<String, String> entry : metrics.executionProviders.entrySet()) {
+                providerDisplay.append("\n  ").append(entry.getKey()).append(": ").append(entry.getValue());
+            }
+        }
+        StringBuilder sessionCreationDisplay = new StringBuilder();
+        if (prefs.getBoolean("session_startup", false) && metrics.sessionCreation != null) {
+            sessionCreationDisplay.append("Session Startup:");
+            for (Map.Entry<String, String> entry : metrics.sessionCreation.entrySet()) {
+                sessionCreationDisplay.append("\n  ").append(entry.getKey()).append(": ").append(entry.getValue());
+            }
+        }
+        StringBuilder modelMappingDisplay = new StringBuilder();
+        if (prefs.getBoolean("model_mapping", false) && metrics.mappedModelBytes != null) {
+            modelMappingDisplay.append("Mapped Models (resident / mapped):");
+            for (Map.Entry<String, Long> entry : metrics.mappedModelBytes.entrySet()) {
+                Long resident = metrics.residentModelBytes.get(entry.getKey());
+                modelMappingDisplay.append("\n  ").append(entry.getKey()).append(": ")
+                        .append(ConversionUtil.byteString(resident == null ? 0 : Math.max(0, resident), decimalPoints)).append(" / ")
+                        .append(ConversionUtil.byteString(entry.getValue(), decimalPoints));
+            }
+        }
+        StringBuilder decoderTimingDisplay = new StringBuilder();
+        if (split && prefs.getBoolean("decoder_timing", false) && metrics.decoderRunMs != null) {
+            decoderTimingDisplay.append("Decoder Wait / Run (effective FPS):");
+            for (Map.Entry<String, Double> entry : metrics.decoderRunMs.entrySet()) {
+                Double wait = metrics.decoderQueueWaitMs.get(entry.getKey());
+                Double headFps = metrics.decoderFps == null ? null : metrics.decoderFps.get(entry.getKey());
+                decoderTimingDisplay.append("\n  ").append(entry.getKey()).append(": ")
+                        .append(ConversionUtil.round(wait == null ? 0 : wait, decimalPoints)).append(" / ")
+                        .append(ConversionUtil.round(entry.getValue(), decimalPoints)).append(" ms (")
+                        .append(ConversionUtil.round(headFps == null ? 0 : headFps, decimalPoints)).append(" FPS)");
+            }
+            if (metrics.decoderSavedMs > 0) {
+                decoderTimingDisplay.append("\n  Skipped runs saved: ")
+                        .append(ConversionUtil.round(metrics.decoderSavedMs, decimalPoints)).append(" ms");
+            }
+        }
+        StringBuilder encoderGatingDisplay = new StringBuilder();
+        if (split && prefs.getBoolean("encoder_gating_stats", false)) {
+            encoderGatingDisplay.append("Encoder Skipped: ").append(metrics.encoderSkipped)
+                    .append(" (").append(ConversionUtil.round(metrics.encoderSkipRate * 100, decimalPoints)).append("%)")
+                    .append("\n  Saved: ").append(ConversionUtil.round(metrics.encoderSavedMs, decimalPoints)).append(" ms, ~")
+                    .append(ConversionUtil.round(metrics.encoderEnergySavedMicroWattHours, decimalPoints)).append(" µWh");
+        }
+        StringBuilder governorDisplay = new StringBuilder();
+        if (prefs.getBoolean("governor_info", false) && metrics.inputResolution != null) {
+            governorDisplay.append("Input Resolution: ").append(metrics.inputResolution);
+            if (metrics.governorTargetMs > 0) {
+                governorDisplay.append("\n  Governor p90: ").append(ConversionUtil.round(metrics.governorP90Ms, decimalPoints))
+                        .append(" / ").append(ConversionUtil.round(metrics.governorTargetMs, decimalPoints)).append(" ms, ")
+                        .append(metrics.governorSwitches).append(" switches");
+            }
+        }
+        StringBuilder thermalDisplay = new StringBuilder();
+        if (prefs.getBoolean("thermal_info", false) && metrics.thermalLimits != null) {
+            thermalDisplay.append("Thermal Limits: ").append(metrics.thermalLimits);
+        }
+        StringBuilder stageTimingDisplay = new StringBuilder();
+        if (prefs.getBoolean("stage_timing", false) && metrics.stageRunMs != null) {
+            stageTimingDisplay.append("Stage Wait / Run:");
+            for (Map.Entry<String, Double> entry : metrics.stageRunMs.entrySet()) {
+                Double wait = metrics.stageWaitMs.get(entry.getKey());
+                stageTimingDisplay.append("\n  ").append(entry.getKey()).append(": ")
+                        .append(ConversionUtil.round(wait == null ? 0 : wait, decimalPoints)).append(" / ")
+                        .append(ConversionUtil.round(entry.getValue(), decimalPoints)).append(" ms");
+            }
+            if (metrics.staleFramesSkipped > 0) {
+                stageTimingDisplay.append("\n  Stale frames skipped: ").append(metrics.staleFramesSkipped);
+            }
+        }
         return new String[]{
                 timeDisplay,
                 timeDisplayProcessing,
@@ -418,7 +775,18 @@ public class MainActivity extends AppCompatActivity implements CameraUtil.Camera
                 powerConsumedDisplay,
                 temperatureChangeDisplay,
                 finalTemperatureDisplay,
-                averageCurrentDisplay
+                averageCurrentDisplay,
+                tensorAllocationsDisplay,
+                nativeMemoryDisplay,
+                warmUpDisplay,
+                providerDisplay.toString(),
+                sessionCreationDisplay.toString(),
+                modelMappingDisplay.toString(),
+                decoderTimingDisplay.toString(),
+                encoderGatingDisplay.toString(),
+                governorDisplay.toString(),
+                thermalDisplay.toString(),
+                stageTimingDisplay.toString()
         };
     }
 }
\ No newline at end of file
@@ -51,7 +51,8 @@ public class StringMappingPreference extends DialogPreference {
                 "COLOR",
                 "ARGMAX COLOR",
                 "B&W GRADIENT",
-                "COLOR GRADIENT"
+                "COLOR GRADIENT",
+                "OFF"
         };
 
         // Load saved mappings
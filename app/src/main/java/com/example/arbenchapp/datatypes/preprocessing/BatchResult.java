@@ -0,0 +1,88 @@
+package com.example.arbenchapp.datatypes.preprocessing;
+
+import android.graphics.Bitmap;
+
+import com.example.arbenchapp.util.ConversionUtil;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class BatchResult {
+    private final List<Bitmap> inputs;
+    private final String providers;
+    // keyed by batch size, in the order the sizes were run
+    private final Map<Integer, Double> imagesPerSecond = new LinkedHashMap<>();
+    private final Map<Integer, Double> inferenceImagesPerSecond = new LinkedHashMap<>();
+    private final Map<Integer, Double> msPerBatch = new LinkedHashMap<>();
+    private final Map<Integer, String> failures = new LinkedHashMap<>();
+    // one map of outputs per input image
+    private final List<Map<String, Bitmap>> outputs = new ArrayList<>();
+    private String error;
+
+    public BatchResult(List<Bitmap> inputs, String providers) {
+        this.inputs = inputs;
+        this.providers = providers;
+    }
+
+    public void addTiming(int batchSize, int images, double totalMs, double inferenceMs) {
+        imagesPerSecond.put(batchSize, images / (totalMs / 1_000));
+        inferenceImagesPerSecond.put(batchSize, images / (inferenceMs / 1_000));
+        msPerBatch.put(batchSize, totalMs / Math.max(1, images / batchSize));
+    }
+
+    public void addFailure(int batchSize, String reason) { failures.put(batchSize, reason); }
+
+    public void addOutputs(List<Map<String, Bitmap>> batchOutputs) { outputs.addAll(batchOutputs); }
+
+    public void setError(String error) { this.error = error; }
+
+    public String getError() { return error; }
+
+    public List<Bitmap> getInputs() { return inputs; }
+
+    public List<Map<String, Bitmap>> getOutputs() { return outputs; }
+
+    public Map<Integer, Double> getImagesPerSecond() { return imagesPerSecond; }
+
+    public Map<Integer, Double> getInferenceImagesPerSecond() { return inferenceImagesPerSecond; }
+
+    public Map<Integer, Double> getMsPerBatch() { return msPerBatch; }
+
+    public Map<Integer, String> getFailures() { return failures; }
+
+    public int getBestBatchSize() {
+        int best = 0;
+        double bestRate = 0;
+        for (Map.Entry<Integer, Double> entry : imagesPerSecond.entrySet()) {
+            if (entry.getValue() > bestRate) {
+                best = entry.getKey();
+                bestRate = entry.getValue();
+            }
+        }
+        return best;
+    }
+
+    public String[] getReport(int decimalPoints) {
+        List<String> lines = new ArrayList<>();
+        if (error != null) {
+            lines.add("Batch Error: " + error);
+        }
+        lines.add("Batched Run: " + inputs.size() + " images, " + providers);
+        lines.add("Batch Size: images/s (inference only), ms per batch");
+        for (Map.Entry<Integer, Double> entry : imagesPerSecond.entrySet()) {
+            int batchSize = entry.getKey();
+            lines.add("  " + batchSize + ": " + ConversionUtil.round(entry.getValue(), decimalPoints) + " (" +
+                    ConversionUtil.round(inferenceImagesPerSecond.get(batchSize), decimalPoints) + "), " +
+                    ConversionUtil.round(msPerBatch.get(batchSize), decimalPoints) + " ms");
+        }
+        for (Map.Entry<Integer, String> entry : failures.entrySet()) {
+            lines.add("  " + entry.getKey() + ": failed, " + entry.getValue());
+        }
+        if (getBestBatchSize() > 0) {
+            lines.add("Best Batch Size: " + getBestBatchSize());
+        }
+        return lines.toArray(new String[0]);
+    }
+}
@@ -0,0 +1,71 @@
+package com.example.arbenchapp.datatypes.preprocessing;
+
+import android.graphics.Bitmap;
+
+import com.example.arbenchapp.util.ImageConversionUtil;
+import com.example.arbenchapp.util.TensorPool;
+
+import java.nio.FloatBuffer;
+
+public class CameraFrame {
+    private final TensorPool.PooledTensor tensor;
+    private final Settings settings;
+    private final int width;
+    private final int height;
+    private Bitmap bitmap;
+    private float[] lumaSignature;
+    private boolean released;
+
+    public CameraFrame(Bitmap bitmap) {
+        this.bitmap = bitmap;
+        this.tensor = null;
+        this.settings = null;
+        this.width = bitmap.getWidth();
+        this.height = bitmap.getHeight();
+        this.released = false;
+    }
+
+    public CameraFrame(TensorPool.PooledTensor tensor, int width, int height, Settings settings) {
+        // tensor holds a [1, 3, height, width] RGB image already normalized with settings' mean/std
+        this.bitmap = null;
+        this.tensor = tensor;
+        this.settings = settings;
+        this.width = width;
+        this.height = height;
+        this.released = false;
+    }
+
+    public boolean hasTensor() { return tensor != null; }
+
+    public TensorPool.PooledTensor getTensor() { return tensor; }
+
+    public FloatBuffer getTensorBuffer() { return tensor == null ? null : tensor.getBuffer(); }
+
+    public Settings getSettings() { return settings; }
+
+    public int getWidth() { return width; }
+
+    public int getHeight() { return height; }
+
+    public float[] getLumaSignature() { return lumaSignature; }
+
+    public void setLumaSignature(float[] lumaSignature) { this.lumaSignature = lumaSignature; }
+
+    public synchronized Bitmap getBitmap() {
+        // only built when something actually needs to display the input
+        if (bitmap == null && tensor != null && !released) {
+            bitmap = ImageConversionUtil.tensorToBitmap(tensor.getBuffer(), width, height, settings);
+        }
+        return bitmap;
+    }
+
+    public synchronized Bitmap getCachedBitmap() { return bitmap; }
+
+    public synchronized void release() {
+        // hands the tensor back to the camera's pool, the buffer may be refilled right after
+        if (tensor != null && !released) {
+            released = true;
+            tensor.release();
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.example.arbenchapp.datatypes.preprocessing;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public enum ConfigChange {
+    // ordered from cheapest to most expensive to apply
+    DISPLAY,
+    METRICS,
+    POSTPROCESS,
+    RESOLUTION,
+    MODEL;
+
+    private static final Map<String, ConfigChange> KEYS = new HashMap<>();
+
+    static {
+        // read live by MainActivity or the thermal governor, or only when the camera starts
+        for (String key : new String[]{
+                "runtime_model", "runtime_total", "fps", "cpu_usage", "cpu_usage_delta", "cpu_thread_time",
+                "memory_usage", "battery_usage", "power_consumed", "temp_change", "temp_final", "current_avg",
+                "tensor_allocations", "native_memory", "decoder_timing", "encoder_gating_stats", "stage_timing", "warmup_stats", "provider_info",
+                "session_startup", "model_mapping", "run_inference", "direct_tensor", "batch_mode", "batch_sizes",
+                "governor_info", "thermal_info", "thermal_governor", "thermal_limit_c", "thermal_zone_limit_c",
+                "thermal_fps_cap", "thermal_cap_fps", "thermal_decimate_decoders", "thermal_drop_resolution",
+                "thermal_switch_provider", "thermal_provider"}) {
+            KEYS.put(key, DISPLAY);
+        }
+        // the cache budgets only affect idle sessions and files on disk, so they are applied like metrics settings
+        for (String key : new String[]{
+                "update_freq_frames", "update_freq_time", "frame_limiter", "time_limiter", "use_camera",
+                "session_cache_mb", "optimized_cache_mb", "resolution_governor", "governor_target_ms", "governor_sizes"}) {
+            KEYS.put(key, METRICS);
+        }
+        KEYS.put("output_option_mappings", POSTPROCESS);
+        KEYS.put("mapped_outputs_only", POSTPROCESS);
+        KEYS.put("decoder_rates", POSTPROCESS);
+        KEYS.put("encoder_gating", POSTPROCESS);
+        KEYS.put("encoder_gating_threshold", POSTPROCESS);
+        for (String key : new String[]{"resolution", "normalize_input", "resize_method"}) {
+            KEYS.put(key, RESOLUTION);
+        }
+    }
+
+    public static ConfigChange classify(String key) {
+        // unknown keys (and a cleared preference file) get the safe answer
+        if (key == null) {
+            return MODEL;
+        }
+        ConfigChange change = KEYS.get(key);
+        return change == null ? MODEL : change;
+    }
+}
@@ -0,0 +1,17 @@
+package com.example.arbenchapp.datatypes.preprocessing;
+
+import ai.onnxruntime.OrtProvider;
+
+public enum ExecutionProvider {
+    NNAPI(OrtProvider.NNAPI),
+    XNNPACK(OrtProvider.XNNPACK),
+    CPU(OrtProvider.CPU);
+
+    private final OrtProvider ortProvider;
+
+    ExecutionProvider(OrtProvider ortProvider) {
+        this.ortProvider = ortProvider;
+    }
+
+    public OrtProvider getOrtProvider() { return ortProvider; }
+}
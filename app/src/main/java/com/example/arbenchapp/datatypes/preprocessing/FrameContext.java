@@ -0,0 +1,194 @@
+package com.example.arbenchapp.datatypes.preprocessing;
+
+import android.graphics.Bitmap;
+
+import com.example.arbenchapp.util.ImageConversionUtil;
+import com.example.arbenchapp.util.TensorPool;
+
+import org.pytorch.Tensor;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ai.onnxruntime.OnnxTensor;
+import ai.onnxruntime.OrtSession;
+
+public class FrameContext {
+    private static final AtomicLong NEXT_ID = new AtomicLong();
+    // native values owned by frames that have not been closed yet, across every pipeline
+    private static final AtomicLong OPEN_VALUES = new AtomicLong();
+
+    // everything one frame needs on its way through the pipeline, only one stage touches it at a time
+    private final long frameId;
+    private CameraFrame frame;
+    private final boolean synchronous;
+    private final long createdNs;
+    private final Map<String, Long> stageStartNs = new LinkedHashMap<>();
+    private final Map<String, Long> stageEndNs = new LinkedHashMap<>();
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    private Bitmap inputBitmap;
+    private TensorPool.PooledTensor inputTensor;
+    private Tensor ptInput;
+    private Tensor ptOutput;
+    private OrtSession.Result modelResult;
+    // set instead of modelResult when the encoder was skipped and an earlier feature map is reused
+    private OnnxTensor encoderFeatures;
+    private final List<OrtSession.Result> decoderResults = new ArrayList<>();
+    // frame-scoped arena, everything in here is closed with the frame
+    private final List<AutoCloseable> owned = new ArrayList<>();
+    // pooled buffers ORT wrote outputs into, by the tensor the results hand back
+    private final Map<OnnxTensor, TensorPool.PooledTensor> pinned = new IdentityHashMap<>();
+    // decoder outputs skipped this frame, postprocess shows their last result instead
+    private final Set<String> reusedOutputs = new HashSet<>();
+    private Map<String, Bitmap> output;
+    private MTLBoxStruct result;
+
+    public FrameContext(CameraFrame frame, boolean synchronous) {
+        this.frameId = NEXT_ID.getAndIncrement();
+        this.frame = frame;
+        this.synchronous = synchronous;
+        this.createdNs = System.nanoTime();
+    }
+
+    public long getFrameId() { return frameId; }
+
+    public CameraFrame getFrame() { return frame; }
+
+    public void setFrame(CameraFrame frame) { this.frame = frame; }
+
+    public boolean isSynchronous() { return synchronous; }
+
+    public long getCreatedNs() { return createdNs; }
+
+    public void markStart(String stage) { stageStartNs.put(stage, System.nanoTime()); }
+
+    public void markEnd(String stage) { stageEndNs.put(stage, System.nanoTime()); }
+
+    public long getStageStartNs(String stage) {
+        Long start = stageStartNs.get(stage);
+        return start == null ? 0 : start;
+    }
+
+    public long getStageEndNs(String stage) {
+        Long end = stageEndNs.get(stage);
+        return end == null ? 0 : end;
+    }
+
+    public long getStageNs(String stage) {
+        Long start = stageStartNs.get(stage);
+        Long end = stageEndNs.get(stage);
+        return start == null || end == null ? 0 : end - start;
+    }
+
+    public double getElapsedMs() { return (System.nanoTime() - createdNs) / 1_000_000.0; }
+
+    public Bitmap getInputBitmap() { return inputBitmap; }
+
+    public void setInputBitmap(Bitmap inputBitmap) { this.inputBitmap = inputBitmap; }
+
+    public TensorPool.PooledTensor getInputTensor() { return inputTensor; }
+
+    public void setInputTensor(TensorPool.PooledTensor inputTensor) { this.inputTensor = inputTensor; }
+
+    public Tensor getPtInput() { return ptInput; }
+
+    public void setPtInput(Tensor ptInput) { this.ptInput = ptInput; }
+
+    public Tensor getPtOutput() { return ptOutput; }
+
+    public void setPtOutput(Tensor ptOutput) { this.ptOutput = ptOutput; }
+
+    public OrtSession.Result getModelResult() { return modelResult; }
+
+    public void setModelResult(OrtSession.Result modelResult) { this.modelResult = own(modelResult); }
+
+    public OnnxTensor getEncoderFeatures() { return encoderFeatures; }
+
+    public void setEncoderFeatures(OnnxTensor encoderFeatures) { this.encoderFeatures = encoderFeatures; }
+
+    public List<OrtSession.Result> getDecoderResults() { return decoderResults; }
+
+    public void addDecoderResult(OrtSession.Result decoderResult) { decoderResults.add(own(decoderResult)); }
+
+    public synchronized <T extends AutoCloseable> T own(T value) {
+        if (value != null) {
+            owned.add(value);
+            OPEN_VALUES.incrementAndGet();
+        }
+        return value;
+    }
+
+    public synchronized void ownPinned(TensorPool.PooledTensor tensor) {
+        pinned.put(tensor.getTensor(), tensor);
+        own(tensor::release);
+    }
+
+    public synchronized TensorPool.PooledTensor getPinned(OnnxTensor tensor) { return pinned.get(tensor); }
+
+    public static long getOpenValues() { return OPEN_VALUES.get(); }
+
+    public synchronized void addReusedOutputs(Set<String> names) { reusedOutputs.addAll(names); }
+
+    public synchronized Set<String> getReusedOutputs() { return new HashSet<>(reusedOutputs); }
+
+    public Map<String, Bitmap> getOutput() { return output; }
+
+    public void setOutput(Map<String, Bitmap> output) { this.output = output; }
+
+    public MTLBoxStruct getResult() { return result; }
+
+    public void setResult(MTLBoxStruct result) { this.result = result; }
+
+    public void releaseInput() {
+        // camera tensors go back to the camera's pool, everything else to the monitor's
+        if (frame != null) {
+            ImageConversionUtil.releaseTensor(frame, inputTensor);
+        } else if (inputTensor != null) {
+            inputTensor.release();
+        }
+        inputTensor = null;
+        ptInput = null;
+    }
+
+    public synchronized void closeResults() {
+        // newest first, decoder results may still point into the encoder's
+        for (int i = owned.size() - 1; i >= 0; i--) {
+            try {
+                owned.get(i).close();
+            } catch (Exception e) {
+                System.err.println("ERROR: Failed to close frame value: " + e);
+            }
+            OPEN_VALUES.decrementAndGet();
+        }
+        owned.clear();
+        pinned.clear();
+        modelResult = null;
+        encoderFeatures = null;
+        decoderResults.clear();
+        ptOutput = null;
+    }
+
+    public void close() {
+        // frames dropped part way through still own their buffers
+        releaseInput();
+        if (frame != null) {
+            frame.release();
+        }
+        closeResults();
+    }
+
+    public void complete() { done.countDown(); }
+
+    public boolean awaitCompletion(long timeoutMs) throws InterruptedException {
+        return done.await(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+}
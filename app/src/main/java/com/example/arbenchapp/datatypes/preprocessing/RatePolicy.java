@@ -0,0 +1,76 @@
+package com.example.arbenchapp.datatypes.preprocessing;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class RatePolicy {
+    public static final RatePolicy EVERY_FRAME = new RatePolicy(1, 0);
+
+    private final int everyNth;
+    private final double maxHz;
+
+    public RatePolicy(int everyNth, double maxHz) {
+        this.everyNth = Math.max(1, everyNth);
+        // 0 means no rate cap
+        this.maxHz = Math.max(0, maxHz);
+    }
+
+    public RatePolicy(String policy) {
+        // "3" runs every third frame, "10hz" at most ten times a second
+        String p = policy.trim().toLowerCase();
+        int nth = 1;
+        double hz = 0;
+        try {
+            if (p.endsWith("hz")) {
+                hz = Double.parseDouble(p.substring(0, p.length() - 2).trim());
+            } else if (!p.isEmpty()) {
+                nth = Integer.parseInt(p);
+            }
+        } catch (NumberFormatException e) {
+            System.err.println("ERROR: INVALID RATE POLICY " + policy);
+        }
+        this.everyNth = Math.max(1, nth);
+        this.maxHz = Math.max(0, hz);
+    }
+
+    public static Map<String, RatePolicy> parse(String policies) {
+        // "normals=3, depth=10hz", keyed by decoder output name
+        Map<String, RatePolicy> parsed = new HashMap<>();
+        if (policies == null) {
+            return parsed;
+        }
+        for (String entry : policies.split(",")) {
+            String[] parts = entry.split("=");
+            if (parts.length != 2 || parts[0].trim().isEmpty()) {
+                if (!entry.trim().isEmpty()) {
+                    System.err.println("ERROR: INVALID RATE POLICY ENTRY " + entry);
+                }
+                continue;
+            }
+            parsed.put(parts[0].trim(), new RatePolicy(parts[1]));
+        }
+        return parsed;
+    }
+
+    public boolean shouldRun(long frameIndex, long nowNs, long lastRunNs) {
+        if (lastRunNs == 0) {
+            // nothing to reuse yet
+            return true;
+        }
+        if (frameIndex % everyNth != 0) {
+            return false;
+        }
+        return maxHz <= 0 || nowNs - lastRunNs >= 1_000_000_000L / maxHz;
+    }
+
+    public boolean isEveryFrame() { return everyNth == 1 && maxHz <= 0; }
+
+    public int getEveryNth() { return everyNth; }
+
+    public double getMaxHz() { return maxHz; }
+
+    @Override
+    public String toString() {
+        return maxHz > 0 ? (everyNth > 1 ? everyNth + " / " : "") + maxHz + "hz" : String.valueOf(everyNth);
+    }
+}
@@ -0,0 +1,7 @@
+package com.example.arbenchapp.datatypes.preprocessing;
+
+public enum ResizeMethod {
+    // order must match the ResizeMethod enum in native-lib.cpp
+    BILINEAR,
+    AREA
+}
@@ -0,0 +1,96 @@
+package com.example.arbenchapp.datatypes.preprocessing;
+
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.OrtSession;
+import ai.onnxruntime.providers.NNAPIFlags;
+
+public class SessionConfig {
+    // CPU and NNAPI are the two setups MTLBox has always used
+    public static final SessionConfig CPU = new SessionConfig(ExecutionProvider.CPU, OrtSession.SessionOptions.OptLevel.BASIC_OPT, 1, 1);
+    public static final SessionConfig NNAPI = new SessionConfig(ExecutionProvider.NNAPI, OrtSession.SessionOptions.OptLevel.ALL_OPT, 0, 0);
+    public static final SessionConfig XNNPACK = new SessionConfig(ExecutionProvider.XNNPACK, OrtSession.SessionOptions.OptLevel.ALL_OPT, 0, 1);
+
+    private final ExecutionProvider provider;
+    private final OrtSession.SessionOptions.OptLevel optLevel;
+    private final int intraOpThreads;
+    private final int interOpThreads;
+
+    public SessionConfig(ExecutionProvider provider, OrtSession.SessionOptions.OptLevel optLevel, int intraOpThreads, int interOpThreads) {
+        this.provider = provider;
+        this.optLevel = optLevel;
+        // 0 leaves the thread count to ORT
+        this.intraOpThreads = intraOpThreads;
+        this.interOpThreads = interOpThreads;
+    }
+
+    public static SessionConfig forProvider(ExecutionProvider provider) {
+        switch (provider) {
+            case NNAPI:
+                return NNAPI;
+            case XNNPACK:
+                return XNNPACK;
+            default:
+                return CPU;
+        }
+    }
+
+    public SessionConfig withThreads(int intraOpThreads, int interOpThreads) {
+        return new SessionConfig(provider, optLevel, intraOpThreads, interOpThreads);
+    }
+
+    public ExecutionProvider getProvider() { return provider; }
+
+    public OrtSession.SessionOptions.OptLevel getOptLevel() { return optLevel; }
+
+    public int getIntraOpThreads() { return intraOpThreads; }
+
+    public int getInterOpThreads() { return interOpThreads; }
+
+    public OrtSession.SessionOptions toOptions() throws OrtException {
+        OrtSession.SessionOptions options = new OrtSession.SessionOptions();
+        options.setOptimizationLevel(optLevel);
+        if (provider == ExecutionProvider.NNAPI) {
+            options.addNnapi(EnumSet.of(NNAPIFlags.CPU_DISABLED, NNAPIFlags.USE_FP16));
+        } else if (provider == ExecutionProvider.XNNPACK) {
+            // XNNPACK runs its own thread pool, ORT's intra-op pool stays at one thread so the two don't fight
+            Map<String, String> xnnpackOptions = new HashMap<>();
+            if (intraOpThreads > 0) {
+                xnnpackOptions.put("intra_op_num_threads", String.valueOf(intraOpThreads));
+            }
+            options.addXnnpack(xnnpackOptions);
+            options.addConfigEntry("session.intra_op.allow_spinning", "0");
+            options.setIntraOpNumThreads(1);
+        }
+        if (intraOpThreads > 0 && provider != ExecutionProvider.XNNPACK) {
+            options.setIntraOpNumThreads(intraOpThreads);
+        }
+        if (interOpThreads > 0) {
+            options.setInterOpNumThreads(interOpThreads);
+        }
+        if (interOpThreads > 1) {
+            // inter-op threads are only used when independent nodes may run in parallel
+            options.setExecutionMode(OrtSession.SessionOptions.ExecutionMode.PARALLEL);
+        }
+        return options;
+    }
+
+    public String getKey() {
+        // two configs with the same key build identical sessions
+        return provider + "," + optLevel + "," + intraOpThreads + "," + interOpThreads;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof SessionConfig && ((SessionConfig) o).getKey().equals(getKey());
+    }
+
+    @Override
+    public int hashCode() { return getKey().hashCode(); }
+
+    @Override
+    public String toString() { return getKey(); }
+}
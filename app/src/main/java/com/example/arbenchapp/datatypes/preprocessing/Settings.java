@@ -1,21 +1,47 @@
 package com.example.arbenchapp.datatypes.preprocessing;
 
+import android.content.SharedPreferences;
+
 public class Settings {
 
+    // ImageNet statistics, the same values the PyTorch path has always used
+    public static final float[] IMAGENET_MEAN = {0.485f, 0.456f, 0.406f};
+    public static final float[] IMAGENET_STD = {0.229f, 0.224f, 0.225f};
+    public static final float[] UNIT_MEAN = {0.0f, 0.0f, 0.0f};
+    public static final float[] UNIT_STD = {1.0f, 1.0f, 1.0f};
+
     private final int imgHeight;
     private final int imgWidth;
     private final boolean dimsInit;
+    private final float[] mean;
+    private final float[] std;
 
 
     public Settings() {
         this.imgHeight = 0;
         this.imgWidth = 0;
         this.dimsInit = false;
+        this.mean = IMAGENET_MEAN.clone();
+        this.std = IMAGENET_STD.clone();
     }
     public Settings(int imgHeight, int imgWidth) {
+        this(imgHeight, imgWidth, IMAGENET_MEAN, IMAGENET_STD);
+    }
+    public Settings(int imgHeight, int imgWidth, float[] mean, float[] std) {
         this.imgHeight = imgHeight;
         this.imgWidth = imgWidth;
         this.dimsInit = true;
+        this.mean = mean.clone();
+        this.std = std.clone();
+    }
+
+    public static Settings fromPreferences(SharedPreferences prefs) {
+        Resolution res = new Resolution(prefs.getString("resolution", "224,224"));
+        if (prefs.getBoolean("normalize_input", true)) {
+            return new Settings(res.getHeight(), res.getWidth(), IMAGENET_MEAN, IMAGENET_STD);
+        }
+        // plain [0, 1] input
+        return new Settings(res.getHeight(), res.getWidth(), UNIT_MEAN, UNIT_STD);
     }
 
     public boolean isDimsInit() { return dimsInit; }
@@ -24,4 +50,8 @@ public class Settings {
 
     public int getImgWidth() { return imgWidth; }
 
+    public float[] getMean() { return mean; }
+
+    public float[] getStd() { return std; }
+
 }
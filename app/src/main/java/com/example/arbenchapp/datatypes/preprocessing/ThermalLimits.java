@@ -0,0 +1,67 @@
+package com.example.arbenchapp.datatypes.preprocessing;
+
+public class ThermalLimits {
+    public static final int LEVEL_NONE = 0;
+    public static final int LEVEL_WARM = 1;
+    public static final int LEVEL_HOT = 2;
+    public static final int LEVEL_CRITICAL = 3;
+
+    public static final ThermalLimits NONE = new ThermalLimits(LEVEL_NONE, 0, 1, 0, null);
+
+    private final int level;
+    // 0 means no frame rate cap
+    private final double fpsCap;
+    private final int decoderDecimation;
+    // sizes below the one the box was at when the limit started
+    private final int resolutionSteps;
+    // null keeps the configured execution provider
+    private final ExecutionProvider provider;
+
+    public ThermalLimits(int level, double fpsCap, int decoderDecimation, int resolutionSteps, ExecutionProvider provider) {
+        this.level = level;
+        this.fpsCap = Math.max(0, fpsCap);
+        this.decoderDecimation = Math.max(1, decoderDecimation);
+        this.resolutionSteps = Math.max(0, resolutionSteps);
+        this.provider = provider;
+    }
+
+    public int getLevel() { return level; }
+
+    public double getFpsCap() { return fpsCap; }
+
+    public int getDecoderDecimation() { return decoderDecimation; }
+
+    public int getResolutionSteps() { return resolutionSteps; }
+
+    public ExecutionProvider getProvider() { return provider; }
+
+    public boolean sameAs(ThermalLimits other) {
+        return other != null && level == other.level && fpsCap == other.fpsCap &&
+                decoderDecimation == other.decoderDecimation && resolutionSteps == other.resolutionSteps &&
+                provider == other.provider;
+    }
+
+    public static String levelName(int level) {
+        switch (level) {
+            case LEVEL_WARM:
+                return "WARM";
+            case LEVEL_HOT:
+                return "HOT";
+            case LEVEL_CRITICAL:
+                return "CRITICAL";
+            default:
+                return "NONE";
+        }
+    }
+
+    @Override
+    public String toString() {
+        if (level == LEVEL_NONE) {
+            return "no limits";
+        }
+        return "fps cap " + (fpsCap > 0 ? fpsCap : "off") +
+                ", decoders every " + decoderDecimation +
+                ", resolution -" + resolutionSteps +
+                ", provider " + (provider == null ? "unchanged" : provider);
+    }
+}
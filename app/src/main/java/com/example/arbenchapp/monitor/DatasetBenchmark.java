@@ -0,0 +1,386 @@
+package com.example.arbenchapp.monitor;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import com.example.arbenchapp.datatypes.preprocessing.FrameContext;
+import com.example.arbenchapp.datatypes.preprocessing.Settings;
+import com.example.arbenchapp.util.ConversionUtil;
+import com.example.arbenchapp.util.ImageConversionUtil;
+import com.example.arbenchapp.util.ThreadUtil;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class DatasetBenchmark {
+    private static final String[] IMAGE_EXTENSIONS = {".jpg", ".jpeg", ".png", ".webp", ".bmp"};
+    // decoded images waiting in front of the pipeline, on top of the frames already in it
+    private static final int PREFETCH_DEPTH = 4;
+    private static final long FRAME_TIMEOUT_MS = 60_000;
+
+    private final Context context;
+    private final MTLBox box;
+
+    private static class Decoded {
+        private final String name;
+        private final Bitmap bitmap;
+        private final long decodeNs;
+        private final Exception error;
+
+        private Decoded(String name, Bitmap bitmap, long decodeNs, Exception error) {
+            this.name = name;
+            this.bitmap = bitmap;
+            this.decodeNs = decodeNs;
+            this.error = error;
+        }
+    }
+
+    private static class Pending {
+        private final Decoded image;
+        private final long prefetchWaitNs;
+        private final FrameContext frame;
+
+        private Pending(Decoded image, long prefetchWaitNs, FrameContext frame) {
+            this.image = image;
+            this.prefetchWaitNs = prefetchWaitNs;
+            this.frame = frame;
+        }
+    }
+
+    private final List<Double> latencies = new ArrayList<>();
+    private final List<Double> decodeMs = new ArrayList<>();
+    private final List<Double> prefetchWaitMs = new ArrayList<>();
+    private final Map<String, List<Double>> stageMs = new LinkedHashMap<>();
+    private int failed = 0;
+
+    public DatasetBenchmark(Context context, MTLBox box) {
+        this.context = context;
+        this.box = box;
+    }
+
+    public String[] run(String source, int limit) {
+        // source is a directory (absolute, or relative to the app's files) or an asset directory
+        File directory = resolveDirectory(source);
+        List<String> images = directory == null ? listAssets(source) : listFiles(directory);
+        if (limit > 0 && images.size() > limit) {
+            images = images.subList(0, limit);
+        }
+        if (images.isEmpty()) {
+            System.err.println("DATASET ERROR: No images found in " + source);
+            return new String[]{"Dataset Error: no images in " + source};
+        }
+        boolean assets = directory == null;
+        Settings settings = box.viewSettings();
+        int targetWidth = settings.isDimsInit() ? settings.getImgWidth() : 0;
+        int targetHeight = settings.isDimsInit() ? settings.getImgHeight() : 0;
+        List<String> stages = box.getStageNames();
+        stageMs.clear();
+        for (String stage : stages) {
+            stageMs.put(stage, new ArrayList<>());
+        }
+
+        String name = new File(source).getName();
+        String stamp = LocalDate.now() + "_" + LocalDateTime.now().format(DateTimeFormatter.ofPattern("HH-mm-ss"));
+        File perImage = ConversionUtil.logFile("dataset_" + stamp + "_" + name + ".csv");
+        System.out.println("DATASET: " + images.size() + " images from " + source);
+
+        ExecutorService decodePool = Executors.newFixedThreadPool(
+                Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2)),
+                ThreadUtil.workerFactory("dataset-decode", Thread.NORM_PRIORITY, false));
+        Deque<Future<Decoded>> prefetched = new ArrayDeque<>();
+        Deque<Pending> inFlight = new ArrayDeque<>();
+        int nextDecode = 0;
+        String aborted = null;
+        latencies.clear();
+        decodeMs.clear();
+        prefetchWaitMs.clear();
+        failed = 0;
+        box.setHeadless(true);
+        long start = System.nanoTime();
+        try (Writer csv = perImage == null ? null : new BufferedWriter(new FileWriter(perImage))) {
+            if (csv != null) {
+                StringBuilder header = new StringBuilder("image,status,latency_ms,decode_ms,prefetch_wait_ms");
+                for (String stage : stages) {
+                    header.append(",").append(stage).append("_ms");
+                }
+                csv.write(header.append("\n").toString());
+            }
+            for (int i = 0; i < images.size(); i++) {
+                // decoding runs ahead on its own pool, so the pipeline only waits when decoding is the bottleneck
+                while (nextDecode < images.size() && prefetched.size() < PREFETCH_DEPTH) {
+                    String path = images.get(nextDecode++);
+                    prefetched.add(decodePool.submit(() -> decode(path, assets, targetWidth, targetHeight)));
+                }
+                long waitStart = System.nanoTime();
+                Decoded image = prefetched.poll().get();
+                long waitNs = System.nanoTime() - waitStart;
+                if (image.error != null) {
+                    failed++;
+                    writeRow(csv, image.name, "decode failed", stages, null, image, waitNs);
+                    continue;
+                }
+                FrameContext frame = box.enqueue(image.bitmap);
+                if (frame == null) {
+                    aborted = "the model was replaced or closed";
+                    break;
+                }
+                inFlight.add(new Pending(image, waitNs, frame));
+                while (inFlight.size() >= box.getMaxFramesInFlight()) {
+                    finish(inFlight.poll(), csv, stages);
+                }
+            }
+            while (!inFlight.isEmpty()) {
+                finish(inFlight.poll(), csv, stages);
+            }
+        } catch (IOException e) {
+            System.err.println("DATASET ERROR: Could not write results: " + e);
+            aborted = "could not write results: " + e.getMessage();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            aborted = "interrupted";
+        } catch (ExecutionException e) {
+            aborted = "decoding failed: " + e.getCause();
+        } finally {
+            decodePool.shutdownNow();
+            // frames left behind by an error still count in the window, it is only closed once they are done
+            drain(inFlight);
+        }
+        double wallMs = (System.nanoTime() - start) / 1_000_000.0;
+        // one metrics window for the whole set, power and temperature included
+        HardwareMonitor.HardwareMetrics metrics = box.finishMetrics();
+        box.setHeadless(false);
+        String[] summary = summarize(source, images.size(), wallMs, metrics, aborted);
+        ConversionUtil.logArray(context, summary, "dataset_" + stamp + "_" + name + "_summary.csv");
+        System.out.println("DATASET: " + String.join("\n", summary));
+        return summary;
+    }
+
+    private static void drain(Deque<Pending> inFlight) {
+        while (!inFlight.isEmpty()) {
+            try {
+                inFlight.poll().frame.awaitCompletion(FRAME_TIMEOUT_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void finish(Pending pending, Writer csv, List<String> stages) throws InterruptedException, IOException {
+        FrameContext frame = pending.frame;
+        String status;
+        if (!frame.awaitCompletion(FRAME_TIMEOUT_MS)) {
+            status = "timeout";
+        } else {
+            status = frame.getResult() == null ? "dropped" : "ok";
+        }
+        if (!status.equals("ok")) {
+            failed++;
+            writeRow(csv, pending.image.name, status, stages, null, pending.image, pending.prefetchWaitNs);
+            return;
+        }
+        // from entering the pipeline to leaving its last stage
+        long endNs = stages.isEmpty() ? 0 : frame.getStageEndNs(stages.get(stages.size() - 1));
+        double latency = ((endNs == 0 ? System.nanoTime() : endNs) - frame.getCreatedNs()) / 1_000_000.0;
+        latencies.add(latency);
+        decodeMs.add(pending.image.decodeNs / 1_000_000.0);
+        prefetchWaitMs.add(pending.prefetchWaitNs / 1_000_000.0);
+        for (String stage : stages) {
+            stageMs.get(stage).add(frame.getStageNs(stage) / 1_000_000.0);
+        }
+        writeRow(csv, pending.image.name, status, stages, frame, pending.image, pending.prefetchWaitNs);
+    }
+
+    private static void writeRow(Writer csv, String name, String status, List<String> stages, FrameContext frame,
+                                 Decoded image, long prefetchWaitNs) throws IOException {
+        if (csv == null) {
+            return;
+        }
+        StringBuilder row = new StringBuilder(name.replace(",", "_")).append(",").append(status).append(",");
+        if (frame != null) {
+            long endNs = stages.isEmpty() ? 0 : frame.getStageEndNs(stages.get(stages.size() - 1));
+            row.append(round((endNs - frame.getCreatedNs()) / 1_000_000.0));
+        }
+        row.append(",").append(round(image.decodeNs / 1_000_000.0))
+                .append(",").append(round(prefetchWaitNs / 1_000_000.0));
+        for (String stage : stages) {
+            row.append(",");
+            if (frame != null) {
+                row.append(round(frame.getStageNs(stage) / 1_000_000.0));
+            }
+        }
+        csv.write(row.append("\n").toString());
+    }
+
+    private String[] summarize(String source, int total, double wallMs, HardwareMonitor.HardwareMetrics metrics,
+                               String aborted) {
+        List<String> lines = new ArrayList<>();
+        lines.add("metric,value");
+        lines.add("source," + source);
+        if (aborted != null) {
+            lines.add("aborted," + aborted);
+        }
+        lines.add("images," + total);
+        lines.add("completed," + latencies.size());
+        lines.add("failed," + failed);
+        lines.add("wall_time_s," + round(wallMs / 1_000));
+        lines.add("throughput_images_per_s," + round(latencies.size() / (wallMs / 1_000)));
+        addStats(lines, "latency", latencies);
+        addStats(lines, "decode", decodeMs);
+        addStats(lines, "prefetch_wait", prefetchWaitMs);
+        for (Map.Entry<String, List<Double>> entry : stageMs.entrySet()) {
+            addStats(lines, "stage_" + entry.getKey(), entry.getValue());
+        }
+        if (metrics != null) {
+            if (metrics.executionProviders != null) {
+                for (Map.Entry<String, String> entry : metrics.executionProviders.entrySet()) {
+                    lines.add("provider_" + entry.getKey() + "," + entry.getValue().replace(",", ";"));
+                }
+            }
+            lines.add("cpu_usage_percent," + round(metrics.cpuUsagePercent));
+            lines.add("memory_used_bytes," + metrics.memoryUsedBytes);
+            lines.add("native_heap_delta_bytes," + metrics.nativeHeapDeltaBytes);
+            lines.add("battery_percent_used," + metrics.batteryPercentageUsed);
+            lines.add("power_consumed_uwh," + round(metrics.powerConsumedMicroWattHours));
+            lines.add("temperature_change_c," + round(metrics.temperatureChangeCelsius));
+            lines.add("temperature_final_c," + round(metrics.finalTemperatureCelsius));
+        }
+        return lines.toArray(new String[0]);
+    }
+
+    private static void addStats(List<String> lines, String name, List<Double> values) {
+        if (values.isEmpty()) {
+            return;
+        }
+        List<Double> sorted = new ArrayList<>(values);
+        Collections.sort(sorted);
+        double sum = 0;
+        for (double value : sorted) {
+            sum += value;
+        }
+        lines.add(name + "_mean_ms," + round(sum / sorted.size()));
+        lines.add(name + "_p50_ms," + round(percentile(sorted, 0.50)));
+        lines.add(name + "_p90_ms," + round(percentile(sorted, 0.90)));
+        lines.add(name + "_p99_ms," + round(percentile(sorted, 0.99)));
+        lines.add(name + "_min_ms," + round(sorted.get(0)));
+        lines.add(name + "_max_ms," + round(sorted.get(sorted.size() - 1)));
+    }
+
+    private static double percentile(List<Double> sorted, double p) {
+        // nearest rank
+        int index = (int) Math.ceil(p * sorted.size()) - 1;
+        return sorted.get(Math.max(0, Math.min(sorted.size() - 1, index)));
+    }
+
+    private static String round(double value) {
+        return ConversionUtil.round(value, 3);
+    }
+
+    private Decoded decode(String path, boolean asset, int targetWidth, int targetHeight) {
+        String name = new File(path).getName();
+        long start = System.nanoTime();
+        try {
+            BitmapFactory.Options bounds = new BitmapFactory.Options();
+            bounds.inJustDecodeBounds = true;
+            decodeInto(path, asset, bounds);
+            // large photos are decoded at a fraction of their size, never below the model resolution
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = ImageConversionUtil.sampleSize(bounds.outWidth, bounds.outHeight, targetWidth, targetHeight);
+            options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+            Bitmap bitmap = decodeInto(path, asset, options);
+            if (bitmap == null) {
+                throw new IOException("Could not decode " + path);
+            }
+            return new Decoded(name, bitmap, System.nanoTime() - start, null);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("DATASET ERROR: " + e);
+            return new Decoded(name, null, System.nanoTime() - start, e);
+        }
+    }
+
+    private Bitmap decodeInto(String path, boolean asset, BitmapFactory.Options options) throws IOException {
+        if (!asset) {
+            return BitmapFactory.decodeFile(path, options);
+        }
+        try (InputStream in = context.getAssets().open(path)) {
+            return BitmapFactory.decodeStream(in, null, options);
+        }
+    }
+
+    private File resolveDirectory(String source) {
+        File absolute = new File(source);
+        if (absolute.isAbsolute()) {
+            return absolute.isDirectory() ? absolute : null;
+        }
+        File internal = new File(context.getFilesDir(), source);
+        if (internal.isDirectory()) {
+            return internal;
+        }
+        File external = new File(context.getExternalFilesDir(null), source);
+        return external.isDirectory() ? external : null;
+    }
+
+    private static boolean isImage(String name) {
+        String lower = name.toLowerCase();
+        for (String extension : IMAGE_EXTENSIONS) {
+            if (lower.endsWith(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static List<String> listFiles(File directory) {
+        List<String> images = new ArrayList<>();
+        String[] names = directory.list();
+        if (names == null) {
+            return images;
+        }
+        Arrays.sort(names);
+        for (String name : names) {
+            if (isImage(name)) {
+                images.add(new File(directory, name).getPath());
+            }
+        }
+        return images;
+    }
+
+    private List<String> listAssets(String directory) {
+        List<String> images = new ArrayList<>();
+        try {
+            String[] names = context.getAssets().list(directory);
+            if (names == null) {
+                return images;
+            }
+            Arrays.sort(names);
+            for (String name : names) {
+                if (isImage(name)) {
+                    images.add(directory + "/" + name);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("DATASET ERROR: Could not list assets in " + directory + ": " + e);
+        }
+        return images;
+    }
+}
@@ -10,9 +10,16 @@ import android.os.BatteryManager;
 import android.os.Debug;
 import android.util.Log;
 
+import com.example.arbenchapp.datatypes.postprocessing.ConversionMethod;
+import com.example.arbenchapp.datatypes.preprocessing.CameraFrame;
+import com.example.arbenchapp.datatypes.preprocessing.FrameContext;
+import com.example.arbenchapp.datatypes.preprocessing.RatePolicy;
 import com.example.arbenchapp.datatypes.preprocessing.Settings;
 import com.example.arbenchapp.util.ConversionUtil;
 import com.example.arbenchapp.util.ImageConversionUtil;
+import com.example.arbenchapp.util.PinnedOutputs;
+import com.example.arbenchapp.util.TensorPool;
+import com.example.arbenchapp.util.ThreadUtil;
 import com.google.common.reflect.TypeToken;
 import com.google.gson.Gson;
 
@@ -23,24 +30,33 @@ import org.pytorch.IValue;
 import org.pytorch.Tensor;
 
 import java.lang.reflect.Type;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
-import java.util.concurrent.BlockingQueue;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
 
+import ai.onnxruntime.NodeInfo;
 import ai.onnxruntime.OnnxTensor;
 import ai.onnxruntime.OnnxTensorLike;
 import ai.onnxruntime.OnnxValue;
 import ai.onnxruntime.OrtEnvironment;
 import ai.onnxruntime.OrtException;
 import ai.onnxruntime.OrtSession;
+import ai.onnxruntime.TensorInfo;
 
 public class HardwareMonitor {
     private static final String TAG = "HardwareMonitor";
@@ -99,6 +115,37 @@ public class HardwareMonitor {
         public double temperatureChangeCelsius;
         public double finalTemperatureCelsius;
         public double averageCurrentDrainMicroAmps;
+        public long tensorAllocations;
+        public long tensorPoolInUse;
+        public long outputTensorAllocations;
+        public long outputTensorBytes;
+        public long nativeHeapBytes;
+        public long nativeHeapDeltaBytes;
+        public long openOrtValues;
+        public Map<String, Double> decoderQueueWaitMs;
+        public Map<String, Double> decoderRunMs;
+        public Map<String, Double> decoderFps;
+        public Map<String, Integer> decoderSkipped;
+        public double decoderSavedMs;
+        public int encoderSkipped;
+        public double encoderSkipRate;
+        public double encoderSavedMs;
+        public double encoderEnergySavedMicroWattHours;
+        public String inputResolution;
+        public double governorTargetMs;
+        public double governorP90Ms;
+        public int governorSwitches;
+        public String thermalLimits;
+        public Map<String, Double> stageWaitMs;
+        public Map<String, Double> stageRunMs;
+        public int staleFramesSkipped;
+        public Map<String, String> executionProviders;
+        public Map<String, String> sessionCreation;
+        public Map<String, Long> mappedModelBytes;
+        public Map<String, Long> residentModelBytes;
+        public int warmUpRuns;
+        public double warmUpMs;
+        public double firstInferenceMs;
         public Map<String, Bitmap> output;
 
         public HardwareMetrics(
@@ -165,7 +212,7 @@ public class HardwareMonitor {
 
     public HardwareMetrics getBaseMetrics() {
         double cpuUsage = getCpuUsage();
-        return new HardwareMetrics(
+        HardwareMetrics metrics = new HardwareMetrics(
                 0.0,
                 0.0,
                 0.0,
@@ -177,6 +224,9 @@ public class HardwareMonitor {
                 (long) getAvailMemory(),
                 getBatteryStats(),
                 getBatteryStats());
+        // ORT outputs live on the native heap, so leaked results show up here long before an OOM kill
+        metrics.nativeHeapBytes = Debug.getNativeHeapAllocatedSize();
+        return metrics;
     }
 
     private long lastRealTime = 0;
@@ -233,31 +283,159 @@ public class HardwareMonitor {
         return Debug.threadCpuTimeNanos() / 1_000_000; // Convert to milliseconds
     }
 
-    public static class SplitModelMonitor {
+    public interface ModelMonitor {
+        void startExecuteAndMonitor();
+        void preprocess(FrameContext context) throws OrtException;
+        void infer(FrameContext context) throws OrtException;
+        void postprocess(FrameContext context) throws OrtException;
+        void recordFrame(FrameContext context);
+        HardwareMetrics finishExecuteAndMonitor();
+        int getNumFrames();
+        double getCurrentTime();
+        boolean hasStarted();
+        void setStarted(boolean newStarted);
+        // applied to the next frame that reaches the stage, no rebuild needed
+        void setSettings(Settings settings);
+        void reloadOutputMappings();
+        // offline image sets, input holds batchSize images as [N, 3, H, W], outputs come back per image or
+        // not at all when convert is false
+        List<Map<String, Bitmap>> runBatch(TensorPool.PooledTensor input, int batchSize, boolean convert) throws OrtException;
+        void close();
+    }
+
+    public static final String OUTPUT_OFF = "OFF";
+
+    private static Map<String, String> loadOutputMappings() {
+        String json = prefs.getString("output_option_mappings", "");
+        Map<String, String> mappings = new Gson().fromJson(json, new TypeToken<HashMap<String, String>>(){}.getType());
+        return mappings == null ? new HashMap<>() : mappings;
+    }
+
+    private static boolean sameSize(Settings a, Settings b) {
+        return a != null && b != null && a.getImgWidth() == b.getImgWidth() && a.getImgHeight() == b.getImgHeight();
+    }
+
+    private static Set<String> liveOutputs(Set<String> outputNames, Map<String, String> outputMappings) {
+        // outputs mapped to OFF, and with mapped_outputs_only every output without a mapping, are never computed
+        boolean mappedOnly = prefs.getBoolean("mapped_outputs_only", false);
+        Set<String> live = new LinkedHashSet<>();
+        for (String name : outputNames) {
+            String mapping = outputMappings == null ? null : outputMappings.get(name);
+            if (OUTPUT_OFF.equals(mapping) || (mappedOnly && mapping == null)) {
+                continue;
+            }
+            live.add(name);
+        }
+        return live;
+    }
+
+    private static Map<String, Bitmap> resultToBitmaps(OrtSession.Result result, Map<String, String> outputMappings) {
+        Map<String, Bitmap> output = new HashMap<>();
+        for (Map.Entry<String, OnnxValue> entry : result) {
+            String key = entry.getKey();
+            OnnxValue value = entry.getValue();
+            if (OUTPUT_OFF.equals(outputMappings.get(key))) {
+                continue;
+            }
+            if (value.getType() != OnnxValue.OnnxValueType.ONNX_TYPE_TENSOR) {
+                System.err.println("ONNX ERROR: Value isn't in tensor.");
+                throw new IllegalStateException("Non-tensor value encountered for key: " + key);
+            }
+            Bitmap bm = ConversionUtil.OnnxTensorToImage(
+                    (OnnxTensor) value,
+                    ConversionUtil.stringToConversionMethod(
+                            Objects.requireNonNull(outputMappings.getOrDefault(key, ""))
+                    )
+            );
+            output.put(key, bm);
+        }
+        return output;
+    }
+
+    private static void checkBatchSize(OrtSession session, int batchSize) throws OrtException {
+        // exported with a fixed batch dimension, the model only takes that many images at once
+        for (Map.Entry<String, NodeInfo> entry : session.getInputInfo().entrySet()) {
+            if (entry.getValue().getInfo() instanceof TensorInfo) {
+                long[] shape = ((TensorInfo) entry.getValue().getInfo()).getShape();
+                if (shape.length > 0 && shape[0] > 0 && shape[0] != batchSize) {
+                    throw new OrtException("Input " + entry.getKey() + " has a fixed batch size of " + shape[0] + ".");
+                }
+            }
+        }
+    }
+
+    private static List<Map<String, Bitmap>> emptyOutputs(int batchSize) {
+        List<Map<String, Bitmap>> outputs = new ArrayList<>();
+        for (int i = 0; i < batchSize; i++) {
+            outputs.add(new HashMap<>());
+        }
+        return outputs;
+    }
+
+    private static void splitBatch(OrtSession.Result result, Map<String, String> outputMappings,
+                                   List<Map<String, Bitmap>> outputs) {
+        // every output is [N, C, H, W], image i reads its own slice
+        for (Map.Entry<String, OnnxValue> entry : result) {
+            String key = entry.getKey();
+            if (OUTPUT_OFF.equals(outputMappings.get(key))) {
+                continue;
+            }
+            if (entry.getValue().getType() != OnnxValue.OnnxValueType.ONNX_TYPE_TENSOR) {
+                throw new IllegalStateException("Non-tensor value encountered for key: " + key);
+            }
+            ConversionMethod method = ConversionUtil.stringToConversionMethod(
+                    Objects.requireNonNull(outputMappings.getOrDefault(key, "")));
+            for (int i = 0; i < outputs.size(); i++) {
+                outputs.get(i).put(key, ConversionUtil.OnnxTensorToImage((OnnxTensor) entry.getValue(), method, i));
+            }
+        }
+    }
+
+    public static class SplitModelMonitor implements ModelMonitor {
         private final HardwareMonitor hardwareMonitor;
-        private final ProcessingResultListener listener;
-
-        private final BlockingQueue<OrtSession.Result> decoderQueue = new LinkedBlockingQueue<>(1);
-        private final ExecutorService encoderService = Executors.newSingleThreadExecutor(r -> {
-            Thread t = new Thread(r);
-            t.setPriority(Thread.MAX_PRIORITY); // High priority for encoder
-            return t;
-        });
-        private final ExecutorService decoderService = Executors.newSingleThreadExecutor(r -> {
-            Thread t = new Thread(r);
-            t.setPriority(Thread.NORM_PRIORITY);
-            return t;
-        });
 
         private final OrtSession encoder;
         private final OrtSession[] decoders;
         private final OrtEnvironment env;
-        private final Settings settings;
-        private final Map<String, String> outputMappings;
+        private final TensorPool inputPool;
+        // one set of output buffers per frame in flight, reused for the lifetime of the monitor
+        private final TensorPool outputPool;
+        private final PinnedOutputs encoderOutputs;
+        private final PinnedOutputs[] decoderOutputs;
+        // decoders only need the encoder's feature map, its other outputs are never shown
+        private final Set<String> encoderRequested;
+        // per decoder, the outputs to compute, empty when the decoder is skipped altogether
+        private volatile List<Set<String>> decoderLive;
+        private volatile boolean[] decoderActive;
+        private volatile Settings settings;
+        private volatile Map<String, String> outputMappings;
         private final String inputName;
 
+        // long-lived, one worker per decoder head
+        private final ExecutorService decoderWorkers;
+        private final String[] decoderNames;
+        private final long[] decoderQueueWaitNs;
+        private final long[] decoderRunNs;
+        private final int[] decoderRuns;
+        private final int[] decoderSkips;
+        // heads can run below the frame rate, a skipped head shows its last output again
+        private volatile RatePolicy[] decoderPolicies;
+        // thermal limit on top of the rate policies, every head only runs on every Nth frame
+        private volatile int decoderDecimation = 1;
+        private final AtomicLongArray decoderLastRunNs;
+        private final Map<String, Bitmap> lastOutputs = new ConcurrentHashMap<>();
+        private long decodedFrames = 0;
+        // near-static scenes reuse the last feature map instead of running the encoder again
+        private volatile boolean gateEncoder;
+        private volatile float gateThreshold;
+        private final TensorPool featurePool;
+        private final Object featureLock = new Object();
+        private SharedFeatures cachedFeatures;
+        private int encoderRuns;
+        private int encoderSkips;
+        private long encoderRunNs;
+
         private final Object dataLock = new Object();
-        private final BlockingQueue<Double> frameTimes = new LinkedBlockingQueue<>(4);
 
         private boolean started;
         private HardwareMetrics startMetrics;
@@ -266,6 +444,8 @@ public class HardwareMonitor {
         private int numFrames;
         private double avgTime;
         private double avgTimePP;
+        private long startTensorAllocations;
+        private long startOutputAllocations;
 
         public SplitModelMonitor(
                 OrtSession encoder,
@@ -273,10 +453,9 @@ public class HardwareMonitor {
                 OrtEnvironment env,
                 Settings settings,
                 String inputName,
-                Context context) {
+                Context context) throws OrtException {
             this.hardwareMonitor = new HardwareMonitor(context);
             this.inputName = inputName;
-            this.listener = null;
             if (prefs == null) {
                 prefs = PreferenceManager.getDefaultSharedPreferences(this.hardwareMonitor.context);
             }
@@ -287,45 +466,46 @@ public class HardwareMonitor {
             this.encoder = encoder;
             this.decoders = decoders;
             this.env = env;
-            this.settings = settings;
-            String json = prefs.getString("output_option_mappings", "");
-            Gson gson = new Gson();
-            Type type = new TypeToken<HashMap<String, String>>(){}.getType();
-            this.outputMappings = gson.fromJson(json, type);
-
-            this.started = false;
-        }
-
-        public SplitModelMonitor(
-                OrtSession encoder,
-                OrtSession[] decoders,
-                OrtEnvironment env,
-                Settings settings,
-                String inputName,
-                ProcessingResultListener listener,
-                Context context) {
-            this.hardwareMonitor = new HardwareMonitor(context);
-            this.inputName = inputName;
-            this.listener = listener;
-            if (prefs == null) {
-                prefs = PreferenceManager.getDefaultSharedPreferences(this.hardwareMonitor.context);
-            }
-            if (decoders.length == 0) {
-                Log.e("SPLIT ERROR", "NO DECODERS SELECTED!");
+            this.inputPool = new TensorPool(env);
+            this.outputPool = new TensorPool(env);
+            boolean pinOutputs = prefs.getBoolean("pinned_outputs", true);
+            this.encoderOutputs = new PinnedOutputs(encoder, outputPool, pinOutputs);
+            this.decoderOutputs = new PinnedOutputs[decoders.length];
+            for (int i = 0; i < decoders.length; i++) {
+                decoderOutputs[i] = new PinnedOutputs(decoders[i], outputPool, pinOutputs);
             }
-
-            this.encoder = encoder;
-            this.decoders = decoders;
-            this.env = env;
             this.settings = settings;
             String json = prefs.getString("output_option_mappings", "");
             Gson gson = new Gson();
             Type type = new TypeToken<HashMap<String, String>>(){}.getType();
             this.outputMappings = gson.fromJson(json, type);
+            this.encoderRequested = encoder.getOutputNames().contains("last_hidden_state") ?
+                    Collections.singleton("last_hidden_state") : null;
+            this.decoderActive = new boolean[decoders.length];
+            Arrays.fill(decoderActive, true);
+            this.decoderLive = computeDecoderLive(outputMappings);
+
+            this.decoderWorkers = Executors.newFixedThreadPool(
+                    Math.max(1, decoders.length),
+                    ThreadUtil.workerFactory("decoder", Thread.NORM_PRIORITY, prefs.getBoolean("pin_decoder_cores", false))
+            );
+            this.decoderNames = new String[decoders.length];
+            for (int i = 0; i < decoders.length; i++) {
+                decoderNames[i] = String.join(",", decoders[i].getOutputNames());
+            }
+            this.decoderQueueWaitNs = new long[decoders.length];
+            this.decoderRunNs = new long[decoders.length];
+            this.decoderRuns = new int[decoders.length];
+            this.decoderSkips = new int[decoders.length];
+            this.decoderLastRunNs = new AtomicLongArray(decoders.length);
+            this.decoderPolicies = loadDecoderPolicies();
+            this.featurePool = new TensorPool(env);
+            loadGating();
 
             this.started = false;
         }
 
+        @Override
         public void startExecuteAndMonitor() {
             synchronized (dataLock) {
                 started = true;
@@ -335,167 +515,152 @@ public class HardwareMonitor {
                 numFrames = 0;
                 avgTime = 0;
                 avgTimePP = 0;
+                startTensorAllocations = inputPool.getAllocations();
+                startOutputAllocations = outputPool.getAllocations();
+                Arrays.fill(decoderQueueWaitNs, 0);
+                Arrays.fill(decoderRunNs, 0);
+                Arrays.fill(decoderRuns, 0);
+                Arrays.fill(decoderSkips, 0);
+                encoderRuns = 0;
+                encoderSkips = 0;
+                encoderRunNs = 0;
             }
         }
 
-        public void queueRun(Bitmap bitmap) throws OrtException {
-            if (listener == null) {
-                System.err.println("QUEUE RUN ERROR: Listener cannot be null.");
-                return;
-            }
-            // schedule encoder
-            encoderService.submit(() -> {
-                try {
-                    System.out.println("uyoabdsfilun: Start encoder.");
-                    double startTime = System.nanoTime();
-                    OrtSession.Result result = runEncoder(bitmap);
-                    double endTime = System.nanoTime();
-                    frameTimes.put(startTime);
-                    frameTimes.put(endTime);
-                    decoderQueue.put(result);
-                    System.out.println("uyoabdsfilun: Encoder time: " + ((endTime - startTime) / 1_000_000));
-                    listener.requestNextFrame();
-                } catch (InterruptedException e) {
-                    System.err.println("QUEUE RUN ERROR: Interrupt while taking from encoder queue.");
-                    listener.requestNextFrame();
-                } catch (OrtException e) {
-                    System.err.println("QUEUE RUN ERROR: Error running encoder session:: " + e);
-                    listener.requestNextFrame();
-                }
-            });
-            // schedule decoder
-            decoderService.submit(() -> {
-                try {
-                    System.out.println("uyoabdsfilun: Trying to take from decoder queue.");
-                    OrtSession.Result featureMap = decoderQueue.take();
-                    System.out.println("uyoabdsfilun: Successfully took from decoder queue.");
-                    double startDecoderTime = System.nanoTime();
-                    Map<String, Bitmap> output = runDecoders(featureMap);
-                    System.out.println("uyoabdsfilun: Decoder runtime = " + ((System.nanoTime() - startDecoderTime) / 1_000_000));
-                    synchronized (dataLock) {
-                        numFrames++;
-                        double endTime = System.nanoTime();
-                        double startFrameTime = frameTimes.take();
-                        double endInferenceFrameTime = frameTimes.take();
-
-                        if (numFrames == 1) {
-                            avgTime = endInferenceFrameTime - startFrameTime;
-                            avgTimePP = endTime - startFrameTime;
-                        } else {
-                            avgTime = ((avgTime * (numFrames - 1)) / numFrames) + ((endInferenceFrameTime - startFrameTime) / numFrames);
-                            avgTimePP = ((avgTimePP * (numFrames - 1)) / numFrames) + ((endTime - startFrameTime) / numFrames);
-                        }
-                    }
-                    listener.onProcessingComplete(bitmap, output);
-                } catch (InterruptedException e) {
-                    System.err.println("QUEUE RUN ERROR: Interrupt while taking from decoder queue.");
-                } catch (OrtException e) {
-                    System.err.println("QUEUE RUN ERROR: Error running decoder sessions:: " + e);
-                }
-            });
+        @Override
+        public void preprocess(FrameContext context) throws OrtException {
+            context.setInputTensor(ImageConversionUtil.frameToTensor(context.getFrame(), inputPool, settings));
         }
 
-        public Map<String, Bitmap> run(Bitmap input) throws OrtException {
-            if (!started) {
-                System.out.println("CANNOT RUN INFERENCE WITHOUT STARTING METRICS");
-                return null;
-            }
-            double startInfTime;
-            double endInfTime;
-            double startPPTime = System.nanoTime();
-            numFrames++;
-
-            startInfTime = System.nanoTime();
-            OrtSession.Result featureMap = runEncoder(input);
-            endInfTime = System.nanoTime();
-            double startDecoderTime = System.nanoTime();
-            Map<String, Bitmap> output = runDecoders(featureMap);
-            System.out.println("OSDIFOHLS decoder time: " + ((System.nanoTime() - startDecoderTime) / 1_000_000) + " ms");
-
-            long endPPTime = System.nanoTime();
-            if (numFrames == 1) {
-                avgTime = endInfTime - startInfTime;
-                avgTimePP = endPPTime - startPPTime;
-            } else {
-                avgTime = ((avgTime * (numFrames - 1)) / numFrames) + ((endInfTime - startInfTime) / numFrames);
-                avgTimePP = ((avgTimePP * (numFrames - 1)) / numFrames) + ((endPPTime - startPPTime) / numFrames);
+        @Override
+        public void infer(FrameContext context) throws OrtException {
+            // encoder
+            try {
+                CameraFrame frame = context.getFrame();
+                float[] signature = gateEncoder && frame != null ? frame.getLumaSignature() : null;
+                if (signature != null && reuseFeatures(context, signature)) {
+                    recordEncoderRun(0, true);
+                    return;
+                }
+                long runStart = System.nanoTime();
+                Map<String, ? extends OnnxTensorLike> inputs = Map.of(inputName, context.getInputTensor().getTensor());
+                context.setModelResult(encoderOutputs.run(inputs, context, encoderRequested));
+                recordEncoderRun(System.nanoTime() - runStart, false);
+                if (signature != null) {
+                    cacheFeatures(context, signature);
+                }
+            } finally {
+                // input buffers are recycled as soon as the run returns
+                context.releaseInput();
             }
-            return output;
         }
 
-        public OrtSession.Result runEncoder(Bitmap input) throws OrtException {
-            OnnxTensor inp = ImageConversionUtil.bitmapToTensor(input, env);
-            Map<String, ? extends OnnxTensorLike> inputs = Map.of(inputName, inp);
-            return encoder.run(inputs);
-        }
-
-        public Map<String, Bitmap> runDecoders(OrtSession.Result featureMap) throws OrtException {
-            // convert featureMap
-            System.out.println("WADSGOIJ: " + featureMap);
-            OnnxTensor inputTensor = null;
-            for (Map.Entry<String, OnnxValue> entry : featureMap) {
-                String key = entry.getKey();
-                OnnxValue value = entry.getValue();
-                if (Objects.equals(key, "last_hidden_state")) {
-                    inputTensor = (OnnxTensor) value;
-                }
-                System.out.println("WADSGOIJ key: " + key);
-                System.out.println("WADSGOIJ value: " + value);
+        public void decode(FrameContext context) throws OrtException {
+            OnnxTensor inputTensor = context.getEncoderFeatures();
+            if (inputTensor == null) {
+                inputTensor = encoderFeatures(context.getModelResult());
             }
             if (inputTensor == null) {
-                return null;
+                throw new OrtException("Encoder output has no last_hidden_state.");
             }
-            Map<String, Bitmap> output = new ConcurrentHashMap<>();
-            ExecutorService executor = Executors.newFixedThreadPool(decoders.length);
-            ExecutorCompletionService<Void> completionService = new ExecutorCompletionService<>(executor);
+            OnnxTensor finalInputTensor = inputTensor;
+            List<Future<OrtSession.Result>> futures = new ArrayList<>();
+            OrtException failure = null;
+            List<Set<String>> live = decoderLive;
+            RatePolicy[] policies = decoderPolicies;
+            int decimation = decoderDecimation;
+            long frameIndex = decodedFrames++;
             try {
-                for (OrtSession decoder : decoders) {
-                    OnnxTensor finalInputTensor = inputTensor;
-                    completionService.submit(() -> {
+                for (int i = 0; i < decoders.length; i++) {
+                    Set<String> requested = live.get(i);
+                    if (requested.isEmpty()) {
+                        // nothing from this head is on screen
+                        continue;
+                    }
+                    long now = System.nanoTime();
+                    long lastRunNs = decoderLastRunNs.get(i);
+                    if (!policies[i].shouldRun(frameIndex, now, lastRunNs) ||
+                            (lastRunNs != 0 && frameIndex % decimation != 0)) {
+                        context.addReusedOutputs(requested);
+                        recordDecoderSkip(i);
+                        continue;
+                    }
+                    decoderLastRunNs.set(i, now);
+                    PinnedOutputs decoder = decoderOutputs[i];
+                    int head = i;
+                    long submitTime = System.nanoTime();
+                    futures.add(decoderWorkers.submit(() -> {
+                        long runStart = System.nanoTime();
                         Map<String, ? extends OnnxTensorLike> input = Map.of("last_hidden_state", finalInputTensor);
-                        OrtSession.Result result = decoder.run(input);
-                        for (Map.Entry<String, OnnxValue> entry : result) {
-                            System.out.println("WADSGOIJ decoder output: " + entry);
-                            String key = entry.getKey();
-                            OnnxValue value = entry.getValue();
-                            if (value.getType() != OnnxValue.OnnxValueType.ONNX_TYPE_TENSOR) {
-                                System.err.println("ONNX ERROR: Value isn't in tensor.");
-                                throw new RuntimeException("Non-tensor value encountered for key: " + key);
-                            }
-                            float[][][][] ft = (float[][][][]) value.getValue();
-                            Bitmap bm = ConversionUtil.FloatArrayToImage(
-                                    ft,
-                                    ConversionUtil.stringToConversionMethod(
-                                            Objects.requireNonNull(outputMappings.getOrDefault(key, ""))
-                                    )
-                            );
-                            output.put(key, bm);
-                        }
-                        return null;
-                    });
+                        // the encoder's pinned buffer is read in place
+                        OrtSession.Result result = decoder.run(input, context, requested);
+                        recordDecoderTiming(head, runStart - submitTime, System.nanoTime() - runStart);
+                        return result;
+                    }));
                 }
-                int completedTasks = 0;
-                while (completedTasks < decoders.length) {
-                    Future<Void> future = completionService.take();
-                    completedTasks++;
+            } catch (RejectedExecutionException e) {
+                failure = new OrtException("Decoder workers have already been shut down.");
+            }
+            // wait for every head that was submitted, they read the encoder output and their results belong to the frame
+            boolean interrupted = false;
+            for (Future<OrtSession.Result> future : futures) {
+                while (true) {
                     try {
-                        future.get();
+                        context.addDecoderResult(future.get());
+                        break;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
                     } catch (ExecutionException e) {
-                        Objects.requireNonNull(e.getCause()).printStackTrace();
-                        executor.shutdownNow(); // Attempt to cancel remaining tasks
-                        return null;
+                        if (failure == null) {
+                            Throwable cause = Objects.requireNonNull(e.getCause());
+                            failure = cause instanceof OrtException ? (OrtException) cause : new OrtException(cause.toString());
+                        }
+                        break;
                     }
                 }
-            } catch (InterruptedException e) {
+            }
+            if (interrupted) {
                 Thread.currentThread().interrupt();
-                executor.shutdownNow();
-                return null;
-            } finally {
-                executor.shutdown();
             }
-            return output;
+            if (failure != null) {
+                throw failure;
+            }
         }
 
+        @Override
+        public void postprocess(FrameContext context) {
+            Map<String, Bitmap> output = new HashMap<>();
+            for (OrtSession.Result result : context.getDecoderResults()) {
+                output.putAll(resultToBitmaps(result, outputMappings));
+            }
+            lastOutputs.putAll(output);
+            for (String name : context.getReusedOutputs()) {
+                Bitmap last = lastOutputs.get(name);
+                if (last != null) {
+                    output.put(name, last);
+                }
+            }
+            context.setOutput(output);
+            context.closeResults();
+        }
+
+        @Override
+        public void recordFrame(FrameContext context) {
+            synchronized (dataLock) {
+                numFrames++;
+                double frameTime = context.getStageNs(InferencePipeline.STAGE_ENCODER);
+                double frameTimePP = System.nanoTime() - context.getCreatedNs();
+                if (numFrames == 1) {
+                    avgTime = frameTime;
+                    avgTimePP = frameTimePP;
+                } else {
+                    avgTime = ((avgTime * (numFrames - 1)) / numFrames) + (frameTime / numFrames);
+                    avgTimePP = ((avgTimePP * (numFrames - 1)) / numFrames) + (frameTimePP / numFrames);
+                }
+            }
+        }
+
+        @Override
         public HardwareMetrics finishExecuteAndMonitor() {
             synchronized (dataLock) {
                 started = false;
@@ -514,7 +679,7 @@ public class HardwareMonitor {
                 long memoryUsedBytes = endMetrics.memoryUsedBytes - startMetrics.memoryUsedBytes;
 
                 // return metrics
-                return new HardwareMetrics(
+                HardwareMetrics metrics = new HardwareMetrics(
                         avgExecution,
                         avgExecutionWithProcessing,
                         fps,
@@ -527,30 +692,362 @@ public class HardwareMonitor {
                         startBattery,
                         endBatteryStats
                 );
+                metrics.tensorAllocations = inputPool.getAllocations() - startTensorAllocations;
+                metrics.tensorPoolInUse = inputPool.getInUse();
+                metrics.outputTensorAllocations = outputPool.getAllocations() - startOutputAllocations;
+                metrics.outputTensorBytes = outputPool.getAllocatedBytes();
+                metrics.nativeHeapBytes = endMetrics.nativeHeapBytes;
+                metrics.nativeHeapDeltaBytes = endMetrics.nativeHeapBytes - startMetrics.nativeHeapBytes;
+                metrics.openOrtValues = FrameContext.getOpenValues();
+                metrics.decoderQueueWaitMs = new HashMap<>();
+                metrics.decoderRunMs = new HashMap<>();
+                metrics.decoderFps = new HashMap<>();
+                metrics.decoderSkipped = new HashMap<>();
+                for (int i = 0; i < decoders.length; i++) {
+                    int runs = Math.max(1, decoderRuns[i]);
+                    double runMs = decoderRunNs[i] / (runs * 1_000_000.0);
+                    metrics.decoderQueueWaitMs.put(decoderNames[i], decoderQueueWaitNs[i] / (runs * 1_000_000.0));
+                    metrics.decoderRunMs.put(decoderNames[i], runMs);
+                    metrics.decoderFps.put(decoderNames[i], decoderRuns[i] / (totalExecutionTime / 1_000));
+                    metrics.decoderSkipped.put(decoderNames[i], decoderSkips[i]);
+                    // a skipped run would have cost about as much as the runs that did happen
+                    metrics.decoderSavedMs += decoderSkips[i] * runMs;
+                }
+                if (gateEncoder || encoderSkips > 0) {
+                    metrics.encoderSkipped = encoderSkips;
+                    metrics.encoderSkipRate = encoderSkips / (double) Math.max(1, encoderSkips + encoderRuns);
+                    // a skipped run would have cost what an encoder run costs on average
+                    metrics.encoderSavedMs = encoderSkips * encoderRunNs / (Math.max(1, encoderRuns) * 1_000_000.0);
+                    // rough, the whole device's draw for the time the encoder would have run
+                    double avgVoltage = (startBattery.voltage + endBatteryStats.voltage) / 2.0;
+                    metrics.encoderEnergySavedMicroWattHours = Math.abs(
+                            endBatteryStats.current * avgVoltage * (metrics.encoderSavedMs / (1e6 * 3.6)) / 1000.0);
+                }
+                return metrics;
+            }
+        }
+
+        @Override
+        public List<Map<String, Bitmap>> runBatch(TensorPool.PooledTensor input, int batchSize, boolean convert)
+                throws OrtException {
+            // every image in a set is new, so rate policies and encoder gating don't apply
+            checkBatchSize(encoder, batchSize);
+            Map<String, ? extends OnnxTensorLike> inputs = Map.of(inputName, input.getTensor());
+            List<Map<String, Bitmap>> outputs = convert ? emptyOutputs(batchSize) : null;
+            try (OrtSession.Result encoded = encoderRequested == null ?
+                    encoder.run(inputs) : encoder.run(inputs, encoderRequested)) {
+                OnnxTensor features = encoderFeatures(encoded);
+                if (features == null) {
+                    throw new OrtException("Encoder output has no last_hidden_state.");
+                }
+                List<Set<String>> live = decoderLive;
+                List<Future<OrtSession.Result>> futures = new ArrayList<>();
+                OrtException failure = null;
+                try {
+                    for (int i = 0; i < decoders.length; i++) {
+                        Set<String> requested = live.get(i);
+                        if (requested.isEmpty()) {
+                            continue;
+                        }
+                        checkBatchSize(decoders[i], batchSize);
+                        OrtSession decoder = decoders[i];
+                        futures.add(decoderWorkers.submit(() ->
+                                decoder.run(Map.of("last_hidden_state", features), requested)));
+                    }
+                } catch (RejectedExecutionException e) {
+                    failure = new OrtException("Decoder workers have already been shut down.");
+                } catch (OrtException e) {
+                    failure = e;
+                }
+                // the heads read the encoder output, so it stays open until every one of them is done
+                boolean interrupted = false;
+                for (Future<OrtSession.Result> future : futures) {
+                    while (true) {
+                        try (OrtSession.Result result = future.get()) {
+                            if (convert && failure == null) {
+                                try {
+                                    splitBatch(result, outputMappings, outputs);
+                                } catch (RuntimeException e) {
+                                    failure = new OrtException(e.toString());
+                                }
+                            }
+                            break;
+                        } catch (InterruptedException e) {
+                            interrupted = true;
+                        } catch (ExecutionException e) {
+                            if (failure == null) {
+                                Throwable cause = Objects.requireNonNull(e.getCause());
+                                failure = cause instanceof OrtException ? (OrtException) cause : new OrtException(cause.toString());
+                            }
+                            break;
+                        }
+                    }
+                }
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+                if (failure != null) {
+                    throw failure;
+                }
+            }
+            return outputs;
+        }
+
+        private static OnnxTensor encoderFeatures(OrtSession.Result result) {
+            if (result == null) {
+                return null;
+            }
+            for (Map.Entry<String, OnnxValue> entry : result) {
+                if (Objects.equals(entry.getKey(), "last_hidden_state")) {
+                    return (OnnxTensor) entry.getValue();
+                }
+            }
+            return null;
+        }
+
+        private boolean reuseFeatures(FrameContext context, float[] signature) {
+            synchronized (featureLock) {
+                if (cachedFeatures == null ||
+                        ImageConversionUtil.signatureDistance(signature, cachedFeatures.signature) > gateThreshold) {
+                    return false;
+                }
+                // compared against the last encoded frame, so slow drift still adds up to a new encoder run
+                cachedFeatures.retain();
+                context.own(cachedFeatures::release);
+                context.setEncoderFeatures(cachedFeatures.tensor.getTensor());
+                return true;
+            }
+        }
+
+        private void cacheFeatures(FrameContext context, float[] signature) throws OrtException {
+            OnnxTensor features = encoderFeatures(context.getModelResult());
+            if (features == null) {
+                return;
+            }
+            // a pinned output is kept out of the pool with one more reference instead of being copied
+            TensorPool.PooledTensor kept = context.getPinned(features);
+            if (kept != null) {
+                kept.retain();
+            } else {
+                // ORT allocated it and it is closed with the frame's result, so the cache needs a copy
+                kept = featurePool.acquire(features.getInfo().getShape());
+                FloatBuffer source = features.getBufferRef()
+                        .filter(buffer -> buffer instanceof FloatBuffer)
+                        .map(buffer -> ((FloatBuffer) buffer).duplicate())
+                        .orElseGet(features::getFloatBuffer);
+                source.rewind();
+                FloatBuffer target = kept.getBuffer();
+                target.clear();
+                target.put(source);
+                target.rewind();
+            }
+            SharedFeatures fresh = new SharedFeatures(kept, signature.clone());
+            synchronized (featureLock) {
+                // frames still decoding the old copy hold their own reference to it
+                if (cachedFeatures != null) {
+                    cachedFeatures.release();
+                }
+                cachedFeatures = fresh;
+            }
+        }
+
+        private void dropCachedFeatures() {
+            synchronized (featureLock) {
+                if (cachedFeatures != null) {
+                    cachedFeatures.release();
+                    cachedFeatures = null;
+                }
+            }
+        }
+
+        private void loadGating() {
+            gateEncoder = prefs.getBoolean("encoder_gating", false);
+            try {
+                gateThreshold = Float.parseFloat(prefs.getString("encoder_gating_threshold", "2"));
+            } catch (NumberFormatException e) {
+                System.err.println("ERROR: INVALID ENCODER GATING THRESHOLD");
+                gateThreshold = 2;
+            }
+            if (!gateEncoder) {
+                dropCachedFeatures();
+            }
+        }
+
+        private void recordEncoderRun(long runNs, boolean skipped) {
+            synchronized (dataLock) {
+                if (skipped) {
+                    encoderSkips++;
+                } else {
+                    encoderRuns++;
+                    encoderRunNs += runNs;
+                }
+            }
+        }
+
+        private void recordDecoderSkip(int head) {
+            synchronized (dataLock) {
+                decoderSkips[head]++;
+            }
+        }
+
+        private RatePolicy[] loadDecoderPolicies() {
+            // a policy applies to the head that produces the named output
+            Map<String, RatePolicy> parsed = RatePolicy.parse(prefs.getString("decoder_rates", ""));
+            RatePolicy[] policies = new RatePolicy[decoders.length];
+            for (int i = 0; i < decoders.length; i++) {
+                policies[i] = RatePolicy.EVERY_FRAME;
+                for (String name : decoders[i].getOutputNames()) {
+                    if (parsed.containsKey(name)) {
+                        policies[i] = parsed.get(name);
+                        break;
+                    }
+                }
             }
+            return policies;
         }
 
-        public int getNumFrames() { return numFrames; }
+        private void recordDecoderTiming(int head, long queueWaitNs, long runNs) {
+            synchronized (dataLock) {
+                decoderQueueWaitNs[head] += queueWaitNs;
+                decoderRunNs[head] += runNs;
+                decoderRuns[head]++;
+            }
+        }
+
+        @Override
+        public void close() {
+            // called once the pipeline feeding this monitor has drained
+            decoderWorkers.shutdown();
+            dropCachedFeatures();
+            inputPool.close();
+            outputPool.close();
+            featurePool.close();
+        }
 
+        @Override
+        public int getNumFrames() {
+            synchronized (dataLock) {
+                return numFrames;
+            }
+        }
+
+        @Override
         public double getCurrentTime() {
             return (System.nanoTime() - startTime) / 1_000_000_000;
         }
 
-        public boolean hasStarted() { return started; }
+        @Override
+        public boolean hasStarted() {
+            synchronized (dataLock) {
+                return started;
+            }
+        }
+
+        @Override
+        public void setStarted(boolean newStarted) {
+            synchronized (dataLock) {
+                started = newStarted;
+            }
+        }
+
+        @Override
+        public void setSettings(Settings settings) {
+            boolean resized = !sameSize(this.settings, settings);
+            this.settings = settings;
+            // a new input size changes the feature map, the cached one no longer fits
+            dropCachedFeatures();
+            if (resized) {
+                // buffers of the old size are not coming back
+                inputPool.trim();
+                featurePool.trim();
+            }
+        }
+
+        @Override
+        public void reloadOutputMappings() {
+            outputMappings = loadOutputMappings();
+            decoderLive = computeDecoderLive(outputMappings);
+            decoderPolicies = loadDecoderPolicies();
+            loadGating();
+            // every head runs on the next frame, so no output shows an old mapping for long
+            runAllHeadsNext();
+        }
+
+        public void resetDecoderState() {
+            // only while nothing is in flight, e.g. after the warm-up frames, whose outputs must never be shown again
+            runAllHeadsNext();
+            lastOutputs.clear();
+            decodedFrames = 0;
+            dropCachedFeatures();
+        }
+
+        private void runAllHeadsNext() {
+            for (int i = 0; i < decoders.length; i++) {
+                decoderLastRunNs.set(i, 0);
+            }
+        }
+
+        public void setDecoderDecimation(int decimation) { decoderDecimation = Math.max(1, decimation); }
+
+        public void setActiveDecoders(boolean[] active) {
+            // applied to the next frame that reaches the decoders, sessions stay loaded
+            decoderActive = active.clone();
+            decoderLive = computeDecoderLive(outputMappings);
+        }
+
+        public int getLiveDecoderCount() {
+            int count = 0;
+            for (Set<String> live : decoderLive) {
+                count += live.isEmpty() ? 0 : 1;
+            }
+            return count;
+        }
+
+        private List<Set<String>> computeDecoderLive(Map<String, String> mappings) {
+            List<Set<String>> live = new ArrayList<>();
+            for (int i = 0; i < decoders.length; i++) {
+                live.add(decoderActive[i] ? liveOutputs(decoders[i].getOutputNames(), mappings) : Collections.emptySet());
+            }
+            return live;
+        }
+
+        public TensorPool getInputPool() { return inputPool; }
+
+        private static class SharedFeatures {
+            private final TensorPool.PooledTensor tensor;
+            private final float[] signature;
+            // the cache holds one reference, every frame reusing the features holds another
+            private final AtomicInteger references = new AtomicInteger(1);
+
+            private SharedFeatures(TensorPool.PooledTensor tensor, float[] signature) {
+                this.tensor = tensor;
+                this.signature = signature;
+            }
+
+            private void retain() { references.incrementAndGet(); }
 
-        public void setStarted(boolean newStarted) { started = newStarted; }
+            private void release() {
+                if (references.decrementAndGet() == 0) {
+                    tensor.release();
+                }
+            }
+        }
     }
 
-    public static class PyTorchModelMonitor {
+    public static class PyTorchModelMonitor implements ModelMonitor {
         private final Module model;
         private OrtSession session;
         private final OrtEnvironment env;
-        private final Settings settings;
+        private final TensorPool inputPool;
+        private final TensorPool outputPool;
+        private volatile PinnedOutputs outputs;
+        private volatile Set<String> liveOutputs;
+        private volatile Settings settings;
         private final String inputName;
         private final HardwareMonitor hardwareMonitor;
         private final boolean outputDict;
         private long lastExecutionTime = 0;
-        private final Map<String, String> outputMappings;
+        private volatile Map<String, String> outputMappings;
         private HardwareMetrics startMetrics;
         private BatteryStats startBattery;
         private double startTime;
@@ -559,12 +1056,17 @@ public class HardwareMonitor {
         private int numFrames;
         private double avgTime;
         private double avgTimePP;
+        private long startTensorAllocations;
+        private long startOutputAllocations;
 
         public PyTorchModelMonitor(Module model, Settings settings, Context context) {
             this.model = model;
             this.settings = settings;
             this.session = null;
             this.env = null;
+            this.inputPool = null;
+            this.outputPool = null;
+            this.outputs = null;
             this.hardwareMonitor = new HardwareMonitor(context);
             this.inputName = "input";
             outputDict = false;
@@ -575,24 +1077,29 @@ public class HardwareMonitor {
             Gson gson = new Gson();
             Type type = new TypeToken<HashMap<String, String>>(){}.getType();
             outputMappings = gson.fromJson(json, type);
+            liveOutputs = session == null ? null : liveOutputs(session.getOutputNames(), outputMappings);
             started = false;
         }
 
-        public PyTorchModelMonitor(OrtSession model, OrtEnvironment env, Settings settings, Context context) {
+        public PyTorchModelMonitor(OrtSession model, OrtEnvironment env, Settings settings, Context context) throws OrtException {
             this.model = null;
             this.settings = settings;
             this.session = model;
             this.env = env;
+            this.inputPool = new TensorPool(env);
+            this.outputPool = new TensorPool(env);
             this.hardwareMonitor = new HardwareMonitor(context);
             this.inputName = "input";
             outputDict = true;
             if (prefs == null) {
                 prefs = PreferenceManager.getDefaultSharedPreferences(this.hardwareMonitor.context);
             }
+            this.outputs = new PinnedOutputs(model, outputPool, prefs.getBoolean("pinned_outputs", true));
             String json = prefs.getString("output_option_mappings", "");
             Gson gson = new Gson();
             Type type = new TypeToken<HashMap<String, String>>(){}.getType();
             outputMappings = gson.fromJson(json, type);
+            liveOutputs = session == null ? null : liveOutputs(session.getOutputNames(), outputMappings);
             started = false;
         }
 
@@ -601,25 +1108,30 @@ public class HardwareMonitor {
                 OrtEnvironment env,
                 Settings settings,
                 String inputName,
-                Context context) {
+                Context context) throws OrtException {
             this.model = null;
             this.settings = settings;
             this.session = model;
             this.env = env;
+            this.inputPool = new TensorPool(env);
+            this.outputPool = new TensorPool(env);
             this.hardwareMonitor = new HardwareMonitor(context);
             this.inputName = inputName;
             outputDict = true;
             if (prefs == null) {
                 prefs = PreferenceManager.getDefaultSharedPreferences(this.hardwareMonitor.context);
             }
+            this.outputs = new PinnedOutputs(model, outputPool, prefs.getBoolean("pinned_outputs", true));
             String json = prefs.getString("output_option_mappings", "");
             Gson gson = new Gson();
             Type type = new TypeToken<HashMap<String, String>>(){}.getType();
             outputMappings = gson.fromJson(json, type);
+            liveOutputs = session == null ? null : liveOutputs(session.getOutputNames(), outputMappings);
             started = false;
         }
 
-        public void startExecuteAndMonitor() {
+        @Override
+        public synchronized void startExecuteAndMonitor() {
             started = true;
             startMetrics = hardwareMonitor.getBaseMetrics();
             startBattery = hardwareMonitor.getBatteryStats();
@@ -628,78 +1140,116 @@ public class HardwareMonitor {
             avgTime = 0;
             avgTimePP = 0;
             startCpuUsage = startMetrics.cpuUsagePercent;
+            startTensorAllocations = inputPool == null ? 0 : inputPool.getAllocations();
+            startOutputAllocations = outputPool == null ? 0 : outputPool.getAllocations();
         }
 
-        public Map<String, Bitmap> runInference(Bitmap input) throws OrtException {
-            if (!started) {
-                System.out.println("CANNOT RUN INFERENCE WITHOUT STARTING METRICS");
-                return null;
+        @Override
+        public void preprocess(FrameContext context) throws OrtException {
+            CameraFrame frame = context.getFrame();
+            Settings s = settings;
+            if (outputDict) {
+                context.setInputTensor(ImageConversionUtil.frameToTensor(frame, inputPool, s));
+            } else {
+                context.setPtInput(ConversionUtil.bitmapToTensor(frame.getBitmap(), s.getMean(), s.getStd()));
             }
-            double startInfTime;
-            double endInfTime;
-            double startPPTime = System.nanoTime();
-            numFrames++;
-            // Execute model
-            Map<String, Bitmap> output = new HashMap<>();
+        }
+
+        @Override
+        public void infer(FrameContext context) throws OrtException {
             if (outputDict) {
                 if (session == null) {
-                    System.err.println("ERROR: Session should not be null.");
-                    return null;
+                    throw new OrtException("Session should not be null.");
                 }
-                OnnxTensor inp = ImageConversionUtil.bitmapToTensor(input, env);
-                Map<String, ? extends OnnxTensorLike> inputs = Map.of(inputName, inp);
-                startInfTime = System.nanoTime();
-                OrtSession.Result outputs = session.run(inputs);
-                endInfTime = System.nanoTime();
-                for (Map.Entry<String, OnnxValue> entry : outputs) {
-                    String key = entry.getKey();
-                    OnnxValue value = entry.getValue();
-                    if (value.getType() == OnnxValue.OnnxValueType.ONNX_TYPE_TENSOR) {
-                        float[][][][] ft = (float[][][][]) value.getValue();
-                        Bitmap bm = ConversionUtil.FloatArrayToImage(
-                                ft,
-                                ConversionUtil.stringToConversionMethod(
-                                        Objects.requireNonNull(outputMappings.getOrDefault(key, ""))
-                                )
-                        );
-                        output.put(key, bm);
+                try {
+                    Map<String, ? extends OnnxTensorLike> inputs = Map.of(inputName, context.getInputTensor().getTensor());
+                    PinnedOutputs pinned = outputs;
+                    Set<String> live = liveOutputs;
+                    if (live != null && live.isEmpty()) {
+                        // every output is switched off, there is nothing to compute
+                        return;
+                    }
+                    if (pinned != null) {
+                        context.setModelResult(pinned.run(inputs, context, live));
                     } else {
-                        System.err.println("ONNX ERROR: Value isn't in tensor.");
-                        return null;
+                        context.setModelResult(live == null ? session.run(inputs) : session.run(inputs, live));
                     }
+                } finally {
+                    context.releaseInput();
                 }
-                System.out.println("ONNX: " + output.toString());
             } else {
                 if (model == null) {
-                    System.err.println("ERROR: Model should not be null.");
+                    throw new OrtException("Model should not be null.");
+                }
+                Tensor out_val = model.forward(IValue.from(context.getPtInput())).toTensor();
+                context.releaseInput();
+                context.setPtOutput(out_val);
+            }
+        }
+
+        @Override
+        public List<Map<String, Bitmap>> runBatch(TensorPool.PooledTensor input, int batchSize, boolean convert)
+                throws OrtException {
+            if (!outputDict || session == null) {
+                // TorchScript outputs can't be split per image yet
+                throw new OrtException("Batched runs need an ONNX model.");
+            }
+            checkBatchSize(session, batchSize);
+            Set<String> live = liveOutputs;
+            if (live != null && live.isEmpty()) {
+                return convert ? emptyOutputs(batchSize) : null;
+            }
+            // pinned outputs are sized for one frame, batches let ORT allocate
+            Map<String, ? extends OnnxTensorLike> inputs = Map.of(inputName, input.getTensor());
+            try (OrtSession.Result result = live == null ? session.run(inputs) : session.run(inputs, live)) {
+                if (!convert) {
                     return null;
                 }
-                Tensor inp = ConversionUtil.bitmapToTensor(input);
-                startInfTime = System.nanoTime();
-                Tensor out_val = model.forward(IValue.from(inp)).toTensor();
-                endInfTime = System.nanoTime();
+                List<Map<String, Bitmap>> outputs = emptyOutputs(batchSize);
+                splitBatch(result, outputMappings, outputs);
+                return outputs;
+            }
+        }
+
+        @Override
+        public void postprocess(FrameContext context) {
+            if (outputDict) {
+                OrtSession.Result result = context.getModelResult();
+                context.setOutput(result == null ? new HashMap<>() : resultToBitmaps(result, outputMappings));
+            } else {
+                Map<String, Bitmap> output = new HashMap<>();
                 String key = "output";
-                output.put(key, ConversionUtil.TensorToImage(
-                        out_val,
-                        ConversionUtil.stringToConversionMethod(
-                                Objects.requireNonNull(outputMappings.getOrDefault(key, ""))
-                        ),
-                        input.getWidth(),
-                        input.getHeight())
-                );
+                if (!OUTPUT_OFF.equals(outputMappings.get(key))) {
+                    output.put(key, ConversionUtil.TensorToImage(
+                            context.getPtOutput(),
+                            ConversionUtil.stringToConversionMethod(
+                                    Objects.requireNonNull(outputMappings.getOrDefault(key, ""))
+                            ),
+                            context.getFrame().getWidth(),
+                            context.getFrame().getHeight())
+                    );
+                }
+                context.setOutput(output);
             }
-            long endPPTime = System.nanoTime();
+            context.closeResults();
+        }
+
+        @Override
+        public synchronized void recordFrame(FrameContext context) {
+            numFrames++;
+            double frameTime = context.getStageNs(InferencePipeline.STAGE_ENCODER);
+            double frameTimePP = System.nanoTime() - context.getCreatedNs();
             if (numFrames == 1) {
-                avgTime = endInfTime - startInfTime;
-                avgTimePP = endPPTime - startPPTime;
+                avgTime = frameTime;
+                avgTimePP = frameTimePP;
             } else {
-                avgTime = ((avgTime * (numFrames - 1)) / numFrames) + ((endInfTime - startInfTime) / numFrames);
-                avgTimePP = ((avgTimePP * (numFrames - 1)) / numFrames) + ((endPPTime - startPPTime) / numFrames);
+                avgTime = ((avgTime * (numFrames - 1)) / numFrames) + (frameTime / numFrames);
+                avgTimePP = ((avgTimePP * (numFrames - 1)) / numFrames) + (frameTimePP / numFrames);
             }
-            return output;
         }
 
-        public HardwareMetrics finishExecuteAndMonitor() {
+        @Override
+        public synchronized HardwareMetrics finishExecuteAndMonitor() {
             started = false;
 
             // Get post-execution metrics
@@ -716,7 +1266,7 @@ public class HardwareMonitor {
             long memoryUsedBytes = endMetrics.memoryUsedBytes - startMetrics.memoryUsedBytes;
 
             // return metrics
-            return new HardwareMetrics(
+            HardwareMetrics metrics = new HardwareMetrics(
                     avgExecution,
                     avgExecutionWithProcessing,
                     fps,
@@ -729,17 +1279,47 @@ public class HardwareMonitor {
                     startBattery,
                     endBatteryStats
             );
+            if (inputPool != null) {
+                metrics.tensorAllocations = inputPool.getAllocations() - startTensorAllocations;
+                metrics.tensorPoolInUse = inputPool.getInUse();
+                metrics.outputTensorAllocations = outputPool.getAllocations() - startOutputAllocations;
+                metrics.outputTensorBytes = outputPool.getAllocatedBytes();
+            }
+            metrics.nativeHeapBytes = endMetrics.nativeHeapBytes;
+            metrics.nativeHeapDeltaBytes = endMetrics.nativeHeapBytes - startMetrics.nativeHeapBytes;
+            metrics.openOrtValues = FrameContext.getOpenValues();
+            return metrics;
         }
 
-        public int getNumFrames() { return numFrames; }
+        @Override
+        public synchronized int getNumFrames() { return numFrames; }
 
+        @Override
         public double getCurrentTime() {
             return (System.nanoTime() - startTime) / 1_000_000_000;
         }
 
-        public boolean hasStarted() { return started; }
+        @Override
+        public synchronized boolean hasStarted() { return started; }
+
+        @Override
+        public synchronized void setStarted(boolean newStarted) { started = newStarted; }
 
-        public void setStarted(boolean newStarted) { started = newStarted; }
+        @Override
+        public void setSettings(Settings settings) {
+            boolean resized = !sameSize(this.settings, settings);
+            this.settings = settings;
+            if (resized && inputPool != null) {
+                inputPool.trim();
+            }
+        }
+
+        @Override
+        public void reloadOutputMappings() {
+            outputMappings = loadOutputMappings();
+            OrtSession s = session;
+            liveOutputs = s == null ? null : liveOutputs(s.getOutputNames(), outputMappings);
+        }
 
         public HardwareMetrics executeAndMonitor(Bitmap input) throws OrtException {
             System.out.println("ONNX: " + Debug.getRuntimeStats());
@@ -759,26 +1339,33 @@ public class HardwareMonitor {
                     System.err.println("ERROR: Session should not be null.");
                     return null;
                 }
-                OnnxTensor inp = ImageConversionUtil.bitmapToTensor(input, env);
-                Map<String, ? extends OnnxTensorLike> inputs = Map.of(inputName, inp);
+                TensorPool.PooledTensor inp = ImageConversionUtil.bitmapToTensor(input, inputPool, settings);
+                Map<String, ? extends OnnxTensorLike> inputs = Map.of(inputName, inp.getTensor());
+                OrtSession.Result outputs;
                 startTime = System.nanoTime();
-                OrtSession.Result outputs = session.run(inputs);
+                try {
+                    outputs = session.run(inputs);
+                } finally {
+                    inp.release();
+                }
                 endTime = System.nanoTime();
-                for (Map.Entry<String, OnnxValue> entry : outputs) {
-                    String key = entry.getKey();
-                    OnnxValue value = entry.getValue();
-                    if (value.getType() == OnnxValue.OnnxValueType.ONNX_TYPE_TENSOR) {
-                        float[][][][] ft = (float[][][][]) value.getValue();
-                        Bitmap bm = ConversionUtil.FloatArrayToImage(
-                                ft,
-                                ConversionUtil.stringToConversionMethod(
-                                        Objects.requireNonNull(outputMappings.getOrDefault(key, ""))
-                                )
-                        );
-                        output.put(key, bm);
-                    } else {
-                        System.err.println("ONNX ERROR: Value isn't in tensor.");
-                        return null;
+                // outputs are copied into bitmaps, the native result goes right away
+                try (OrtSession.Result results = outputs) {
+                    for (Map.Entry<String, OnnxValue> entry : results) {
+                        String key = entry.getKey();
+                        OnnxValue value = entry.getValue();
+                        if (value.getType() == OnnxValue.OnnxValueType.ONNX_TYPE_TENSOR) {
+                            Bitmap bm = ConversionUtil.OnnxTensorToImage(
+                                    (OnnxTensor) value,
+                                    ConversionUtil.stringToConversionMethod(
+                                            Objects.requireNonNull(outputMappings.getOrDefault(key, ""))
+                                    )
+                            );
+                            output.put(key, bm);
+                        } else {
+                            System.err.println("ONNX ERROR: Value isn't in tensor.");
+                            return null;
+                        }
                     }
                 }
                 System.out.println("ONNX: " + output.toString());
@@ -787,7 +1374,7 @@ public class HardwareMonitor {
                     System.err.println("ERROR: Model should not be null.");
                     return null;
                 }
-                Tensor inp = ConversionUtil.bitmapToTensor(input);
+                Tensor inp = ConversionUtil.bitmapToTensor(input, settings.getMean(), settings.getStd());
                 startTime = System.nanoTime();
                 Tensor out_val = model.forward(IValue.from(inp)).toTensor();
                 endTime = System.nanoTime();
@@ -839,6 +1426,30 @@ public class HardwareMonitor {
 
         public void changeSession(OrtSession newSession) {
             session = newSession;
+            liveOutputs = liveOutputs(newSession.getOutputNames(), outputMappings);
+            if (outputPool == null) {
+                return;
+            }
+            try {
+                outputs = new PinnedOutputs(newSession, outputPool, prefs.getBoolean("pinned_outputs", true));
+            } catch (OrtException e) {
+                // ORT allocates the outputs until the next session
+                System.err.println("ONNX ERROR: Could not pin outputs: " + e);
+                outputs = null;
+            }
+        }
+
+        @Override
+        public void close() {
+            // in-flight runs keep their tensors, they are freed when released
+            if (inputPool != null) {
+                inputPool.close();
+            }
+            if (outputPool != null) {
+                outputPool.close();
+            }
         }
+
+        public TensorPool getInputPool() { return inputPool; }
     }
 }
@@ -0,0 +1,249 @@
+package com.example.arbenchapp.monitor;
+
+import com.example.arbenchapp.datatypes.preprocessing.FrameContext;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+public class InferencePipeline {
+    public static final String STAGE_PREPROCESS = "preprocess";
+    public static final String STAGE_ENCODER = "encoder";
+    public static final String STAGE_DECODERS = "decoders";
+    public static final String STAGE_POSTPROCESS = "postprocess";
+    public static final String STAGE_PUBLISH = "publish";
+
+    public interface Stage {
+        void process(FrameContext context) throws Exception;
+    }
+
+    private static class StageRunner {
+        final String name;
+        final Stage stage;
+        final BlockingQueue<FrameContext> queue;
+        final int workers;
+        int exited = 0;
+        long runNs = 0;
+        long waitNs = 0;
+        int frames = 0;
+
+        StageRunner(String name, Stage stage, int depth, int workers) {
+            this.name = name;
+            this.stage = stage;
+            this.queue = new ArrayBlockingQueue<>(Math.max(1, depth));
+            this.workers = Math.max(1, workers);
+        }
+    }
+
+    public static class Builder {
+        private final String name;
+        private final List<StageRunner> stages = new ArrayList<>();
+        private ProcessingResultListener listener;
+        private Runnable onTerminated;
+
+        public Builder(String name) {
+            this.name = name;
+        }
+
+        public Builder addStage(String stageName, Stage stage, int depth, int workers) {
+            stages.add(new StageRunner(stageName, stage, depth, workers));
+            return this;
+        }
+
+        public Builder setListener(ProcessingResultListener listener) {
+            this.listener = listener;
+            return this;
+        }
+
+        public Builder setOnTerminated(Runnable onTerminated) {
+            // runs once every accepted frame has drained after close()
+            this.onTerminated = onTerminated;
+            return this;
+        }
+
+        public InferencePipeline build() {
+            if (stages.isEmpty()) {
+                throw new IllegalStateException("Pipeline needs at least one stage.");
+            }
+            return new InferencePipeline(this);
+        }
+    }
+
+    // marks the end of the stream, passed down once a stage has no workers left
+    private static final FrameContext END = new FrameContext(null, false);
+
+    private final List<StageRunner> stages;
+    private final ProcessingResultListener listener;
+    private final Runnable onTerminated;
+    private volatile boolean closed = false;
+
+    private InferencePipeline(Builder builder) {
+        this.stages = new ArrayList<>(builder.stages);
+        this.listener = builder.listener;
+        this.onTerminated = builder.onTerminated;
+        for (int i = 0; i < stages.size(); i++) {
+            StageRunner runner = stages.get(i);
+            for (int w = 0; w < runner.workers; w++) {
+                int index = i;
+                Thread t = new Thread(() -> work(index), builder.name + "-" + runner.name + "-" + w);
+                t.start();
+            }
+        }
+    }
+
+    public boolean offer(FrameContext context) {
+        // non-blocking, false when the first stage is full or the pipeline is closed
+        synchronized (this) {
+            return !closed && stages.get(0).queue.offer(context);
+        }
+    }
+
+    public boolean put(FrameContext context) throws InterruptedException {
+        // polls so close() can never slip its end marker in ahead of a blocked caller
+        StageRunner first = stages.get(0);
+        while (true) {
+            synchronized (this) {
+                if (closed) {
+                    return false;
+                }
+                if (first.queue.offer(context)) {
+                    return true;
+                }
+            }
+            Thread.sleep(1);
+        }
+    }
+
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        StageRunner first = stages.get(0);
+        for (int w = 0; w < first.workers; w++) {
+            putQuietly(first.queue, END);
+        }
+    }
+
+    public boolean isClosed() { return closed; }
+
+    public void drainStageTimings(Map<String, Double> waitMs, Map<String, Double> runMs) {
+        // averages since the last call, in pipeline order
+        for (StageRunner runner : stages) {
+            synchronized (runner) {
+                int frames = Math.max(1, runner.frames);
+                waitMs.put(runner.name, runner.waitNs / (frames * 1_000_000.0));
+                runMs.put(runner.name, runner.runNs / (frames * 1_000_000.0));
+                runner.waitNs = 0;
+                runner.runNs = 0;
+                runner.frames = 0;
+            }
+        }
+    }
+
+    public Map<String, Integer> getQueueDepths() {
+        Map<String, Integer> depths = new LinkedHashMap<>();
+        for (StageRunner runner : stages) {
+            depths.put(runner.name, runner.queue.size());
+        }
+        return depths;
+    }
+
+    private void work(int index) {
+        StageRunner runner = stages.get(index);
+        StageRunner next = index + 1 < stages.size() ? stages.get(index + 1) : null;
+        while (true) {
+            FrameContext context;
+            try {
+                context = runner.queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            if (context == END) {
+                break;
+            }
+            long readyNs = index == 0 ? context.getCreatedNs() : context.getStageEndNs(stages.get(index - 1).name);
+            context.markStart(runner.name);
+            try {
+                runner.stage.process(context);
+            } catch (Throwable t) {
+                // an Error here would otherwise end this stage's only worker, and with it the pipeline
+                context.markEnd(runner.name);
+                dropped(context, t);
+                continue;
+            }
+            context.markEnd(runner.name);
+            synchronized (runner) {
+                runner.waitNs += context.getStageStartNs(runner.name) - readyNs;
+                runner.runNs += context.getStageNs(runner.name);
+                runner.frames++;
+            }
+            if (next != null) {
+                putQuietly(next.queue, context);
+            } else if (listener != null) {
+                try {
+                    listener.onProcessingComplete(context);
+                } catch (Throwable t) {
+                    dropped(context, t);
+                }
+            }
+        }
+        exited(index);
+    }
+
+    private void exited(int index) {
+        StageRunner runner = stages.get(index);
+        boolean last;
+        synchronized (runner) {
+            runner.exited++;
+            last = runner.exited == runner.workers;
+        }
+        if (!last) {
+            return;
+        }
+        // everything this stage accepted has been passed on, so the next stage can finish too
+        if (index + 1 < stages.size()) {
+            StageRunner next = stages.get(index + 1);
+            for (int w = 0; w < next.workers; w++) {
+                putQuietly(next.queue, END);
+            }
+        } else if (onTerminated != null) {
+            onTerminated.run();
+        }
+    }
+
+    private void dropped(FrameContext context, Throwable cause) {
+        System.err.println("PIPELINE ERROR: Frame " + context.getFrameId() + " dropped: " + cause);
+        try {
+            context.close();
+            if (listener != null) {
+                // frees the frame's in-flight slot
+                listener.onProcessingDropped(context, cause);
+            }
+        } catch (Throwable t) {
+            System.err.println("PIPELINE ERROR: Could not drop frame " + context.getFrameId() + ": " + t);
+        }
+    }
+
+    private static void putQuietly(BlockingQueue<FrameContext> queue, FrameContext context) {
+        // a frame must never be lost between stages, so keep trying and restore the interrupt afterwards
+        boolean interrupted = false;
+        while (true) {
+            try {
+                queue.put(context);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -3,50 +3,89 @@ package com.example.arbenchapp.monitor;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.graphics.Bitmap;
+import android.graphics.Color;
 
 import androidx.preference.PreferenceManager;
 
 import com.example.arbenchapp.MainActivity;
+import com.example.arbenchapp.datatypes.preprocessing.BatchResult;
+import com.example.arbenchapp.datatypes.preprocessing.CameraFrame;
+import com.example.arbenchapp.datatypes.preprocessing.FrameContext;
 import com.example.arbenchapp.datatypes.preprocessing.MTLBoxStruct;
 import com.example.arbenchapp.datatypes.preprocessing.ModelType;
+import com.example.arbenchapp.datatypes.preprocessing.ResizeMethod;
+import com.example.arbenchapp.datatypes.preprocessing.Resolution;
+import com.example.arbenchapp.datatypes.preprocessing.SessionConfig;
 import com.example.arbenchapp.datatypes.preprocessing.Settings;
 import com.example.arbenchapp.datatypes.preprocessing.SplitInfo;
+import com.example.arbenchapp.datatypes.preprocessing.ThermalLimits;
+import com.example.arbenchapp.util.AssetExtractor;
 import com.example.arbenchapp.util.ImageConversionUtil;
+import com.example.arbenchapp.util.MappedModel;
+import com.example.arbenchapp.util.OptimizedModelCache;
+import com.example.arbenchapp.util.ProviderUtil;
+import com.example.arbenchapp.util.SessionPool;
+import com.example.arbenchapp.util.TensorPool;
+import com.example.arbenchapp.util.ThreadTuner;
 
 import org.pytorch.Module;
 
 import java.io.File;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.IOException;
 import java.lang.ref.WeakReference;
-import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 import ai.onnxruntime.*;
-import ai.onnxruntime.providers.NNAPIFlags;
 
 public class MTLBox implements ProcessingResultListener {
 
-    private final Settings settings;
+    private volatile Settings settings;
     private final File file;
     private HardwareMonitor.PyTorchModelMonitor monitor;
     private HardwareMonitor.HardwareMetrics metrics;
     private final ModelType modelType;
     private final MTLBoxStruct default_mbs;
-    private final int secondsBetweenMetrics;
-    private final int framesBetweenMetrics;
+    private volatile int secondsBetweenMetrics;
+    private volatile int framesBetweenMetrics;
     private final Context context;
     private SplitInfo splitInfo;
     private final String inputName;
-    private double startTime;
     private final WeakReference<MainActivity> mainActivity;
+    private volatile ResizeMethod resizeMethod;
+    private final TensorPool resizePool = new TensorPool(OrtEnvironment.getEnvironment());
+    private final List<OrtSession> sessions = new ArrayList<>();
+    private final Map<String, String> sessionProviders = new LinkedHashMap<>();
+    private final Map<String, String> sessionCreation = new LinkedHashMap<>();
+    private final List<File> sessionFiles = new ArrayList<>();
+    // decoder_selection entries in the order their sessions were loaded
+    private final List<String> loadedDecoders = new ArrayList<>();
+    private final boolean pipelined;
+    // dataset runs take one metrics window for the whole set instead of one per frame
+    private volatile boolean headless = false;
+    private final int maxFramesInFlight;
+    // null when the governor is off or the model input has a fixed size
+    private volatile ResolutionGovernor governor;
+    private volatile ThermalLimits thermalLimits = ThermalLimits.NONE;
+    private long lastSubmitNs = 0;
+    private InferencePipeline pipeline;
+    private long lastPublishedFrameId = -1;
+    // out-of-order results dropped since the last metrics window, expected with several frames in flight
+    private int staleFrames = 0;
+    private int warmUpRunsDone = 0;
+    private double warmUpMs = 0;
+    private double firstInferenceMs = 0;
+    // batch and dataset runs hold the box, a close asked for meanwhile waits for the last of them
+    private int users = 0;
+    private boolean closeRequested = false;
 
-    private double lastTime = 0;
+    private static final long RUN_TIMEOUT_MS = 60_000;
 
     public MTLBox(Settings settings, Context context, MainActivity mainActivity) {
         this.settings = settings;
@@ -62,8 +101,15 @@ public class MTLBox implements ProcessingResultListener {
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
         secondsBetweenMetrics = Integer.parseInt(prefs.getString("update_freq_time", "5"));
         framesBetweenMetrics = Integer.parseInt(prefs.getString("update_freq_frames", "1"));
+        resizeMethod = ResizeMethod.valueOf(prefs.getString("resize_method", "BILINEAR"));
+        int warmUpRuns = Integer.parseInt(prefs.getString("warmup_runs", "3"));
+        SessionPool.getInstance().setBudgetBytes(Long.parseLong(prefs.getString("session_cache_mb", "512")) * 1024 * 1024);
+        OptimizedModelCache.getInstance().setDirectory(new File(context.getFilesDir(), "optimized_models"));
+        OptimizedModelCache.getInstance().setBudgetBytes(Long.parseLong(prefs.getString("optimized_cache_mb", "512")) * 1024 * 1024);
         boolean splitModel = prefs.getBoolean("split_inference", false);
-        boolean pipelinedModel = prefs.getBoolean("split_pipeline", false);
+        pipelined = prefs.getBoolean("split_pipeline", false);
+        maxFramesInFlight = pipelined ?
+                Math.max(1, Math.min(4, Integer.parseInt(prefs.getString("max_frames_in_flight", "2")))) : 1;
         String encoderName = prefs.getString("encoder_selection", "");
         Set<String> decoderNames = prefs.getStringSet("decoder_selection", new HashSet<>());
 
@@ -76,9 +122,11 @@ public class MTLBox implements ProcessingResultListener {
             if (!encoderName.endsWith(".onnx")) {
                 encoderName += ".onnx";
             }
-            File encoderFile = getFile(context, encoderName, "encoders/");
-            File[] decoderFiles = new File[decoderNames.size()];
-            int pos = 0;
+            String[] assetPaths = new String[decoderNames.size() + 1];
+            String[] fileNames = new String[decoderNames.size() + 1];
+            assetPaths[0] = "encoders/" + encoderName;
+            fileNames[0] = encoderName;
+            int pos = 1;
             for (String decoderName : decoderNames) {
                 char slash = '/';
                 int index = decoderName.indexOf(slash);
@@ -89,52 +137,46 @@ public class MTLBox implements ProcessingResultListener {
                 if (!decoderName.endsWith(".onnx")) {
                     splitDecoderName += ".onnx";
                 }
-                decoderFiles[pos] = getFile(context, splitDecoderName, "decoders/");
-                System.out.println("ORTEXCEPTION decoder " + pos + ": " + decoderFiles[pos].getPath());
+                assetPaths[pos] = "decoders/" + splitDecoderName;
+                fileNames[pos] = splitDecoderName;
+                loadedDecoders.add(decoderName);
                 pos++;
             }
+            File[] extracted = getFiles(context, assetPaths, fileNames);
+            File encoderFile = extracted[0];
+            File[] decoderFiles = Arrays.copyOfRange(extracted, 1, extracted.length);
             System.out.println("ORTEXCEPTION encoder: " + encoderFile.getPath());
             System.out.println("ORTEXCEPTION decoders: " + Arrays.toString(decoderFiles));
             OrtEnvironment env = OrtEnvironment.getEnvironment();
             try {
-                // warm up conversion util
-                ImageConversionUtil.bitmapToTensor(default_bm, env);
                 // create sessions
-                OrtSession encoderSession = createSession(encoderFile, env);
+                OrtSession encoderSession = createSession(encoderFile, env, 1);
                 OrtSession[] decoderSessions = new OrtSession[decoderFiles.length];
                 for (int i = 0; i < decoderFiles.length; i++) {
                     System.out.println("ORTEXCEPTION decoder at " + i + ": " + decoderFiles[i].getPath());
-                    decoderSessions[i] = createSession(decoderFiles[i], env);
-                }
-                HardwareMonitor.SplitModelMonitor splitModelMonitor;
-                if (pipelinedModel) {
-                    splitModelMonitor = new HardwareMonitor.SplitModelMonitor(
-                            encoderSession,
-                            decoderSessions,
-                            env,
-                            viewSettings(),
-                            inputName,
-                            this,
-                            context
-                    );
-                } else {
-                    splitModelMonitor = new HardwareMonitor.SplitModelMonitor(
-                            encoderSession,
-                            decoderSessions,
-                            env,
-                            viewSettings(),
-                            inputName,
-                            context
-                    );
+                    // all decoders run at once, so each is tuned for its share of the cores
+                    decoderSessions[i] = createSession(decoderFiles[i], env, decoderFiles.length);
                 }
+                HardwareMonitor.SplitModelMonitor splitModelMonitor = new HardwareMonitor.SplitModelMonitor(
+                        encoderSession,
+                        decoderSessions,
+                        env,
+                        viewSettings(),
+                        inputName,
+                        context
+                );
                 this.splitInfo = new SplitInfo(encoderFile, decoderFiles, splitModelMonitor);
                 this.metrics = new HardwareMonitor.HardwareMetrics(context);
             } catch (OrtException e) {
                 System.err.println("ORTEXCEPTION: " + e);
+                // pieces that did load are still counted in the session pool
+                releaseSessions();
                 this.splitInfo = null;
                 this.metrics = null;
             }
-
+            loadGovernor(prefs);
+            this.pipeline = buildPipeline();
+            warmUp(warmUpRuns);
             return;
         }
 
@@ -158,15 +200,14 @@ public class MTLBox implements ProcessingResultListener {
             this.modelType = ModelType.ONNX;
             OrtEnvironment env = OrtEnvironment.getEnvironment();
             try {
-                // warm up conversion util
-                ImageConversionUtil.bitmapToTensor(default_bm, env);
                 // create session
-                OrtSession session = createNNSession(file, env);
+                OrtSession session = createSession(file, env, 1);
                 // OrtSession session = env.createSession(file.getPath(), new OrtSession.SessionOptions());
                 this.monitor = new HardwareMonitor.PyTorchModelMonitor(session, env, viewSettings(), context);
                 this.metrics = new HardwareMonitor.HardwareMetrics(context);
             } catch (OrtException e) {
                 System.err.println("ORTEXCEPTION: " + e);
+                releaseSessions();
                 this.monitor = null;
                 this.metrics = null;
             }
@@ -176,35 +217,362 @@ public class MTLBox implements ProcessingResultListener {
             this.monitor = null;
             this.metrics = null;
         }
+        loadGovernor(prefs);
+        this.pipeline = buildPipeline();
+        warmUp(warmUpRuns);
     }
 
     public Settings viewSettings() {
         return this.settings;
     }
 
-    public MTLBoxStruct run(Bitmap bitmap) {
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-        switch (modelType) {
-            case PT:
-                return runFromPt(bitmap);
-            case ONNX:
-                return runFromOnnx(bitmap);
-            case SPLIT:
-                if (!prefs.getBoolean("split_pipeline", false)) {
-                    return runSeqSplit(bitmap);
-                } else {
-                    if (lastTime == 0) {
-                        lastTime = System.nanoTime();
-                    }
-                    runSplit(bitmap);
-                    return null;
+    public int getMaxFramesInFlight() { return maxFramesInFlight; }
+
+    private void warmUp(int runs) {
+        // pays for NNAPI compilation, kernel selection and arena growth before the first real frame does
+        if (pipeline == null || runs <= 0 || !viewSettings().isDimsInit()) {
+            return;
+        }
+        Bitmap dummy = Bitmap.createBitmap(viewSettings().getImgWidth(), viewSettings().getImgHeight(), Bitmap.Config.ARGB_8888);
+        dummy.eraseColor(Color.GRAY);
+        long start = System.nanoTime();
+        for (int i = 0; i < runs; i++) {
+            long runStart = System.nanoTime();
+            if (run(dummy) == default_mbs) {
+                System.err.println("WARM UP ERROR: Run " + i + " failed, stopping warm up.");
+                break;
+            }
+            if (i == 0) {
+                firstInferenceMs = (System.nanoTime() - runStart) / 1_000_000.0;
+            }
+            warmUpRunsDone++;
+        }
+        warmUpMs = (System.nanoTime() - start) / 1_000_000.0;
+        // none of this belongs in the benchmark numbers, and no decoder output from the gray frame is reused
+        resetMetricsRecording();
+        if (splitInfo != null) {
+            splitInfo.getMonitor().resetDecoderState();
+        }
+        pipeline.drainStageTimings(new LinkedHashMap<>(), new LinkedHashMap<>());
+        System.out.println("WARM UP: " + warmUpRunsDone + " runs in " + warmUpMs + " ms, first " + firstInferenceMs + " ms");
+    }
+
+    public void applyMetricsSettings(SharedPreferences prefs) {
+        secondsBetweenMetrics = Integer.parseInt(prefs.getString("update_freq_time", "5"));
+        framesBetweenMetrics = Integer.parseInt(prefs.getString("update_freq_frames", "1"));
+        SessionPool.getInstance().setBudgetBytes(Long.parseLong(prefs.getString("session_cache_mb", "512")) * 1024 * 1024);
+        OptimizedModelCache.getInstance().setBudgetBytes(Long.parseLong(prefs.getString("optimized_cache_mb", "512")) * 1024 * 1024);
+        loadGovernor(prefs);
+        // the current window was measured under the old settings
+        resetMetricsRecording();
+    }
+
+    public void applyOutputMappings() {
+        HardwareMonitor.ModelMonitor m = activeMonitor();
+        if (m != null) {
+            // may switch outputs or whole decoders on or off, which changes what a frame costs
+            m.reloadOutputMappings();
+            resetMetricsRecording();
+        }
+    }
+
+    public boolean applyDecoderSelection(SharedPreferences prefs) {
+        // dropping decoders only switches them off, adding one needs a session this box doesn't have
+        if (modelType != ModelType.SPLIT || splitInfo == null || !prefs.getBoolean("split_inference", false)) {
+            return false;
+        }
+        Set<String> selected = prefs.getStringSet("decoder_selection", new HashSet<>());
+        if (selected.isEmpty() || !loadedDecoders.containsAll(selected)) {
+            return false;
+        }
+        boolean[] active = new boolean[loadedDecoders.size()];
+        for (int i = 0; i < active.length; i++) {
+            active[i] = selected.contains(loadedDecoders.get(i));
+        }
+        splitInfo.getMonitor().setActiveDecoders(active);
+        resetMetricsRecording();
+        return true;
+    }
+
+    public void applySettings(Settings settings, SharedPreferences prefs) {
+        this.settings = settings;
+        resizeMethod = ResizeMethod.valueOf(prefs.getString("resize_method", "BILINEAR"));
+        HardwareMonitor.ModelMonitor m = activeMonitor();
+        if (m != null) {
+            m.setSettings(settings);
+        }
+        // a size picked by hand is where the governor starts over
+        loadGovernor(prefs);
+        resetMetricsRecording();
+    }
+
+    private void loadGovernor(SharedPreferences prefs) {
+        Settings s = viewSettings();
+        ResolutionGovernor g = s.isDimsInit() ? ResolutionGovernor.fromPreferences(
+                prefs, new Resolution(s.getImgWidth(), s.getImgHeight()), maxFramesInFlight) : null;
+        if (g != null && !hasDynamicInputSize()) {
+            System.err.println("GOVERNOR: Model input has a fixed size, the resolution governor stays off.");
+            g = null;
+        }
+        governor = g;
+        applyResolutionCeiling();
+    }
+
+    public void applyThermalLimits(ThermalLimits limits) {
+        // called by the thermal governor whenever its level or policies change, and for every new box
+        thermalLimits = limits;
+        if (splitInfo != null) {
+            splitInfo.getMonitor().setDecoderDecimation(limits.getDecoderDecimation());
+        }
+        if (limits.getResolutionSteps() > 0 && governor == null) {
+            System.err.println("THERMAL: Dropping the resolution needs the resolution governor and a dynamic input size.");
+        }
+        applyResolutionCeiling();
+    }
+
+    private void applyResolutionCeiling() {
+        ResolutionGovernor g = governor;
+        HardwareMonitor.ModelMonitor m = activeMonitor();
+        if (g != null && m != null && g.setCeiling(thermalLimits.getResolutionSteps()) != null) {
+            switchResolution(m, g);
+        }
+    }
+
+    private boolean hasDynamicInputSize() {
+        // one session only serves every size if height and width were exported as dynamic axes
+        if (sessions.isEmpty()) {
+            return false;
+        }
+        try {
+            for (NodeInfo info : sessions.get(0).getInputInfo().values()) {
+                if (info.getInfo() instanceof TensorInfo) {
+                    long[] shape = ((TensorInfo) info.getInfo()).getShape();
+                    return shape.length == 4 && shape[2] < 0 && shape[3] < 0;
                 }
-            case ERROR:
-                System.err.println("PREVIOUS ERROR IN DETERMINING MODEL TYPE");
+            }
+        } catch (OrtException e) {
+            System.err.println("ORTEXCEPTION: " + e);
+        }
+        return false;
+    }
+
+    private synchronized void switchResolution(HardwareMonitor.ModelMonitor m, ResolutionGovernor g) {
+        // same sessions, only the tensors change size, frames already in flight finish at the old one
+        // the governor's current size, so a switch from publish and one from the thermal governor settle on the same size
+        Resolution next = g.getCurrent();
+        Settings s = viewSettings();
+        if (s.getImgWidth() == next.getWidth() && s.getImgHeight() == next.getHeight()) {
+            return;
+        }
+        Settings resized = new Settings(next.getHeight(), next.getWidth(), s.getMean(), s.getStd());
+        this.settings = resized;
+        m.setSettings(resized);
+        resizePool.trim();
+        MainActivity activity = mainActivity.get();
+        if (activity != null) {
+            activity.onResolutionChanged(resized);
+        }
+    }
+
+    public synchronized boolean retain() {
+        // false once the box is closing, the caller must not use it then
+        if (closeRequested) {
+            return false;
+        }
+        users++;
+        return true;
+    }
+
+    public void release() {
+        synchronized (this) {
+            users--;
+            if (users > 0 || !closeRequested) {
+                return;
+            }
+        }
+        shutdown();
+    }
+
+    public void close() {
+        // called when this box is replaced, frames already accepted finish before the workers and buffers go
+        synchronized (this) {
+            if (closeRequested) {
+                return;
+            }
+            closeRequested = true;
+            if (users > 0) {
+                return;
+            }
+        }
+        shutdown();
+    }
+
+    private void shutdown() {
+        if (pipeline != null) {
+            pipeline.close();
+        } else {
+            resizePool.close();
+            releaseSessions();
+        }
+    }
+
+    public MTLBoxStruct run(Bitmap bitmap) {
+        return run(new CameraFrame(bitmap));
+    }
+
+    public MTLBoxStruct run(CameraFrame frame) {
+        // blocks until the frame has gone through every stage
+        if (pipeline == null) {
+            System.err.println("PREVIOUS ERROR IN DETERMINING MODEL TYPE");
+            frame.release();
+            return default_mbs;
+        }
+        startMetricsIfNeeded();
+        FrameContext frameContext = new FrameContext(frame, true);
+        try {
+            if (!pipeline.put(frameContext)) {
+                System.err.println("ERROR: Pipeline already closed.");
+                frame.release();
                 return default_mbs;
-            default:
-                System.err.println("UNKNOWN MODEL TYPE");
+            }
+            if (!frameContext.awaitCompletion(RUN_TIMEOUT_MS)) {
+                System.err.println("ERROR: Timed out waiting for the pipeline.");
                 return default_mbs;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return default_mbs;
+        }
+        MTLBoxStruct result = frameContext.getResult();
+        return result == null ? default_mbs : result;
+    }
+
+    public FrameContext enqueue(Bitmap bitmap) throws InterruptedException {
+        // like run, but the caller waits for the frame, so several can be in flight at once
+        if (pipeline == null) {
+            return null;
+        }
+        startMetricsIfNeeded();
+        FrameContext frameContext = new FrameContext(new CameraFrame(bitmap), true);
+        if (!pipeline.put(frameContext)) {
+            frameContext.getFrame().release();
+            return null;
+        }
+        return frameContext;
+    }
+
+    public void setHeadless(boolean headless) {
+        this.headless = headless;
+        resetMetricsRecording();
+        if (pipeline != null) {
+            pipeline.drainStageTimings(new LinkedHashMap<>(), new LinkedHashMap<>());
+        }
+    }
+
+    public HardwareMonitor.HardwareMetrics finishMetrics() {
+        // closes the current window, for headless runs that is every frame since setHeadless
+        HardwareMonitor.ModelMonitor m = activeMonitor();
+        if (m == null || pipeline == null || !m.hasStarted()) {
+            return null;
+        }
+        return collectMetrics(m);
+    }
+
+    public List<String> getStageNames() {
+        return pipeline == null ? new ArrayList<>() : new ArrayList<>(pipeline.getQueueDepths().keySet());
+    }
+
+    public boolean submit(CameraFrame frame) {
+        // camera path, the result goes to the activity from the last stage
+        // a dataset run owns the metrics window and stage timings while it lasts
+        if (pipeline == null || headless) {
+            frame.release();
+            return false;
+        }
+        double fpsCap = thermalLimits.getFpsCap();
+        if (fpsCap > 0) {
+            // thermal frame cap, frames arriving early are dropped before any work is done on them
+            long now = System.nanoTime();
+            if (now - lastSubmitNs < 1_000_000_000L / fpsCap) {
+                frame.release();
+                return false;
+            }
+            lastSubmitNs = now;
+        }
+        startMetricsIfNeeded();
+        if (!pipeline.offer(new FrameContext(frame, false))) {
+            frame.release();
+            return false;
+        }
+        return true;
+    }
+
+    public BatchResult runBatches(List<Bitmap> images, int[] batchSizes) {
+        // offline image sets, outside the frame pipeline and its metrics window
+        BatchResult report = new BatchResult(images, new LinkedHashMap<>(sessionProviders).toString());
+        HardwareMonitor.ModelMonitor m = activeMonitor();
+        Settings s = viewSettings();
+        if (m == null || images.isEmpty() || !s.isDimsInit()) {
+            report.setError(m == null ? "No model loaded" : images.isEmpty() ? "No images" : "No input resolution set");
+            return report;
+        }
+        for (int batchSize : batchSizes) {
+            if (batchSize < 1 || batchSize > images.size()) {
+                report.addFailure(batchSize, "needs at least " + batchSize + " images");
+                continue;
+            }
+            try {
+                // the first run with a new shape pays for allocations and kernel selection, so it isn't counted
+                timeBatch(m, images.subList(0, batchSize), s);
+                int batches = images.size() / batchSize;
+                long inferenceNs = 0;
+                long start = System.nanoTime();
+                for (int b = 0; b < batches; b++) {
+                    inferenceNs += timeBatch(m, images.subList(b * batchSize, (b + 1) * batchSize), s);
+                }
+                report.addTiming(batchSize, batches * batchSize, (System.nanoTime() - start) / 1_000_000.0,
+                        inferenceNs / 1_000_000.0);
+            } catch (OrtException | RuntimeException e) {
+                System.err.println("BATCH ERROR: Batch size " + batchSize + " failed: " + e);
+                report.addFailure(batchSize, e.getMessage());
+            }
+        }
+        // outputs come from one more untimed pass at the fastest size, converting them would skew the timings
+        int best = report.getBestBatchSize();
+        if (best > 0) {
+            try {
+                for (int start = 0; start < images.size(); start += best) {
+                    List<Bitmap> batch = images.subList(start, Math.min(images.size(), start + best));
+                    report.addOutputs(runBatchOutputs(m, batch, s));
+                }
+            } catch (OrtException | RuntimeException e) {
+                System.err.println("BATCH ERROR: Could not convert outputs: " + e);
+                report.setError("Could not convert outputs: " + e.getMessage());
+            }
+        }
+        return report;
+    }
+
+    private long timeBatch(HardwareMonitor.ModelMonitor m, List<Bitmap> images, Settings s) throws OrtException {
+        TensorPool.PooledTensor input = ImageConversionUtil.imagesToTensor(
+                images, s.getImgWidth(), s.getImgHeight(), resizeMethod, resizePool, s);
+        try {
+            long start = System.nanoTime();
+            m.runBatch(input, images.size(), false);
+            return System.nanoTime() - start;
+        } finally {
+            input.release();
+        }
+    }
+
+    private List<Map<String, Bitmap>> runBatchOutputs(HardwareMonitor.ModelMonitor m, List<Bitmap> images, Settings s)
+            throws OrtException {
+        TensorPool.PooledTensor input = ImageConversionUtil.imagesToTensor(
+                images, s.getImgWidth(), s.getImgHeight(), resizeMethod, resizePool, s);
+        try {
+            return m.runBatch(input, images.size(), true);
+        } finally {
+            input.release();
         }
     }
 
@@ -225,183 +593,204 @@ public class MTLBox implements ProcessingResultListener {
     }
 
     public File getFile(Context context, String filename, String prefix) {
-        System.out.println("FILFELNAME: " + context.getFilesDir());
+        System.out.println("FILFELNAME prefix + filename: " + prefix + filename);
         // clearFiles(context);
-        File file = new File(context.getFilesDir(), filename);
-        if (!file.exists()) {
-            System.out.println("FILFELNAME prefix + filename: " + prefix + filename);
-            try (InputStream is = context.getAssets().open(prefix + filename);
-                 OutputStream os = Files.newOutputStream(file.toPath())) {
-                byte[] buf = new byte[1024];
-                int read;
-                while ((read = is.read(buf)) != -1) {
-                    os.write(buf, 0, read);
-                }
-            } catch (Exception e) {
-                System.err.println("Exception occurred with getFile: " + e.toString());
-            }
-        }
-        return file;
-    }
-
-    public int resetMetricsRecording() {
-        // called when the camera is paused
-        if (monitor == null) {
-            if (splitInfo == null) {
-                return 1;
-            } else if (splitInfo.getMonitor() == null) {
-                return 1;
-            } else {
-                splitInfo.getMonitor().setStarted(false);
+        try {
+            File mapped = mapModel(context, prefix + filename, filename);
+            if (mapped != null) {
+                return mapped;
             }
-        } else {
-            monitor.setStarted(false);
+            return AssetExtractor.extract(context, prefix + filename, filename);
+        } catch (Exception e) {
+            System.err.println("Exception occurred with getFile: " + e.toString());
+            return new File(context.getFilesDir(), filename);
         }
-        return 0;
     }
 
-    private MTLBoxStruct runFromPt(Bitmap bitmap) {
+    public File[] getFiles(Context context, String[] assetPaths, String[] fileNames) {
         try {
-            HardwareMonitor.HardwareMetrics res = monitor.executeAndMonitor(bitmap);
-            Double mtm = res.executionTimeMs;
-            Map<String, Bitmap> out = res.output;
-            if (out == null) {
-                System.err.println("ERROR: Output map is null.");
-                return null;
+            File[] files = new File[fileNames.length];
+            List<Integer> toExtract = new ArrayList<>();
+            for (int i = 0; i < fileNames.length; i++) {
+                files[i] = mapModel(context, assetPaths[i], fileNames[i]);
+                if (files[i] == null) {
+                    toExtract.add(i);
+                }
+            }
+            String[] extractPaths = new String[toExtract.size()];
+            String[] extractNames = new String[toExtract.size()];
+            for (int i = 0; i < toExtract.size(); i++) {
+                extractPaths[i] = assetPaths[toExtract.get(i)];
+                extractNames[i] = fileNames[toExtract.get(i)];
             }
-            if (out.get("output") == null) {
-                System.err.println("ERROR: Output map doesn't contain output field.");
-                return null;
+            File[] extracted = AssetExtractor.extractAll(context, extractPaths, extractNames);
+            for (int i = 0; i < toExtract.size(); i++) {
+                files[toExtract.get(i)] = extracted[i];
             }
-            return new MTLBoxStruct(out, bitmap, mtm, res);
+            return files;
         } catch (Exception e) {
-            System.err.println("ERROR: " + e.getMessage());
-            return null;
+            // whatever did extract is still usable, missing files fail when their session is created
+            System.err.println("Exception occurred with getFiles: " + e.toString());
+            File[] files = new File[fileNames.length];
+            for (int i = 0; i < fileNames.length; i++) {
+                files[i] = new File(context.getFilesDir(), fileNames[i]);
+            }
+            return files;
         }
     }
 
-    private MTLBoxStruct runFromOnnx(Bitmap bitmap) {
-        if (monitor == null) {
-            return default_mbs;
+    private File mapModel(Context context, String assetPath, String fileName) throws IOException {
+        // ORT models stored uncompressed in the APK are mapped in place, PyTorch and compressed assets still need a file
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        if (!prefs.getBoolean("mmap_models", true) || !(fileName.endsWith(".onnx") || fileName.endsWith(".ort"))) {
+            return null;
         }
-        if (!monitor.hasStarted()) {
-            monitor.startExecuteAndMonitor();
+        return MappedModel.map(context, assetPath, fileName);
+    }
+
+    public int resetMetricsRecording() {
+        // called when the camera is paused
+        HardwareMonitor.ModelMonitor m = activeMonitor();
+        if (m == null) {
+            return 1;
         }
-        double startTime = System.nanoTime();
-        Map<String, Bitmap> output;
-        try {
-            if (!viewSettings().isDimsInit()) {
-                System.err.println("ONNX: IMAGE DIMENSIONS NOT SPECIFIED IN SETTINGS!");
-                return default_mbs;
-            }
-            if (bitmap.getWidth() != viewSettings().getImgWidth() ||
-                bitmap.getHeight() != viewSettings().getImgHeight()) {
-                Bitmap scaled = Bitmap.createScaledBitmap(
-                        bitmap,
-                        viewSettings().getImgWidth(),
-                        viewSettings().getImgHeight(),
-                        true
-                );
-                output = monitor.runInference(scaled);
-            } else {
-                output = monitor.runInference(bitmap);
-            }
-        } catch (OrtException e) {
-            System.err.println("ONNX ORTEXCEPTION: " + e.getMessage());
-            return default_mbs;
+        m.setStarted(false);
+        return 0;
+    }
+
+    private CameraFrame fitToSettings(CameraFrame frame) throws OrtException {
+        // settings can be swapped while a frame is in flight, so read them once
+        Settings s = viewSettings();
+        // camera frames converted straight to tensors are already at the model resolution
+        if (frame.getWidth() == s.getImgWidth() &&
+                frame.getHeight() == s.getImgHeight()) {
+            return frame;
         }
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-        if (monitor.getCurrentTime() > secondsBetweenMetrics ||
-                monitor.getNumFrames() >= framesBetweenMetrics ||
-                !prefs.getBoolean("use_camera", false)) {
-            HardwareMonitor.HardwareMetrics hardwareMetrics = monitor.finishExecuteAndMonitor();
-            return new MTLBoxStruct(output, bitmap, hardwareMetrics.executionTimeMs, hardwareMetrics);
+        TensorPool.PooledTensor resized = ImageConversionUtil.resizeToTensor(
+                frame.getBitmap(),
+                s.getImgWidth(),
+                s.getImgHeight(),
+                resizeMethod,
+                resizePool,
+                s
+        );
+        frame.release();
+        return new CameraFrame(resized, s.getImgWidth(), s.getImgHeight(), s);
+    }
+
+    private HardwareMonitor.ModelMonitor activeMonitor() {
+        if (monitor != null) {
+            return monitor;
         }
-        return new MTLBoxStruct(output, bitmap, (System.nanoTime() - startTime) / 1_000_000);
+        return splitInfo == null ? null : splitInfo.getMonitor();
     }
 
-    private void runSplit(Bitmap bitmap) {
-        if (splitInfo == null) {
-            System.err.println("ERROR RUNNING SPLIT: Split Info cannot be null.");
-            return;
+    private void startMetricsIfNeeded() {
+        HardwareMonitor.ModelMonitor m = activeMonitor();
+        if (m != null && !m.hasStarted()) {
+            m.startExecuteAndMonitor();
         }
-        if (splitInfo.getMonitor() == null) {
-            System.err.println("ERROR RUNNING SPLIT: Split Info must have a monitor.");
-            return;
+    }
+
+    private InferencePipeline buildPipeline() {
+        HardwareMonitor.ModelMonitor m = activeMonitor();
+        if (m == null) {
+            return null;
         }
-        if (!splitInfo.getMonitor().hasStarted()) {
-            splitInfo.getMonitor().startExecuteAndMonitor();
+        // every frame in flight can be waiting in front of the same stage
+        int depth = maxFramesInFlight;
+        InferencePipeline.Builder builder = new InferencePipeline.Builder(modelType.name().toLowerCase())
+                .setListener(this)
+                .setOnTerminated(() -> {
+                    m.close();
+                    resizePool.close();
+                    releaseSessions();
+                })
+                .addStage(InferencePipeline.STAGE_PREPROCESS, frameContext -> preprocess(m, frameContext), depth, 1)
+                .addStage(InferencePipeline.STAGE_ENCODER, m::infer, depth, 1);
+        if (modelType == ModelType.SPLIT) {
+            builder.addStage(InferencePipeline.STAGE_DECODERS, splitInfo.getMonitor()::decode, depth, 1);
         }
-        try {
+        return builder
+                .addStage(InferencePipeline.STAGE_POSTPROCESS, m::postprocess, depth, 1)
+                .addStage(InferencePipeline.STAGE_PUBLISH, frameContext -> publish(m, frameContext), depth, 1)
+                .build();
+    }
+
+    private void preprocess(HardwareMonitor.ModelMonitor m, FrameContext frameContext) throws OrtException {
+        CameraFrame frame = frameContext.getFrame();
+        if (modelType == ModelType.PT) {
+            frameContext.setInputBitmap(frame.getBitmap());
+        } else {
             if (!viewSettings().isDimsInit()) {
-                System.err.println("ONNX: IMAGE DIMENSIONS NOT SPECIFIED IN SETTINGS!");
-                return;
-            }
-            if (bitmap.getWidth() != viewSettings().getImgWidth() ||
-                    bitmap.getHeight() != viewSettings().getImgHeight()) {
-                Bitmap scaled = Bitmap.createScaledBitmap(
-                        bitmap,
-                        viewSettings().getImgWidth(),
-                        viewSettings().getImgHeight(),
-                        true
-                );
-                System.out.println("uyoabdsfilun: Queue run pre-call");
-                splitInfo.getMonitor().queueRun(scaled);
-            } else {
-                splitInfo.getMonitor().queueRun(bitmap);
+                throw new OrtException("Image dimensions not specified in settings.");
             }
-        } catch (OrtException e) {
-            System.err.println("ONNX ORTEXCEPTION: " + e.getMessage());
+            frameContext.setFrame(fitToSettings(frame));
+            frameContext.setInputBitmap(frame.getCachedBitmap());
         }
+        m.preprocess(frameContext);
     }
 
-    private MTLBoxStruct runSeqSplit(Bitmap bitmap) {
-        System.out.println("WADSGOIJ runSplit");
-        if (splitInfo == null) {
-            return default_mbs;
-        }
-        if (splitInfo.getMonitor() == null) {
-            return default_mbs;
+    private void publish(HardwareMonitor.ModelMonitor m, FrameContext frameContext) {
+        m.recordFrame(frameContext);
+        ResolutionGovernor g = governor;
+        if (g != null && !headless && !frameContext.isSynchronous()) {
+            if (g.record(frameContext.getElapsedMs()) != null) {
+                switchResolution(m, g);
+            }
         }
-        if (!splitInfo.getMonitor().hasStarted()) {
-            splitInfo.getMonitor().startExecuteAndMonitor();
+        Map<String, Bitmap> output = frameContext.getOutput();
+        Bitmap input = frameContext.getInputBitmap();
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        if (!headless && (m.getCurrentTime() > secondsBetweenMetrics ||
+                m.getNumFrames() >= framesBetweenMetrics ||
+                !prefs.getBoolean("use_camera", false))) {
+            HardwareMonitor.HardwareMetrics hardwareMetrics = collectMetrics(m);
+            frameContext.setResult(new MTLBoxStruct(output, input, hardwareMetrics.executionTimeMs, hardwareMetrics));
+        } else {
+            frameContext.setResult(new MTLBoxStruct(output, input, frameContext.getElapsedMs()));
         }
-        startTime = System.nanoTime();
-        Map<String, Bitmap> output;
-        try {
-            if (!viewSettings().isDimsInit()) {
-                System.err.println("ONNX: IMAGE DIMENSIONS NOT SPECIFIED IN SETTINGS!");
-                return default_mbs;
-            }
-            if (bitmap.getWidth() != viewSettings().getImgWidth() ||
-                    bitmap.getHeight() != viewSettings().getImgHeight()) {
-                Bitmap scaled = Bitmap.createScaledBitmap(
-                        bitmap,
-                        viewSettings().getImgWidth(),
-                        viewSettings().getImgHeight(),
-                        true
-                );
-                output = splitInfo.getMonitor().run(scaled);
-            } else {
-                output = splitInfo.getMonitor().run(bitmap);
+        frameContext.close();
+    }
+
+    private HardwareMonitor.HardwareMetrics collectMetrics(HardwareMonitor.ModelMonitor m) {
+        HardwareMonitor.HardwareMetrics hardwareMetrics = m.finishExecuteAndMonitor();
+        hardwareMetrics.stageWaitMs = new LinkedHashMap<>();
+        hardwareMetrics.stageRunMs = new LinkedHashMap<>();
+        pipeline.drainStageTimings(hardwareMetrics.stageWaitMs, hardwareMetrics.stageRunMs);
+        hardwareMetrics.executionProviders = sessionProviders;
+        hardwareMetrics.sessionCreation = sessionCreation;
+        hardwareMetrics.mappedModelBytes = new LinkedHashMap<>();
+        hardwareMetrics.residentModelBytes = new LinkedHashMap<>();
+        for (File modelFile : sessionFiles) {
+            MappedModel mapped = MappedModel.get(modelFile);
+            if (mapped != null) {
+                hardwareMetrics.mappedModelBytes.put(modelFile.getName(), mapped.getMappedBytes());
+                hardwareMetrics.residentModelBytes.put(modelFile.getName(), mapped.getResidentBytes());
             }
-        } catch (OrtException e) {
-            System.err.println("ONNX ORTEXCEPTION: " + e.getMessage());
-            return default_mbs;
         }
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-        if (splitInfo.getMonitor().getCurrentTime() > secondsBetweenMetrics ||
-                splitInfo.getMonitor().getNumFrames() >= framesBetweenMetrics ||
-                !prefs.getBoolean("use_camera", false)) {
-            HardwareMonitor.HardwareMetrics hardwareMetrics = splitInfo.getMonitor().finishExecuteAndMonitor();
-            return new MTLBoxStruct(output, bitmap, hardwareMetrics.executionTimeMs, hardwareMetrics);
+        synchronized (this) {
+            hardwareMetrics.staleFramesSkipped = staleFrames;
+            staleFrames = 0;
+        }
+        hardwareMetrics.warmUpRuns = warmUpRunsDone;
+        hardwareMetrics.warmUpMs = warmUpMs;
+        hardwareMetrics.firstInferenceMs = firstInferenceMs;
+        Settings s = viewSettings();
+        hardwareMetrics.inputResolution = s.getImgWidth() + "x" + s.getImgHeight();
+        ResolutionGovernor g = governor;
+        if (g != null) {
+            hardwareMetrics.governorTargetMs = g.getTargetMs();
+            hardwareMetrics.governorP90Ms = g.getP90();
+            hardwareMetrics.governorSwitches = g.getSwitches();
         }
-        return new MTLBoxStruct(output, bitmap, (System.nanoTime() - startTime) / 1_000_000);
+        ThermalLimits limits = thermalLimits;
+        hardwareMetrics.thermalLimits = ThermalLimits.levelName(limits.getLevel()) + ", " + limits;
+        return hardwareMetrics;
     }
 
     @Override
     public void requestNextFrame() {
-        System.out.println("uyoabdsfilun: Request next frame");
         MainActivity activity = mainActivity.get();
         if (activity != null) {
             activity.unlock();
@@ -409,60 +798,61 @@ public class MTLBox implements ProcessingResultListener {
     }
 
     @Override
-    public void onProcessingComplete(Bitmap input, Map<String, Bitmap> output) {
-        double gap;
-        double newTime = System.nanoTime();
-        gap = (newTime - lastTime) / 1_000_000;
-        lastTime = newTime;
-        System.out.println("uyoabdsfilun: Processing complete - " + gap + " ms");
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-        if (splitInfo.getMonitor().getCurrentTime() > secondsBetweenMetrics ||
-                splitInfo.getMonitor().getNumFrames() >= framesBetweenMetrics ||
-                !prefs.getBoolean("use_camera", false)) {
-            HardwareMonitor.HardwareMetrics hardwareMetrics = splitInfo.getMonitor().finishExecuteAndMonitor();
-            MainActivity activity = mainActivity.get();
-            if (activity != null) {
-                activity.updateDisplay(
-                        new MTLBoxStruct(output, input, hardwareMetrics.executionTimeMs, hardwareMetrics)
-                );
-            }
+    public void onProcessingComplete(FrameContext frameContext) {
+        frameContext.complete();
+        if (frameContext.isSynchronous()) {
             return;
         }
+        boolean stale;
+        synchronized (this) {
+            // never let an older frame overwrite a newer one on screen
+            stale = frameContext.getFrameId() < lastPublishedFrameId;
+            if (!stale) {
+                lastPublishedFrameId = frameContext.getFrameId();
+            } else {
+                staleFrames++;
+            }
+        }
         MainActivity activity = mainActivity.get();
-        if (activity != null) {
-            activity.updateDisplay(
-                    new MTLBoxStruct(output, input, (System.nanoTime() - startTime) / 1_000_000)
-            );
+        if (activity != null && !stale) {
+            activity.updateDisplay(frameContext.getResult());
         }
+        requestNextFrame();
     }
 
-    private OrtSession createNNSession(File file, OrtEnvironment env) {
-        try {
-            OrtSession.SessionOptions options = new OrtSession.SessionOptions();
-            EnumSet<NNAPIFlags> nnapiFlags = EnumSet.of(
-                    NNAPIFlags.CPU_DISABLED,
-                    NNAPIFlags.USE_FP16
-            );
-            options.addNnapi(nnapiFlags);
-            options.setOptimizationLevel(OrtSession.SessionOptions.OptLevel.ALL_OPT);
-            return env.createSession(file.getPath(), options);
-        } catch (OrtException e) {
-            System.err.println("ORTEXCEPTION: " + e);
-            return createSession(file, env);
+    @Override
+    public void onProcessingDropped(FrameContext frameContext, Throwable cause) {
+        frameContext.complete();
+        if (!frameContext.isSynchronous()) {
+            requestNextFrame();
         }
     }
 
-    private OrtSession createSession(File file, OrtEnvironment env) {
-        try {
-            OrtSession.SessionOptions options = new OrtSession.SessionOptions();
-            options.setOptimizationLevel(OrtSession.SessionOptions.OptLevel.BASIC_OPT);
-            options.setIntraOpNumThreads(1);
-            options.setInterOpNumThreads(1);
-            return env.createSession(file.getPath(), options);
-        } catch (OrtException e) {
-            System.err.println("ORTEXCEPTION: " + e);
-            return null;
+    private OrtSession createSession(File file, OrtEnvironment env, int concurrency) throws OrtException {
+        // the provider (NNAPI, XNNPACK or CPU) comes from the settings, or the fastest one measured on this device
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        SessionConfig config = ProviderUtil.select(context, env, file, viewSettings(), prefs);
+        config = ThreadTuner.apply(context, env, file, config, viewSettings(), concurrency, prefs);
+        sessionProviders.put(file.getName(), config.getProvider() + " (" + config.getIntraOpThreads() + " intra / " +
+                config.getInterOpThreads() + " inter threads)");
+        return acquireSession(file, env, config);
+    }
+
+    private OrtSession acquireSession(File file, OrtEnvironment env, SessionConfig config) throws OrtException {
+        // sessions are shared process-wide, a rebuilt box with the same models gets them back without reloading
+        OrtSession session = SessionPool.getInstance().acquire(env, file, config);
+        sessions.add(session);
+        sessionFiles.add(file);
+        sessionCreation.put(file.getName(), SessionPool.getInstance().getCreation(session));
+        return session;
+    }
+
+    private void releaseSessions() {
+        for (OrtSession session : sessions) {
+            SessionPool.getInstance().release(session);
         }
+        sessions.clear();
+        sessionFiles.clear();
     }
 
 }
@@ -1,10 +1,9 @@
 package com.example.arbenchapp.monitor;
 
-import android.graphics.Bitmap;
-
-import java.util.Map;
+import com.example.arbenchapp.datatypes.preprocessing.FrameContext;
 
 public interface ProcessingResultListener {
-    void onProcessingComplete(Bitmap input, Map<String, Bitmap> output);
+    void onProcessingComplete(FrameContext context);
+    void onProcessingDropped(FrameContext context, Throwable cause);
     void requestNextFrame();
 }
@@ -0,0 +1,154 @@
+package com.example.arbenchapp.monitor;
+
+import android.content.SharedPreferences;
+
+import com.example.arbenchapp.datatypes.preprocessing.Resolution;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class ResolutionGovernor {
+    // samples per decision, also the minimum time spent at a size before the next step
+    private static final int WINDOW = 30;
+    // only step up when the larger size is predicted to leave this much headroom
+    private static final double STEP_UP_MARGIN = 0.85;
+
+    private final List<Resolution> sizes;
+    private final double targetMs;
+    private final double[] samples = new double[WINDOW];
+    private final int settleFrames;
+    private int count = 0;
+    private int next = 0;
+    private int settle = 0;
+    private int index;
+    private int switches = 0;
+    private double lastP90 = 0;
+    // thermal limit, the largest index allowed and the index it was counted down from
+    private int ceiling = Integer.MAX_VALUE;
+    private int ceilingBase = -1;
+
+    public ResolutionGovernor(List<Resolution> sizes, Resolution start, double targetMs, int settleFrames) {
+        // smallest to largest, latency is assumed to grow with the pixel count
+        this.sizes = new ArrayList<>(sizes);
+        this.sizes.sort((a, b) -> Long.compare(pixels(a), pixels(b)));
+        this.targetMs = targetMs;
+        this.settleFrames = settleFrames;
+        this.index = closest(start);
+    }
+
+    public static ResolutionGovernor fromPreferences(SharedPreferences prefs, Resolution start, int settleFrames) {
+        if (!prefs.getBoolean("resolution_governor", false)) {
+            return null;
+        }
+        double targetMs;
+        try {
+            targetMs = Double.parseDouble(prefs.getString("governor_target_ms", "33"));
+        } catch (NumberFormatException e) {
+            System.err.println("ERROR: INVALID GOVERNOR TARGET");
+            return null;
+        }
+        // "w,h;w,h;...", the same format as the resolution setting
+        List<Resolution> sizes = new ArrayList<>();
+        for (String size : prefs.getString("governor_sizes", "160,160;224,224;288,288;320,320").split(";")) {
+            if (!size.trim().isEmpty()) {
+                sizes.add(new Resolution(size));
+            }
+        }
+        if (sizes.isEmpty() || targetMs <= 0) {
+            return null;
+        }
+        return new ResolutionGovernor(sizes, start, targetMs, settleFrames);
+    }
+
+    public synchronized Resolution record(double latencyMs) {
+        // returns the size to switch to, or null to stay
+        if (settle > 0) {
+            // frames already in flight at the switch still carry the old size
+            settle--;
+            return null;
+        }
+        samples[next] = latencyMs;
+        next = (next + 1) % WINDOW;
+        count = Math.min(WINDOW, count + 1);
+        if (count < WINDOW) {
+            return null;
+        }
+        lastP90 = p90();
+        int step = 0;
+        if (lastP90 > targetMs && index > 0) {
+            step = -1;
+        } else if (index < Math.min(sizes.size() - 1, ceiling) &&
+                lastP90 * pixels(sizes.get(index + 1)) / pixels(sizes.get(index)) < targetMs * STEP_UP_MARGIN) {
+            step = 1;
+        }
+        if (step == 0) {
+            return null;
+        }
+        return moveTo(index + step, "p90 " + lastP90 + " ms against " + targetMs + " ms");
+    }
+
+    public synchronized Resolution setCeiling(int stepsDown) {
+        // counted from where the box was when the limit started, returns the size to switch to or null
+        if (stepsDown <= 0) {
+            ceiling = Integer.MAX_VALUE;
+            ceilingBase = -1;
+            return null;
+        }
+        if (ceilingBase < 0) {
+            ceilingBase = index;
+        }
+        ceiling = Math.max(0, ceilingBase - stepsDown);
+        return index > ceiling ? moveTo(ceiling, "thermal limit -" + stepsDown) : null;
+    }
+
+    private Resolution moveTo(int to, String reason) {
+        Resolution from = sizes.get(index);
+        index = to;
+        switches++;
+        // the old samples say nothing about the new size
+        count = 0;
+        next = 0;
+        settle = settleFrames;
+        Resolution size = sizes.get(index);
+        System.out.println("GOVERNOR: " + reason + ", " +
+                from.getWidth() + "x" + from.getHeight() + " -> " + size.getWidth() + "x" + size.getHeight());
+        return size;
+    }
+
+    public synchronized void reset(Resolution start) {
+        index = closest(start);
+        count = 0;
+        next = 0;
+        settle = settleFrames;
+    }
+
+    public synchronized Resolution getCurrent() { return sizes.get(index); }
+
+    public synchronized double getP90() { return lastP90; }
+
+    public synchronized int getSwitches() { return switches; }
+
+    public double getTargetMs() { return targetMs; }
+
+    private double p90() {
+        double[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        return sorted[Math.max(0, (int) Math.ceil(0.9 * count) - 1)];
+    }
+
+    private int closest(Resolution resolution) {
+        int best = 0;
+        for (int i = 0; i < sizes.size(); i++) {
+            if (Math.abs(pixels(sizes.get(i)) - pixels(resolution)) <
+                    Math.abs(pixels(sizes.get(best)) - pixels(resolution))) {
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    private static long pixels(Resolution resolution) {
+        return (long) resolution.getWidth() * resolution.getHeight();
+    }
+}
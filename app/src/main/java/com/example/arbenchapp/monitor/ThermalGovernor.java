@@ -0,0 +1,307 @@
+package com.example.arbenchapp.monitor;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.PowerManager;
+
+import androidx.preference.PreferenceManager;
+
+import com.example.arbenchapp.datatypes.preprocessing.ExecutionProvider;
+import com.example.arbenchapp.datatypes.preprocessing.ThermalLimits;
+import com.example.arbenchapp.util.ConversionUtil;
+import com.example.arbenchapp.util.ProviderUtil;
+import com.example.arbenchapp.util.ThreadUtil;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.ref.WeakReference;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public class ThermalGovernor implements AutoCloseable {
+    public interface Listener {
+        void onThermalLimitsChanged(ThermalLimits limits, boolean providerChanged);
+    }
+
+    // the OS headroom forecast is not meant to be asked for more often than this
+    private static final long POLL_MS = 2_000;
+    // a level is held at least this long before easing off, so the limits don't flap around a threshold
+    private static final long HOLD_MS = 30_000;
+    private static final int HEADROOM_FORECAST_S = 10;
+
+    private final Context context;
+    private final WeakReference<Listener> listener;
+    private final PowerManager powerManager;
+    private final ScheduledExecutorService poller = Executors.newSingleThreadScheduledExecutor(
+            ThreadUtil.workerFactory("thermal", Thread.NORM_PRIORITY, false));
+    // cpu / soc / skin zones this app may read, often none on newer Android
+    private final List<File> zones;
+    private final long startMs = System.currentTimeMillis();
+    private File logFile;
+    private int level = ThermalLimits.LEVEL_NONE;
+    private long lastChangeMs = 0;
+    private ThermalLimits limits = ThermalLimits.NONE;
+
+    public ThermalGovernor(Context context, Listener listener) {
+        this.context = context.getApplicationContext();
+        this.listener = new WeakReference<>(listener);
+        this.powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        this.zones = findZones();
+        poller.scheduleWithFixedDelay(this::poll, POLL_MS, POLL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized ThermalLimits getLimits() { return limits; }
+
+    private void poll() {
+        try {
+            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+            boolean enabled = prefs.getBoolean("thermal_governor", false);
+            double battery = Double.NaN;
+            double zone = Double.NaN;
+            int status = 0;
+            float headroom = Float.NaN;
+            if (enabled) {
+                battery = batteryTemperature();
+                zone = zoneTemperature();
+                status = thermalStatus();
+                headroom = thermalHeadroom();
+            } else if (getLimits().sameAs(ThermalLimits.NONE)) {
+                // off and nothing left to undo, so no sensor is read
+                return;
+            }
+            int target = enabled ? targetLevel(prefs, battery, zone, status, headroom) : ThermalLimits.LEVEL_NONE;
+
+            long now = System.currentTimeMillis();
+            ThermalLimits previous;
+            ThermalLimits next;
+            synchronized (this) {
+                int nextLevel = level;
+                if (target > level || !enabled) {
+                    // heating up is acted on at once
+                    nextLevel = target;
+                } else if (target < level && now - lastChangeMs >= HOLD_MS) {
+                    // cooling down goes one level at a time
+                    nextLevel = level - 1;
+                }
+                next = enabled ? limitsFor(prefs, nextLevel) : ThermalLimits.NONE;
+                if (next.sameAs(limits)) {
+                    return;
+                }
+                previous = limits;
+                if (nextLevel != level) {
+                    lastChangeMs = now;
+                }
+                level = nextLevel;
+                limits = next;
+            }
+            boolean providerChanged = next.getProvider() != previous.getProvider();
+            if (providerChanged) {
+                ProviderUtil.setOverride(next.getProvider());
+            }
+            log(now, previous, next, battery, zone, status, headroom);
+            Listener l = listener.get();
+            if (l != null) {
+                l.onThermalLimitsChanged(next, providerChanged);
+            }
+        } catch (RuntimeException e) {
+            // an exception would cancel every later poll
+            System.err.println("THERMAL ERROR: " + e);
+        }
+    }
+
+    private static int targetLevel(SharedPreferences prefs, double battery, double zone, int status, float headroom) {
+        int target = levelFor(battery, parse(prefs.getString("thermal_limit_c", "42"), 42), 2);
+        // SoC sensors run far hotter than the battery, so they get their own limit
+        target = Math.max(target, levelFor(zone, parse(prefs.getString("thermal_zone_limit_c", "75"), 75), 5));
+        // LIGHT, MODERATE and SEVERE or worse line up with the three levels
+        target = Math.max(target, Math.min(ThermalLimits.LEVEL_CRITICAL, status));
+        // 1.0 is the forecast point where the OS throttles hard, acting before that is the point of this class
+        if (headroom >= 1.0f) {
+            target = Math.max(target, ThermalLimits.LEVEL_CRITICAL);
+        } else if (headroom >= 0.9f) {
+            target = Math.max(target, ThermalLimits.LEVEL_HOT);
+        } else if (headroom >= 0.75f) {
+            target = Math.max(target, ThermalLimits.LEVEL_WARM);
+        }
+        return target;
+    }
+
+    private static int levelFor(double temperature, double limit, double margin) {
+        if (Double.isNaN(temperature)) {
+            return ThermalLimits.LEVEL_NONE;
+        }
+        if (temperature >= limit) {
+            return ThermalLimits.LEVEL_CRITICAL;
+        }
+        if (temperature >= limit - margin) {
+            return ThermalLimits.LEVEL_HOT;
+        }
+        return temperature >= limit - 2 * margin ? ThermalLimits.LEVEL_WARM : ThermalLimits.LEVEL_NONE;
+    }
+
+    private static ThermalLimits limitsFor(SharedPreferences prefs, int level) {
+        if (level == ThermalLimits.LEVEL_NONE) {
+            return ThermalLimits.NONE;
+        }
+        // cheapest first: a frame cap when warm, fewer decoder runs and a smaller input when hot, another provider when critical
+        double fpsCap = 0;
+        if (prefs.getBoolean("thermal_cap_fps", true)) {
+            double cap = parse(prefs.getString("thermal_fps_cap", "15"), 15);
+            fpsCap = level >= ThermalLimits.LEVEL_CRITICAL ? cap / 2 : cap;
+        }
+        int decimation = 1;
+        if (level >= ThermalLimits.LEVEL_HOT && prefs.getBoolean("thermal_decimate_decoders", true)) {
+            decimation = level >= ThermalLimits.LEVEL_CRITICAL ? 4 : 2;
+        }
+        int resolutionSteps = 0;
+        if (level >= ThermalLimits.LEVEL_HOT && prefs.getBoolean("thermal_drop_resolution", true)) {
+            resolutionSteps = level - ThermalLimits.LEVEL_WARM;
+        }
+        ExecutionProvider provider = null;
+        if (level >= ThermalLimits.LEVEL_CRITICAL && prefs.getBoolean("thermal_switch_provider", false)) {
+            try {
+                provider = ExecutionProvider.valueOf(prefs.getString("thermal_provider", "CPU"));
+            } catch (IllegalArgumentException e) {
+                System.err.println("THERMAL ERROR: Unknown provider " + prefs.getString("thermal_provider", "CPU"));
+            }
+        }
+        return new ThermalLimits(level, fpsCap, decimation, resolutionSteps, provider);
+    }
+
+    private double batteryTemperature() {
+        Intent batteryIntent = context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if (batteryIntent == null) {
+            return Double.NaN;
+        }
+        int tenths = batteryIntent.getIntExtra(BatteryManager.EXTRA_TEMPERATURE, Integer.MIN_VALUE);
+        return tenths == Integer.MIN_VALUE ? Double.NaN : tenths / 10.0;
+    }
+
+    private static List<File> findZones() {
+        List<File> found = new ArrayList<>();
+        File[] dirs = new File("/sys/class/thermal").listFiles((dir, name) -> name.startsWith("thermal_zone"));
+        if (dirs == null) {
+            return found;
+        }
+        for (File dir : dirs) {
+            String type = readLine(new File(dir, "type"));
+            File temp = new File(dir, "temp");
+            if (type == null || readLine(temp) == null) {
+                continue;
+            }
+            type = type.toLowerCase();
+            if (type.contains("cpu") || type.contains("soc") || type.contains("skin")) {
+                found.add(temp);
+            }
+        }
+        System.out.println("THERMAL: " + found.size() + " readable thermal zones");
+        return found;
+    }
+
+    private double zoneTemperature() {
+        double max = Double.NaN;
+        for (File zone : zones) {
+            String value = readLine(zone);
+            if (value == null) {
+                continue;
+            }
+            try {
+                double t = Double.parseDouble(value.trim());
+                // most kernels report millidegrees
+                if (t > 1000) {
+                    t /= 1000;
+                }
+                if (Double.isNaN(max) || t > max) {
+                    max = t;
+                }
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        return max;
+    }
+
+    private int thermalStatus() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q || powerManager == null) {
+            return 0;
+        }
+        return powerManager.getCurrentThermalStatus();
+    }
+
+    private float thermalHeadroom() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.R || powerManager == null) {
+            return Float.NaN;
+        }
+        // NaN when the device has no forecast or it was asked too soon
+        return powerManager.getThermalHeadroom(HEADROOM_FORECAST_S);
+    }
+
+    private void log(long now, ThermalLimits from, ThermalLimits to, double battery, double zone, int status,
+                     float headroom) {
+        String timestamp = LocalDateTime.now().format(DateTimeFormatter.ISO_LOCAL_DATE_TIME);
+        double elapsedS = (now - startMs) / 1_000.0;
+        System.out.println("THERMAL: " + timestamp + " (+" + elapsedS + " s) " +
+                ThermalLimits.levelName(from.getLevel()) + " -> " + ThermalLimits.levelName(to.getLevel()) +
+                ", battery " + battery + " C, zone " + zone + " C, status " + status + ", headroom " + headroom +
+                ": " + to);
+        if (logFile == null) {
+            String stamp = LocalDate.now() + "_" + LocalDateTime.now().format(DateTimeFormatter.ofPattern("HH-mm-ss"));
+            logFile = ConversionUtil.logFile("thermal_" + stamp + ".csv");
+            if (logFile == null) {
+                return;
+            }
+            append("timestamp,elapsed_s,battery_c,zone_c,thermal_status,headroom,from_level,to_level," +
+                    "fps_cap,decoder_decimation,resolution_steps,provider");
+        }
+        append(timestamp + "," + elapsedS + "," + battery + "," + zone + "," + status + "," + headroom + "," +
+                ThermalLimits.levelName(from.getLevel()) + "," + ThermalLimits.levelName(to.getLevel()) + "," +
+                to.getFpsCap() + "," + to.getDecoderDecimation() + "," + to.getResolutionSteps() + "," +
+                (to.getProvider() == null ? "" : to.getProvider()));
+    }
+
+    private void append(String line) {
+        try (Writer writer = new FileWriter(logFile, true)) {
+            writer.write(line + "\n");
+        } catch (IOException e) {
+            System.err.println("THERMAL ERROR: Unable to write " + logFile + ": " + e);
+        }
+    }
+
+    private static String readLine(File file) {
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            return reader.readLine();
+        } catch (IOException | SecurityException e) {
+            return null;
+        }
+    }
+
+    private static double parse(String value, double fallback) {
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            System.err.println("THERMAL ERROR: Invalid value " + value);
+            return fallback;
+        }
+    }
+
+    @Override
+    public void close() {
+        poller.shutdownNow();
+        if (ProviderUtil.getOverride() != null) {
+            ProviderUtil.setOverride(null);
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package com.example.arbenchapp.util;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
+import android.content.res.AssetFileDescriptor;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public final class AssetExtractor {
+    private AssetExtractor() {}
+
+    // kept apart from the default preferences so writing it never triggers a rebuild
+    private static final String RECORD_NAME = "asset_manifest";
+    // one "<asset path> <size> <sha256>" line per model, generated by the generateModelManifest Gradle task
+    private static final String MANIFEST_ASSET = "model_manifest.txt";
+    private static final int BUFFER_BYTES = 256 * 1024;
+    private static final ExecutorService POOL = Executors.newFixedThreadPool(
+            Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors() / 2)),
+            ThreadUtil.workerFactory("asset-extract", Thread.NORM_PRIORITY, false));
+
+    private static class ManifestEntry {
+        final long size;
+        final String sha256;
+
+        ManifestEntry(long size, String sha256) {
+            this.size = size;
+            this.sha256 = sha256;
+        }
+    }
+
+    private static Map<String, ManifestEntry> manifest;
+
+    public static File extract(Context context, String assetPath, String fileName) throws IOException {
+        File target = new File(context.getFilesDir(), fileName);
+        ManifestEntry expected = manifestEntry(context, assetPath);
+        SharedPreferences record = context.getSharedPreferences(RECORD_NAME, Context.MODE_PRIVATE);
+        String version = apkVersion(context);
+        // assets only change with the APK, so a file from this APK that was checked against the same hash is still good
+        String recorded = version + "|" + target.length() + "|" + (expected == null ? "" : expected.sha256);
+        if (target.isFile() && recorded.equals(record.getString(assetPath, null)) &&
+                (expected == null || expected.size == target.length())) {
+            return target;
+        }
+        long start = System.nanoTime();
+        File tmp = new File(target.getPath() + ".tmp");
+        String hash = copy(context, assetPath, tmp);
+        if (expected != null) {
+            if (expected.size != tmp.length()) {
+                tmp.delete();
+                throw new IOException("Size mismatch for " + assetPath + ": " + tmp.length() + " != " + expected.size);
+            }
+            if (hash == null) {
+                hash = sha256(tmp);
+            }
+            if (!expected.sha256.equalsIgnoreCase(hash)) {
+                tmp.delete();
+                throw new IOException("Checksum mismatch for " + assetPath);
+            }
+        }
+        // readers only ever see a missing file or a complete one
+        Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        record.edit().putString(assetPath,
+                version + "|" + target.length() + "|" + (expected == null ? "" : expected.sha256)).apply();
+        System.out.println("ASSETS: Extracted " + assetPath + " (" + target.length() + " bytes) in " +
+                (System.nanoTime() - start) / 1_000_000 + " ms");
+        return target;
+    }
+
+    public static File[] extractAll(Context context, String[] assetPaths, String[] fileNames) throws IOException {
+        // the encoder and every decoder are independent, so they are copied side by side
+        List<Future<File>> futures = new ArrayList<>();
+        for (int i = 0; i < assetPaths.length; i++) {
+            String assetPath = assetPaths[i];
+            String fileName = fileNames[i];
+            futures.add(POOL.submit(() -> extract(context, assetPath, fileName)));
+        }
+        File[] files = new File[assetPaths.length];
+        IOException failure = null;
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                files[i] = futures.get(i).get();
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause() instanceof IOException ?
+                            (IOException) e.getCause() : new IOException(e.getCause());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while extracting assets");
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return files;
+    }
+
+    public static void clearRecords(Context context) {
+        context.getSharedPreferences(RECORD_NAME, Context.MODE_PRIVATE).edit().clear().apply();
+    }
+
+    private static String copy(Context context, String assetPath, File tmp) throws IOException {
+        // stored (uncompressed) assets are a plain byte range of the APK and can be transferred channel to channel
+        try (AssetFileDescriptor afd = context.getAssets().openFd(assetPath);
+             FileInputStream in = afd.createInputStream();
+             FileChannel src = in.getChannel();
+             FileChannel dst = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                     StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            long offset = afd.getStartOffset();
+            long length = afd.getLength();
+            long done = 0;
+            while (done < length) {
+                long moved = src.transferTo(offset + done, length - done, dst);
+                if (moved <= 0) {
+                    throw new IOException("Short transfer for " + assetPath);
+                }
+                done += moved;
+            }
+            return null;
+        } catch (FileNotFoundException e) {
+            // compressed assets can't be opened as a descriptor, stream them instead
+        }
+        try (InputStream is = context.getAssets().open(assetPath);
+             FileChannel dst = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                     StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] buf = new byte[BUFFER_BYTES];
+            int read;
+            while ((read = is.read(buf)) != -1) {
+                digest.update(buf, 0, read);
+                ByteBuffer chunk = ByteBuffer.wrap(buf, 0, read);
+                while (chunk.hasRemaining()) {
+                    dst.write(chunk);
+                }
+            }
+            return hex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static String sha256(File file) throws IOException {
+        try (InputStream is = Files.newInputStream(file.toPath())) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] buf = new byte[BUFFER_BYTES];
+            int read;
+            while ((read = is.read(buf)) != -1) {
+                digest.update(buf, 0, read);
+            }
+            return hex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    private static synchronized ManifestEntry manifestEntry(Context context, String assetPath) {
+        if (manifest == null) {
+            manifest = new HashMap<>();
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(context.getAssets().open(MANIFEST_ASSET)))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] parts = line.trim().split("\\s+");
+                    if (parts.length == 0 || parts[0].isEmpty() || parts[0].startsWith("#")) {
+                        continue;
+                    }
+                    long size = -1;
+                    try {
+                        size = parts.length == 3 ? Long.parseLong(parts[1]) : -1;
+                    } catch (NumberFormatException ignored) {
+                    }
+                    if (size < 0 || !parts[2].matches("[0-9a-fA-F]{64}")) {
+                        // a bad line only loses the check for its model, it must not stop the model from loading
+                        System.err.println("ASSETS ERROR: Ignoring malformed manifest line: " + line);
+                        continue;
+                    }
+                    manifest.put(parts[0], new ManifestEntry(size, parts[2]));
+                }
+            } catch (IOException e) {
+                // built without the generateModelManifest task, files are only checked against the size they were extracted with
+                System.err.println("ASSETS: No " + MANIFEST_ASSET + ", extracted models are not checksummed");
+            }
+        }
+        return manifest.get(assetPath);
+    }
+
+    private static String apkVersion(Context context) {
+        try {
+            return String.valueOf(context.getPackageManager()
+                    .getPackageInfo(context.getPackageName(), 0).lastUpdateTime);
+        } catch (PackageManager.NameNotFoundException e) {
+            return "0";
+        }
+    }
+}
@@ -16,7 +16,9 @@ import androidx.camera.lifecycle.ProcessCameraProvider;
 import androidx.core.content.ContextCompat;
 import androidx.preference.PreferenceManager;
 
+import com.example.arbenchapp.datatypes.preprocessing.CameraFrame;
 import com.example.arbenchapp.datatypes.preprocessing.Resolution;
+import com.example.arbenchapp.datatypes.preprocessing.Settings;
 import com.google.common.util.concurrent.ListenableFuture;
 
 import java.io.ByteArrayOutputStream;
@@ -24,6 +26,9 @@ import java.nio.ByteBuffer;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
+import ai.onnxruntime.OrtEnvironment;
+import ai.onnxruntime.OrtException;
+
 public class CameraUtil {
     private static final String TAG = "CameraXUtil";
     private final ExecutorService cameraExecutor = Executors.newSingleThreadExecutor();
@@ -31,9 +36,23 @@ public class CameraUtil {
     private ImageAnalysis imageAnalysis;
     private final Context context;
     private final CameraCallback callback;
+    private final TensorPool framePool = new TensorPool(OrtEnvironment.getEnvironment());
+    // size frames are converted to, follows the box while the camera keeps streaming
+    private volatile Target target;
+
+    private static final class Target {
+        // replaced as a whole, so a frame never pairs one box's size with another's normalization
+        private final Resolution res;
+        private final Settings settings;
+
+        private Target(Resolution res, Settings settings) {
+            this.res = res;
+            this.settings = settings;
+        }
+    }
 
     public interface CameraCallback {
-        void onFrameCaptured(Bitmap bitmap);
+        void onFrameCaptured(CameraFrame frame);
     }
 
     public CameraUtil(Context context, CameraCallback callback) {
@@ -56,6 +75,9 @@ public class CameraUtil {
     private void bindCamera() {
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
         Resolution res = new Resolution(prefs.getString("resolution", "224,224"));
+        if (target == null) {
+            target = new Target(res, Settings.fromPreferences(prefs));
+        }
 
         imageAnalysis = new ImageAnalysis.Builder()
                 .setTargetResolution(new Size(res.getWidth(), res.getHeight()))
@@ -63,13 +85,22 @@ public class CameraUtil {
                 .build();
 
         final boolean[] processing = { false };
+        final boolean directTensor = prefs.getBoolean("direct_tensor", true);
 
         imageAnalysis.setAnalyzer(cameraExecutor, image -> {
             if (!processing[0]) {
                 processing[0] = true;
-                Bitmap bitmap = imageToBitmap(image);
-                if (bitmap != null) {
-                    callback.onFrameCaptured(bitmap);
+                Target current = target;
+                CameraFrame frame = directTensor && image.getFormat() == ImageFormat.YUV_420_888 ?
+                        imageToFrame(image, current.res, current.settings, signatureWanted(prefs)) : null;
+                if (frame == null) {
+                    Bitmap bitmap = imageToBitmap(image);
+                    if (bitmap != null) {
+                        frame = new CameraFrame(bitmap);
+                    }
+                }
+                if (frame != null) {
+                    callback.onFrameCaptured(frame);
                 }
                 processing[0] = false;
             }
@@ -84,6 +115,43 @@ public class CameraUtil {
         cameraProvider.bindToLifecycle((androidx.lifecycle.LifecycleOwner) context, cameraSelector, imageAnalysis);
     }
 
+    private static boolean signatureWanted(SharedPreferences prefs) {
+        // only split encoder gating reads the signature, and it can be switched while the camera runs
+        return prefs.getBoolean("encoder_gating", false);
+    }
+
+    private CameraFrame imageToFrame(ImageProxy image, Resolution res, Settings settings, boolean withSignature) {
+        // converts, rotates and resizes straight into the model input, skipping the JPEG round trip
+        ImageProxy.PlaneProxy[] planes = image.getPlanes();
+        if (planes.length < 3) return null;
+        int width = res.getWidth();
+        int height = res.getHeight();
+        TensorPool.PooledTensor tensor;
+        try {
+            tensor = framePool.acquire(new long[]{1, 3, height, width});
+        } catch (OrtException e) {
+            Log.e(TAG, "Failed to acquire frame tensor", e);
+            return null;
+        }
+        // filled in the same pass, costs an add per sampled pixel, kept by the encoder cache so never reused
+        float[] signature = withSignature ?
+                new float[ImageConversionUtil.SIGNATURE_GRID * ImageConversionUtil.SIGNATURE_GRID] : null;
+        ImageConversionUtil.yuvToTensor(
+                planes,
+                image.getWidth(),
+                image.getHeight(),
+                image.getImageInfo().getRotationDegrees(),
+                tensor.getBuffer(),
+                width,
+                height,
+                settings,
+                signature
+        );
+        CameraFrame frame = new CameraFrame(tensor, width, height, settings);
+        frame.setLumaSignature(signature);
+        return frame;
+    }
+
     @OptIn(markerClass = ExperimentalGetImage.class)
     private Bitmap imageToBitmap(ImageProxy image) {
         Image img = image.getImage();
@@ -145,7 +213,22 @@ public class CameraUtil {
         return new YuvImage(nv21, ImageFormat.NV21, image.getWidth(), image.getHeight(), null);
     }
 
+    public void setTarget(Resolution res, Settings settings) {
+        target = new Target(res, settings);
+        // frames of the old size still in flight are freed when they come back rather than pooled
+        framePool.retainOnly(new long[]{1, 3, res.getHeight(), res.getWidth()});
+    }
+
     public void shutdown() {
+        if (cameraExecutor.isShutdown()) {
+            // MainActivity shuts the last camera down again in onDestroy
+            return;
+        }
+        if (imageAnalysis != null) {
+            imageAnalysis.clearAnalyzer();
+        }
+        // queued behind any frame still being converted, tensors already handed out are freed on release
+        cameraExecutor.execute(framePool::close);
         cameraExecutor.shutdown();
     }
 }
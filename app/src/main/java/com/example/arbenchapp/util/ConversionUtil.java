@@ -5,6 +5,7 @@ import android.graphics.Bitmap;
 import android.os.Environment;
 
 import com.example.arbenchapp.datatypes.postprocessing.ConversionMethod;
+import com.example.arbenchapp.datatypes.preprocessing.Settings;
 
 import org.pytorch.Tensor;
 import org.pytorch.torchvision.TensorImageUtils;
@@ -14,14 +15,17 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.text.DecimalFormat;
 
+import ai.onnxruntime.OnnxTensor;
+
 public final class ConversionUtil {
     private ConversionUtil() {}
 
     public static Tensor bitmapToTensor(Bitmap bitmap) {
         // Normalize the image using ImageNet mean and standard deviation
-        float[] normMeanRGB = {0.485f, 0.456f, 0.406f};
-        float[] normStdRGB = {0.229f, 0.224f, 0.225f};
+        return bitmapToTensor(bitmap, Settings.IMAGENET_MEAN, Settings.IMAGENET_STD);
+    }
 
+    public static Tensor bitmapToTensor(Bitmap bitmap, float[] normMeanRGB, float[] normStdRGB) {
         // Convert the bitmap to a float32 tensor
         return TensorImageUtils.bitmapToFloat32Tensor(
                 bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), normMeanRGB, normStdRGB
@@ -68,6 +72,40 @@ public final class ConversionUtil {
         }
     }
 
+    public static Bitmap OnnxTensorToImage(OnnxTensor tensor, ConversionMethod method) {
+        // reads the output buffer directly instead of building a float[][][][]
+        switch (method) {
+            case ARGMAX_COLOR:
+                return ImageConversionUtil.ColorConvert(tensor);
+            case BW:
+                return ImageConversionUtil.BWConvert(tensor);
+            case COLOR_GRADIENT:
+                return ImageConversionUtil.ColorGradientConvert(tensor);
+            case BW_GRADIENT:
+                return ImageConversionUtil.BWGradientConvert(tensor);
+            default:
+                throw new IllegalArgumentException(
+                        "ERROR: Conversion method " + method.toString() + " provided, not valid for ONNX tensor input.");
+        }
+    }
+
+    public static Bitmap OnnxTensorToImage(OnnxTensor tensor, ConversionMethod method, int image) {
+        // one image out of a batched [N, C, H, W] output
+        switch (method) {
+            case ARGMAX_COLOR:
+                return ImageConversionUtil.ColorConvert(tensor, image);
+            case BW:
+                return ImageConversionUtil.BWConvert(tensor, image);
+            case COLOR_GRADIENT:
+                return ImageConversionUtil.ColorGradientConvert(tensor, image);
+            case BW_GRADIENT:
+                return ImageConversionUtil.BWGradientConvert(tensor, image);
+            default:
+                throw new IllegalArgumentException(
+                        "ERROR: Conversion method " + method.toString() + " provided, not valid for ONNX tensor input.");
+        }
+    }
+
     public static ConversionMethod stringToConversionMethod(String method) {
         System.out.println("ONNX conversion string: " + method);
         switch (method) {
@@ -108,17 +146,25 @@ public final class ConversionUtil {
         return round(value, places) + unit;
     }
 
-    public static void logArray(Context context, String[] data, String filename) {
+    public static File logFile(String filename) {
+        // Documents/BeAR_Logs, null when external storage isn't writable
         String state = Environment.getExternalStorageState();
         if (!Environment.MEDIA_MOUNTED.equals(state)) {
             System.err.println("ONNX external storage not writable!");
-            return;
+            return null;
         }
         File externalDir = new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOCUMENTS), "BeAR_Logs");
         if (!externalDir.exists()) {
             externalDir.mkdirs();
         }
-        File file = new File(externalDir, filename);
+        return new File(externalDir, filename);
+    }
+
+    public static void logArray(Context context, String[] data, String filename) {
+        File file = logFile(filename);
+        if (file == null) {
+            return;
+        }
         FileOutputStream fos = null;
         try {
             String content = android.text.TextUtils.join("\n", data);
@@ -3,12 +3,22 @@ package com.example.arbenchapp.util;
 import android.graphics.Bitmap;
 import android.graphics.Color;
 
+import androidx.camera.core.ImageProxy;
+
+import com.example.arbenchapp.datatypes.preprocessing.CameraFrame;
+import com.example.arbenchapp.datatypes.preprocessing.ResizeMethod;
+import com.example.arbenchapp.datatypes.preprocessing.Settings;
+
 import org.pytorch.Tensor;
 
+import java.nio.Buffer;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
@@ -107,11 +117,19 @@ public final class ImageConversionUtil {
             {203, 233, 240}
     };
 
+    // must match OutputConversion in native-lib.cpp
+    private static final int OUTPUT_ARGMAX_COLOR = 0;
+    private static final int OUTPUT_BW = 1;
+    private static final int OUTPUT_COLOR_GRADIENT = 2;
+    private static final int OUTPUT_BW_GRADIENT = 3;
+    // camera frames carry a SIGNATURE_GRID x SIGNATURE_GRID mean luma thumbnail for change detection
+    public static final int SIGNATURE_GRID = 16;
+
     static {
         System.loadLibrary("native-lib"); // Load the native library
     }
 
-    private static native void nativeProcessPixels(Bitmap bitmap, FloatBuffer floatBuffer, int bgColor, int totalPixels);
+    private static native void nativeProcessPixels(Bitmap bitmap, FloatBuffer floatBuffer, int bgColor, float[] mean, float[] std);
     private static native void convertToBitmapNative(float[] data, int layers, int channels, int height, int width, Bitmap bitmap, int[][] colors);
 
     private static native void convertToGrayscale(float[] data, int height, int width, Bitmap bitmap);
@@ -119,11 +137,27 @@ public final class ImageConversionUtil {
     private static native void convertWithGradient(float[] data, int layers, int channels, int height, int width, Bitmap bitmap);
 
     private static native void convertWithGradientBW(float[] data, int height, int width, Bitmap bitmap);
+
+    private static native void convertOutputNative(FloatBuffer floatBuffer, float[] floatArray, int offset,
+                                                   int channels, int height, int width, int conversion,
+                                                   Bitmap bitmap, int[][] colors);
+
+    private static native void nativeYuvToTensor(ByteBuffer yBuffer, ByteBuffer uBuffer, ByteBuffer vBuffer,
+                                                 int yRowStride, int uvRowStride, int uvPixelStride,
+                                                 int srcWidth, int srcHeight, int rotation,
+                                                 FloatBuffer floatBuffer, int dstWidth, int dstHeight,
+                                                 float[] mean, float[] std, float[] signature);
+
+    private static native void nativeResizeToTensor(Bitmap bitmap, FloatBuffer floatBuffer, int dstWidth, int dstHeight,
+                                                    int method, int bgColor, float[] mean, float[] std);
+
+    private static native void convertTensorToBitmap(FloatBuffer floatBuffer, int height, int width, Bitmap bitmap,
+                                                     float[] mean, float[] std);
 //    public static Bitmap DefaultConvert() {
 //
 //    }
 
-    public static OnnxTensor bitmapToTensor(Bitmap bitmap, OrtEnvironment env) throws OrtException {
+    public static OnnxTensor bitmapToTensor(Bitmap bitmap, OrtEnvironment env, Settings settings) throws OrtException {
         if (bitmap.getConfig() != Bitmap.Config.ARGB_8888) {
             bitmap = bitmap.copy(Bitmap.Config.ARGB_8888, true);
         }
@@ -132,18 +166,136 @@ public final class ImageConversionUtil {
         int height = bitmap.getHeight();
         int channels = 3;
         int batchSize = 1;
-        int totalPixels = width * height;
 
         FloatBuffer floatBuffer = ByteBuffer.allocateDirect(batchSize * channels * width * height * 4)
                 .order(ByteOrder.nativeOrder())
                 .asFloatBuffer();
 
-        nativeProcessPixels(bitmap, floatBuffer, Color.WHITE, totalPixels);
+        nativeProcessPixels(bitmap, floatBuffer, Color.WHITE, settings.getMean(), settings.getStd());
 
         long[] shape = {batchSize, channels, height, width};
         return OnnxTensor.createTensor(env, floatBuffer, shape);
     }
 
+    public static TensorPool.PooledTensor bitmapToTensor(Bitmap bitmap, TensorPool pool, Settings settings) throws OrtException {
+        if (bitmap.getConfig() != Bitmap.Config.ARGB_8888) {
+            bitmap = bitmap.copy(Bitmap.Config.ARGB_8888, true);
+        }
+
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int channels = 3;
+        int batchSize = 1;
+
+        long[] shape = {batchSize, channels, height, width};
+        TensorPool.PooledTensor pooled = pool.acquire(shape);
+        nativeProcessPixels(bitmap, pooled.getBuffer(), Color.WHITE, settings.getMean(), settings.getStd());
+        return pooled;
+    }
+
+    public static TensorPool.PooledTensor resizeToTensor(Bitmap bitmap, int width, int height, ResizeMethod method,
+                                                         TensorPool pool, Settings settings) throws OrtException {
+        if (bitmap.getConfig() != Bitmap.Config.ARGB_8888) {
+            bitmap = bitmap.copy(Bitmap.Config.ARGB_8888, true);
+        }
+
+        // resampled straight into the model input, no intermediate scaled bitmap
+        long[] shape = {1, 3, height, width};
+        TensorPool.PooledTensor pooled = pool.acquire(shape);
+        nativeResizeToTensor(bitmap, pooled.getBuffer(), width, height, method.ordinal(),
+                Color.WHITE, settings.getMean(), settings.getStd());
+        return pooled;
+    }
+
+    public static TensorPool.PooledTensor imagesToTensor(List<Bitmap> images, int width, int height, ResizeMethod method,
+                                                         TensorPool pool, Settings settings) throws OrtException {
+        // offline image sets, every image is resampled into its own slice of one [N, 3, H, W] input
+        TensorPool.PooledTensor pooled = pool.acquire(new long[]{images.size(), 3, height, width});
+        FloatBuffer buffer = pooled.getBuffer();
+        int imageSize = 3 * height * width;
+        for (int i = 0; i < images.size(); i++) {
+            Bitmap bitmap = images.get(i);
+            if (bitmap.getConfig() != Bitmap.Config.ARGB_8888) {
+                bitmap = bitmap.copy(Bitmap.Config.ARGB_8888, true);
+            }
+            // a slice of a direct buffer starts at its position, so the native side writes the image in place
+            buffer.position(i * imageSize);
+            nativeResizeToTensor(bitmap, buffer.slice(), width, height, method.ordinal(),
+                    Color.WHITE, settings.getMean(), settings.getStd());
+        }
+        buffer.rewind();
+        return pooled;
+    }
+
+    public static TensorPool.PooledTensor frameToTensor(CameraFrame frame, TensorPool pool, Settings settings) throws OrtException {
+        if (frame.hasTensor()) {
+            // already converted by the camera, owned by the frame
+            return frame.getTensor();
+        }
+        return bitmapToTensor(frame.getBitmap(), pool, settings);
+    }
+
+    public static void releaseTensor(CameraFrame frame, TensorPool.PooledTensor tensor) {
+        if (frame.hasTensor()) {
+            frame.release();
+        } else if (tensor != null) {
+            tensor.release();
+        }
+    }
+
+    public static void yuvToTensor(ImageProxy.PlaneProxy[] planes, int srcWidth, int srcHeight, int rotation,
+                                   FloatBuffer out, int dstWidth, int dstHeight, Settings settings,
+                                   float[] signature) {
+        // YUV_420_888: plane 0 is Y with pixel stride 1, planes 1 and 2 share row/pixel strides
+        nativeYuvToTensor(
+                planes[0].getBuffer(),
+                planes[1].getBuffer(),
+                planes[2].getBuffer(),
+                planes[0].getRowStride(),
+                planes[1].getRowStride(),
+                planes[1].getPixelStride(),
+                srcWidth,
+                srcHeight,
+                rotation,
+                out,
+                dstWidth,
+                dstHeight,
+                settings.getMean(),
+                settings.getStd(),
+                signature
+        );
+    }
+
+    public static float signatureDistance(float[] a, float[] b) {
+        // mean absolute luma difference per cell, 0 to 255
+        if (a == null || b == null || a.length != b.length || a.length == 0) {
+            return Float.MAX_VALUE;
+        }
+        float sum = 0;
+        for (int i = 0; i < a.length; i++) {
+            sum += Math.abs(a[i] - b[i]);
+        }
+        return sum / a.length;
+    }
+
+    public static int sampleSize(int width, int height, int targetWidth, int targetHeight) {
+        // BitmapFactory inSampleSize for decoding large photos, never below the model resolution
+        if (targetWidth <= 0 || targetHeight <= 0) {
+            return 1;
+        }
+        int sample = 1;
+        while (width / (sample * 2) >= targetWidth && height / (sample * 2) >= targetHeight) {
+            sample *= 2;
+        }
+        return sample;
+    }
+
+    public static Bitmap tensorToBitmap(FloatBuffer floatBuffer, int width, int height, Settings settings) {
+        Bitmap bm = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        convertTensorToBitmap(floatBuffer, height, width, bm, settings.getMean(), settings.getStd());
+        return bm;
+    }
+
     public static Bitmap BWConvert(Tensor tensor, int width, int height) {
         // Step 1: Extract tensor data as a float array
         float[] tensorData = tensor.getDataAsFloatArray();
@@ -290,6 +442,79 @@ public final class ImageConversionUtil {
         return bm;
     }
 
+    public static Bitmap BWConvert(OnnxTensor tensor) {
+        // only works on last layer rn
+        return convertOutput(tensor, OUTPUT_BW, -1);
+    }
+
+    public static Bitmap ColorConvert(OnnxTensor tensor) {
+        return convertOutput(tensor, OUTPUT_ARGMAX_COLOR, 0);
+    }
+
+    public static Bitmap BWGradientConvert(OnnxTensor tensor) {
+        // only works on last layer rn
+        return convertOutput(tensor, OUTPUT_BW_GRADIENT, -1);
+    }
+
+    public static Bitmap ColorGradientConvert(OnnxTensor tensor) {
+        return convertOutput(tensor, OUTPUT_COLOR_GRADIENT, 0);
+    }
+
+    // one image of a batched output, image indexes the first dimension
+    public static Bitmap BWConvert(OnnxTensor tensor, int image) {
+        return convertOutput(tensor, OUTPUT_BW, image);
+    }
+
+    public static Bitmap ColorConvert(OnnxTensor tensor, int image) {
+        return convertOutput(tensor, OUTPUT_ARGMAX_COLOR, image);
+    }
+
+    public static Bitmap BWGradientConvert(OnnxTensor tensor, int image) {
+        return convertOutput(tensor, OUTPUT_BW_GRADIENT, image);
+    }
+
+    public static Bitmap ColorGradientConvert(OnnxTensor tensor, int image) {
+        return convertOutput(tensor, OUTPUT_COLOR_GRADIENT, image);
+    }
+
+    private static Bitmap convertOutput(OnnxTensor tensor, int conversion, int layer) {
+        long[] shape = tensor.getInfo().getShape();
+        if (shape.length != 4) {
+            throw new IllegalArgumentException("ERROR: Expected a [N, C, H, W] output, got " + Arrays.toString(shape));
+        }
+        int layers = (int) shape[0];
+        int channels = (int) shape[1];
+        int height = (int) shape[2];
+        int width = (int) shape[3];
+        // -1 is the last layer
+        int offset = (layer < 0 ? layers - 1 : Math.min(layer, layers - 1)) * channels * height * width;
+
+        double startTime = System.nanoTime();
+        Bitmap bm = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        FloatBuffer direct = directBuffer(tensor);
+        if (direct != null) {
+            // tensors backed by our own direct buffers are read in place
+            convertOutputNative(direct, null, direct.position() + offset,
+                    channels, height, width, conversion, bm, colors);
+        } else {
+            // ORT-allocated outputs can only be read as a copy, but it is one flat copy instead of nested arrays
+            FloatBuffer copy = tensor.getFloatBuffer();
+            convertOutputNative(null, copy.array(), copy.arrayOffset() + copy.position() + offset,
+                    channels, height, width, conversion, bm, colors);
+        }
+        double endTime = System.nanoTime();
+        System.out.println("TIMEEC output convert (ms): " + ((endTime - startTime) / 1_000_000));
+        return bm;
+    }
+
+    private static FloatBuffer directBuffer(OnnxTensor tensor) {
+        Optional<Buffer> ref = tensor.getBufferRef();
+        if (ref.isPresent() && ref.get() instanceof FloatBuffer && ref.get().isDirect()) {
+            return (FloatBuffer) ref.get();
+        }
+        return null;
+    }
+
     public static Bitmap BWGradientConvert(float[][][][] data) {
         int channels = data[0].length;
         assert channels == 1;
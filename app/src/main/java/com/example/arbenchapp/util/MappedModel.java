@@ -0,0 +1,101 @@
+package com.example.arbenchapp.util;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+import ai.onnxruntime.OrtEnvironment;
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.OrtSession;
+
+public class MappedModel {
+
+    static {
+        System.loadLibrary("native-lib");
+    }
+
+    private static native long nativeResidentBytes(MappedByteBuffer buffer);
+
+    // keyed by the path the model would have been extracted to, so code that identifies models by File keeps working
+    private static final Map<String, MappedModel> MAPPED = new HashMap<>();
+
+    private final String assetPath;
+    private final File file;
+    private final MappedByteBuffer buffer;
+
+    private MappedModel(String assetPath, File file, MappedByteBuffer buffer) {
+        this.assetPath = assetPath;
+        this.file = file;
+        this.buffer = buffer;
+    }
+
+    public static File map(Context context, String assetPath, String fileName) throws IOException {
+        File file = new File(context.getFilesDir(), fileName);
+        synchronized (MAPPED) {
+            if (MAPPED.containsKey(file.getPath())) {
+                return file;
+            }
+        }
+        // only assets stored uncompressed in the APK have a descriptor, compressed ones throw here
+        try (AssetFileDescriptor afd = context.getAssets().openFd(assetPath);
+             FileInputStream in = afd.createInputStream();
+             FileChannel channel = in.getChannel()) {
+            // the mapping stays valid after the channel is closed
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, afd.getStartOffset(), afd.getLength());
+            synchronized (MAPPED) {
+                MAPPED.put(file.getPath(), new MappedModel(assetPath, file, buffer));
+            }
+            System.out.println("MAPPED MODEL: " + assetPath + " (" + afd.getLength() + " bytes) mapped from the APK");
+            return file;
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+    }
+
+    public static MappedModel get(File file) {
+        synchronized (MAPPED) {
+            return MAPPED.get(file.getPath());
+        }
+    }
+
+    public static boolean isMapped(File file) {
+        return get(file) != null;
+    }
+
+    public static OrtSession createSession(OrtEnvironment env, File file, OrtSession.SessionOptions options)
+            throws OrtException {
+        // every session for a mapped model is built from the mapping, everything else from the file
+        MappedModel mapped = get(file);
+        if (mapped == null) {
+            return env.createSession(file.getPath(), options);
+        }
+        if (mapped.assetPath.endsWith(".ort")) {
+            // ORT format models can run straight from the mapping, weights included
+            options.addConfigEntry("session.use_ort_model_bytes_directly", "1");
+            options.addConfigEntry("session.use_ort_model_bytes_for_initializers", "1");
+        }
+        return env.createSession(mapped.getBuffer(), options);
+    }
+
+    public String getAssetPath() { return assetPath; }
+
+    public File getFile() { return file; }
+
+    public ByteBuffer getBuffer() {
+        // a separate view, so readers don't move each other's position
+        return buffer.duplicate();
+    }
+
+    public long getMappedBytes() { return buffer.capacity(); }
+
+    public long getResidentBytes() { return nativeResidentBytes(buffer); }
+}
@@ -0,0 +1,196 @@
+package com.example.arbenchapp.util;
+
+import com.example.arbenchapp.datatypes.preprocessing.ExecutionProvider;
+import com.example.arbenchapp.datatypes.preprocessing.SessionConfig;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import ai.onnxruntime.OrtEnvironment;
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.OrtSession;
+
+public class OptimizedModelCache {
+
+    private static final long DEFAULT_BUDGET_BYTES = 512L * 1024 * 1024;
+    private static final String SUFFIX = ".opt.onnx";
+    private static OptimizedModelCache instance;
+
+    private File directory;
+    private long budgetBytes = DEFAULT_BUDGET_BYTES;
+    // tmp files of builds still running, everything else that isn't a cached model is a crash leftover
+    private final Set<File> writing = new HashSet<>();
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    private OptimizedModelCache() {}
+
+    public static synchronized OptimizedModelCache getInstance() {
+        if (instance == null) {
+            instance = new OptimizedModelCache();
+        }
+        return instance;
+    }
+
+    public synchronized void setDirectory(File directory) {
+        if (!directory.exists() && !directory.mkdirs()) {
+            System.err.println("OPTIMIZED CACHE ERROR: Could not create " + directory.getPath());
+        }
+        this.directory = directory;
+    }
+
+    public synchronized void setBudgetBytes(long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+        evict();
+    }
+
+    public synchronized boolean isEnabled() {
+        return directory != null && budgetBytes > 0;
+    }
+
+    public String getKey(OrtEnvironment env, String modelHash, SessionConfig config) {
+        // anything that changes the optimized graph has to change the file name
+        return modelHash + "-" + env.getVersion() + "-" + config.getOptLevel() + "-" + config.getProvider();
+    }
+
+    public synchronized File lookup(String key) {
+        if (!isEnabled()) {
+            return null;
+        }
+        File file = new File(directory, key + SUFFIX);
+        if (!file.isFile() || file.length() == 0) {
+            misses++;
+            return null;
+        }
+        hits++;
+        // the modification time doubles as the last use for eviction
+        file.setLastModified(System.currentTimeMillis());
+        return file;
+    }
+
+    public OrtSession create(OrtEnvironment env, File model, SessionConfig config, String key) {
+        // builds can take seconds, so only the rename and eviction hold the lock and other models build meanwhile
+        File target;
+        File tmp;
+        synchronized (this) {
+            if (!isEnabled()) {
+                return null;
+            }
+            target = new File(directory, key + SUFFIX);
+            // unique, two builds of the same key must not write the same file
+            tmp = new File(directory, key + SUFFIX + "." + System.nanoTime() + ".tmp");
+            writing.add(tmp);
+        }
+        OrtSession session = null;
+        // sessions with compiled nodes (NNAPI, XNNPACK) can't be saved, so those get a CPU pass with
+        // the provider independent optimizations and keep the rest for load time
+        boolean writeThrough = config.getProvider() == ExecutionProvider.CPU;
+        SessionConfig producer = writeThrough ? config :
+                new SessionConfig(ExecutionProvider.CPU, OrtSession.SessionOptions.OptLevel.BASIC_OPT, 1, 1);
+        try (OrtSession.SessionOptions options = producer.toOptions()) {
+            options.setOptimizedModelFilePath(tmp.getPath());
+            OrtSession created = MappedModel.createSession(env, model, options);
+            if (writeThrough) {
+                session = created;
+            } else {
+                created.close();
+            }
+            // ORT writes the file while the session is created, a crash before the move leaves only the tmp file
+            synchronized (this) {
+                writing.remove(tmp);
+                Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                evict();
+            }
+        } catch (IOException | OrtException e) {
+            System.err.println("OPTIMIZED CACHE ERROR: Could not write " + target.getName() + ": " + e);
+            synchronized (this) {
+                writing.remove(tmp);
+            }
+            tmp.delete();
+            return session;
+        }
+        if (session == null && target.isFile()) {
+            // the real session already starts from the optimized graph
+            try (OrtSession.SessionOptions options = config.toOptions()) {
+                session = env.createSession(target.getPath(), options);
+            } catch (OrtException e) {
+                System.err.println("OPTIMIZED CACHE ERROR: Could not load " + target.getName() + ": " + e);
+                target.delete();
+            }
+        }
+        return session;
+    }
+
+    public synchronized void invalidate(String key) {
+        if (directory != null) {
+            new File(directory, key + SUFFIX).delete();
+        }
+    }
+
+    public synchronized void clear() {
+        if (directory == null) {
+            return;
+        }
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    private void evict() {
+        if (directory == null) {
+            return;
+        }
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        List<File> cached = new ArrayList<>();
+        long total = 0;
+        for (File file : files) {
+            if (file.getName().endsWith(SUFFIX)) {
+                cached.add(file);
+                total += file.length();
+            } else if (!writing.contains(file)) {
+                // leftovers from a crash mid-write
+                file.delete();
+            }
+        }
+        // least recently used first
+        File[] ordered = cached.toArray(new File[0]);
+        Arrays.sort(ordered, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        for (File file : ordered) {
+            if (total <= budgetBytes) {
+                break;
+            }
+            total -= file.length();
+            if (file.delete()) {
+                evictions++;
+            }
+        }
+    }
+
+    public synchronized long getHits() { return hits; }
+
+    public synchronized long getMisses() { return misses; }
+
+    public synchronized long getEvictions() { return evictions; }
+
+    @Override
+    public synchronized String toString() {
+        return "OptimizedModelCache{hits=" + hits +
+                ", misses=" + misses +
+                ", evictions=" + evictions + "}";
+    }
+}
@@ -0,0 +1,93 @@
+package com.example.arbenchapp.util;
+
+import com.example.arbenchapp.datatypes.preprocessing.FrameContext;
+
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import ai.onnxruntime.NodeInfo;
+import ai.onnxruntime.OnnxJavaType;
+import ai.onnxruntime.OnnxTensor;
+import ai.onnxruntime.OnnxTensorLike;
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.OrtSession;
+import ai.onnxruntime.TensorInfo;
+
+public class PinnedOutputs {
+    private final OrtSession session;
+    private final TensorPool pool;
+    private final Map<String, long[]> shapes = new LinkedHashMap<>();
+    // outputs ORT still allocates, their shape is only known after the run
+    private final Set<String> allocated = new LinkedHashSet<>();
+
+    public PinnedOutputs(OrtSession session, TensorPool pool, boolean enabled) throws OrtException {
+        this.session = session;
+        this.pool = pool;
+        for (Map.Entry<String, NodeInfo> entry : session.getOutputInfo().entrySet()) {
+            long[] shape = enabled ? pinnableShape(entry.getValue()) : null;
+            if (shape != null) {
+                shapes.put(entry.getKey(), shape);
+            } else {
+                allocated.add(entry.getKey());
+            }
+        }
+    }
+
+    private static long[] pinnableShape(NodeInfo info) {
+        if (!(info.getInfo() instanceof TensorInfo)) {
+            return null;
+        }
+        TensorInfo tensorInfo = (TensorInfo) info.getInfo();
+        if (tensorInfo.type != OnnxJavaType.FLOAT) {
+            return null;
+        }
+        long[] shape = tensorInfo.getShape().clone();
+        for (int i = 0; i < shape.length; i++) {
+            if (shape[i] < 0 && i == 0) {
+                // frames go through one at a time
+                shape[i] = 1;
+            } else if (shape[i] < 0) {
+                return null;
+            }
+        }
+        return shape;
+    }
+
+    public OrtSession getSession() { return session; }
+
+    public int getPinnedCount() { return shapes.size(); }
+
+    public OrtSession.Result run(Map<String, ? extends OnnxTensorLike> inputs, FrameContext frame) throws OrtException {
+        return run(inputs, frame, null);
+    }
+
+    public OrtSession.Result run(Map<String, ? extends OnnxTensorLike> inputs, FrameContext frame, Set<String> requested)
+            throws OrtException {
+        // null asks for every output, anything else only for those outputs, ORT skips nodes nobody needs
+        if (shapes.isEmpty() && requested == null) {
+            return session.run(inputs);
+        }
+        // ORT writes straight into buffers that go back to the pool when the frame closes, so memory stays flat
+        Map<String, OnnxTensor> pinned = new LinkedHashMap<>();
+        for (Map.Entry<String, long[]> entry : shapes.entrySet()) {
+            if (requested != null && !requested.contains(entry.getKey())) {
+                continue;
+            }
+            TensorPool.PooledTensor tensor = pool.acquire(entry.getValue());
+            frame.ownPinned(tensor);
+            pinned.put(entry.getKey(), tensor.getTensor());
+        }
+        Set<String> others = new LinkedHashSet<>();
+        for (String name : allocated) {
+            if (requested == null || requested.contains(name)) {
+                others.add(name);
+            }
+        }
+        if (pinned.isEmpty() && others.isEmpty()) {
+            throw new OrtException("None of the requested outputs " + requested + " exist.");
+        }
+        return session.run(inputs, others, pinned);
+    }
+}
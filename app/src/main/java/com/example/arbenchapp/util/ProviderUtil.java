@@ -0,0 +1,215 @@
+package com.example.arbenchapp.util;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+
+import com.example.arbenchapp.datatypes.preprocessing.ExecutionProvider;
+import com.example.arbenchapp.datatypes.preprocessing.SessionConfig;
+import com.example.arbenchapp.datatypes.preprocessing.Settings;
+
+import java.io.File;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import ai.onnxruntime.NodeInfo;
+import ai.onnxruntime.OnnxJavaType;
+import ai.onnxruntime.OnnxTensor;
+import ai.onnxruntime.OrtEnvironment;
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.OrtSession;
+import ai.onnxruntime.TensorInfo;
+
+public final class ProviderUtil {
+    private ProviderUtil() {}
+
+    // kept apart from the default preferences so writing it never triggers a rebuild
+    private static final String CACHE_NAME = "provider_cache";
+    private static final int BENCHMARK_RUNS = 5;
+    // set by the thermal governor, wins over the execution_provider setting until it is cleared
+    private static volatile ExecutionProvider override;
+
+    public static void setOverride(ExecutionProvider provider) { override = provider; }
+
+    public static ExecutionProvider getOverride() { return override; }
+
+    public static List<ExecutionProvider> fallbackOrder(SharedPreferences prefs) {
+        List<ExecutionProvider> order = new ArrayList<>();
+        for (String name : prefs.getString("provider_fallback_order", "NNAPI,XNNPACK,CPU").split(",")) {
+            try {
+                ExecutionProvider provider = ExecutionProvider.valueOf(name.trim());
+                if (!order.contains(provider)) {
+                    order.add(provider);
+                }
+            } catch (IllegalArgumentException e) {
+                System.err.println("PROVIDER ERROR: Unknown provider " + name);
+            }
+        }
+        // the default CPU provider always works, so it is always the last resort
+        if (!order.contains(ExecutionProvider.CPU)) {
+            order.add(ExecutionProvider.CPU);
+        }
+        return order;
+    }
+
+    public static SessionConfig select(Context context, OrtEnvironment env, File model, Settings settings,
+                                       SharedPreferences prefs) throws OrtException {
+        List<ExecutionProvider> order = fallbackOrder(prefs);
+        ExecutionProvider forced = override;
+        String choice = forced != null ? forced.name() : prefs.getString("execution_provider", "AUTO");
+        if (!choice.equals("AUTO")) {
+            // the requested provider first, the fallback order after it
+            ExecutionProvider requested = ExecutionProvider.valueOf(choice);
+            order.remove(requested);
+            order.add(0, requested);
+            return firstWorking(env, model, order);
+        }
+        SharedPreferences cache = context.getSharedPreferences(CACHE_NAME, Context.MODE_PRIVATE);
+        String key = deviceKey() + "|" + SessionPool.getInstance().fileHash(model);
+        String cached = cache.getString(key, null);
+        if (cached != null) {
+            ExecutionProvider winner = ExecutionProvider.valueOf(cached);
+            order.remove(winner);
+            order.add(0, winner);
+            return firstWorking(env, model, order);
+        }
+        ExecutionProvider best = null;
+        double bestMs = Double.MAX_VALUE;
+        List<ExecutionProvider> probed = new ArrayList<>();
+        for (ExecutionProvider provider : order) {
+            if (!isAvailable(provider)) {
+                continue;
+            }
+            probed.add(provider);
+            double ms = benchmark(env, model, SessionConfig.forProvider(provider), settings);
+            System.out.println("PROVIDER: " + model.getName() + " on " + provider + ": " + ms + " ms");
+            if (ms < bestMs) {
+                bestMs = ms;
+                best = provider;
+            }
+        }
+        // only the winner's session is used, the others would sit idle in the pool's budget
+        for (ExecutionProvider provider : probed) {
+            if (provider != best) {
+                SessionPool.getInstance().discard(model, SessionConfig.forProvider(provider));
+            }
+        }
+        if (best == null) {
+            // nothing ran the dummy input, so just take whatever loads first and don't cache it
+            return firstWorking(env, model, order);
+        }
+        cache.edit().putString(key, best.name()).apply();
+        return SessionConfig.forProvider(best);
+    }
+
+    public static void clearCache(Context context) {
+        context.getSharedPreferences(CACHE_NAME, Context.MODE_PRIVATE).edit().clear().apply();
+    }
+
+    private static SessionConfig firstWorking(OrtEnvironment env, File model, List<ExecutionProvider> order) throws OrtException {
+        for (ExecutionProvider provider : order) {
+            if (!isAvailable(provider)) {
+                continue;
+            }
+            SessionConfig config = SessionConfig.forProvider(provider);
+            try {
+                // the session stays in the pool, so the caller's acquire is a cache hit
+                SessionPool.getInstance().release(SessionPool.getInstance().acquire(env, model, config));
+                return config;
+            } catch (OrtException e) {
+                System.err.println("PROVIDER ERROR: " + provider + " could not load " + model.getName() + ": " + e);
+            }
+        }
+        throw new OrtException("No execution provider could load " + model.getName());
+    }
+
+    private static boolean isAvailable(ExecutionProvider provider) {
+        return OrtEnvironment.getAvailableProviders().contains(provider.getOrtProvider());
+    }
+
+    private static String deviceKey() {
+        return Build.MANUFACTURER + " " + Build.MODEL + " " + Build.VERSION.SDK_INT;
+    }
+
+    private static double benchmark(OrtEnvironment env, File model, SessionConfig config, Settings settings) {
+        OrtSession session = null;
+        Map<String, OnnxTensor> inputs = null;
+        try {
+            session = SessionPool.getInstance().acquire(env, model, config);
+            inputs = dummyInputs(env, session, settings);
+            warmUp(session, inputs);
+            long[] times = timeRuns(session, inputs, BENCHMARK_RUNS);
+            Arrays.sort(times);
+            return times[times.length / 2] / 1_000_000.0;
+        } catch (OrtException e) {
+            System.err.println("PROVIDER ERROR: " + config + " failed on " + model.getName() + ": " + e);
+            return Double.MAX_VALUE;
+        } finally {
+            closeAll(inputs);
+            SessionPool.getInstance().release(session);
+        }
+    }
+
+    public static Map<String, OnnxTensor> dummyInputs(OrtEnvironment env, OrtSession session, Settings settings) throws OrtException {
+        // zero-filled inputs, dynamic image dims take the model resolution and every other dynamic dim is 1
+        Map<String, OnnxTensor> inputs = new HashMap<>();
+        try {
+            for (Map.Entry<String, NodeInfo> entry : session.getInputInfo().entrySet()) {
+                if (!(entry.getValue().getInfo() instanceof TensorInfo)) {
+                    throw new OrtException("Input " + entry.getKey() + " is not a tensor.");
+                }
+                TensorInfo info = (TensorInfo) entry.getValue().getInfo();
+                if (info.type != OnnxJavaType.FLOAT) {
+                    throw new OrtException("Input " + entry.getKey() + " is not a float tensor.");
+                }
+                long[] shape = info.getShape().clone();
+                long elements = 1;
+                for (int i = 0; i < shape.length; i++) {
+                    if (shape[i] < 0) {
+                        if (shape.length == 4 && i == 2) {
+                            shape[i] = settings.getImgHeight();
+                        } else if (shape.length == 4 && i == 3) {
+                            shape[i] = settings.getImgWidth();
+                        } else {
+                            shape[i] = 1;
+                        }
+                    }
+                    elements *= shape[i];
+                }
+                inputs.put(entry.getKey(), OnnxTensor.createTensor(env, FloatBuffer.allocate((int) elements), shape));
+            }
+        } catch (OrtException e) {
+            closeAll(inputs);
+            throw e;
+        }
+        return inputs;
+    }
+
+    public static void warmUp(OrtSession session, Map<String, OnnxTensor> inputs) throws OrtException {
+        // the first run of a fresh session is never representative, so it is never timed
+        session.run(inputs).close();
+    }
+
+    public static long[] timeRuns(OrtSession session, Map<String, OnnxTensor> inputs, int runs) throws OrtException {
+        long[] times = new long[runs];
+        for (int i = 0; i < runs; i++) {
+            long start = System.nanoTime();
+            session.run(inputs).close();
+            times[i] = System.nanoTime() - start;
+        }
+        return times;
+    }
+
+    public static void closeAll(Map<String, OnnxTensor> inputs) {
+        if (inputs == null) {
+            return;
+        }
+        for (OnnxTensor tensor : inputs.values()) {
+            tensor.close();
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package com.example.arbenchapp.util;
+
+import com.example.arbenchapp.datatypes.preprocessing.SessionConfig;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import ai.onnxruntime.OrtEnvironment;
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.OrtSession;
+
+public class SessionPool {
+
+    private static class Entry {
+        final String key;
+        final OrtSession session;
+        final long bytes;
+        final String creation;
+        int refs = 0;
+
+        Entry(String key, OrtSession session, long bytes, String creation) {
+            this.key = key;
+            this.session = session;
+            this.bytes = bytes;
+            this.creation = creation;
+        }
+    }
+
+    private static final long DEFAULT_BUDGET_BYTES = 512L * 1024 * 1024;
+    private static SessionPool instance;
+
+    // access ordered, so iteration starts at the least recently used session
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<OrtSession, Entry> bySession = new IdentityHashMap<>();
+    private final Map<String, String> fileHashes = new HashMap<>();
+    private long budgetBytes = DEFAULT_BUDGET_BYTES;
+    private long residentBytes = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    private SessionPool() {}
+
+    public static synchronized SessionPool getInstance() {
+        if (instance == null) {
+            instance = new SessionPool();
+        }
+        return instance;
+    }
+
+    public synchronized void setBudgetBytes(long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+        evictIdle();
+    }
+
+    public OrtSession acquire(OrtEnvironment env, File file, SessionConfig config) throws OrtException {
+        String hash = fileHash(file);
+        String key = hash + "|" + config.getKey();
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                hits++;
+                entry.refs++;
+                return entry.session;
+            }
+        }
+        // building a session can take seconds with NNAPI, so it happens outside the lock
+        long start = System.nanoTime();
+        OrtSession session = null;
+        String source = "source model";
+        OptimizedModelCache cache = OptimizedModelCache.getInstance();
+        String cacheKey = cache.getKey(env, hash, config);
+        // a mapped model is never copied to storage, an optimized copy of it would bring that copy back
+        boolean mapped = MappedModel.isMapped(file);
+        File optimized = mapped ? null : cache.lookup(cacheKey);
+        if (optimized != null) {
+            try (OrtSession.SessionOptions options = config.toOptions()) {
+                session = env.createSession(optimized.getPath(), options);
+                source = "optimized cache";
+            } catch (OrtException e) {
+                // a file ORT can't load again is useless, the next build writes a fresh one
+                System.err.println("SESSION POOL ERROR: Dropping optimized " + optimized.getName() + ": " + e);
+                cache.invalidate(cacheKey);
+            }
+        } else if (!mapped && cache.isEnabled()) {
+            session = cache.create(env, file, config, cacheKey);
+            if (session != null) {
+                source = "source model, cached";
+            }
+        }
+        if (session == null) {
+            try (OrtSession.SessionOptions options = config.toOptions()) {
+                session = MappedModel.createSession(env, file, options);
+            }
+            if (mapped) {
+                source = "APK mapping";
+            }
+        }
+        long createMs = (System.nanoTime() - start) / 1_000_000;
+        String creation = createMs + " ms from " + source;
+        System.out.println("SESSION POOL: Created " + file.getName() + " (" + config + ") in " + creation);
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                // someone else built the same session in the meantime
+                session.close();
+                hits++;
+                entry.refs++;
+                return entry.session;
+            }
+            misses++;
+            // weights dominate a session's footprint, so the file size is a fair estimate
+            MappedModel mapping = MappedModel.get(file);
+            entry = new Entry(key, session, mapping != null ? mapping.getMappedBytes() : file.length(), creation);
+            entry.refs++;
+            entries.put(key, entry);
+            bySession.put(session, entry);
+            residentBytes += entry.bytes;
+            evictIdle();
+            return session;
+        }
+    }
+
+    public synchronized String getCreation(OrtSession session) {
+        // how long the session took to build and what it was built from, pooled sessions keep their original numbers
+        Entry entry = session == null ? null : bySession.get(session);
+        return entry == null ? null : entry.creation;
+    }
+
+    public synchronized void release(OrtSession session) {
+        Entry entry = session == null ? null : bySession.get(session);
+        if (entry == null) {
+            return;
+        }
+        entry.refs = Math.max(0, entry.refs - 1);
+        evictIdle();
+    }
+
+    public void discard(File file, SessionConfig config) throws OrtException {
+        // for sessions built only to be measured, closed now unless someone holds them
+        String key = fileHash(file) + "|" + config.getKey();
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+            if (entry == null || entry.refs > 0) {
+                return;
+            }
+            entries.remove(key);
+            bySession.remove(entry.session);
+            residentBytes -= entry.bytes;
+            evictions++;
+        }
+        entry.session.close();
+    }
+
+    public synchronized void evictIdle() {
+        evictIdle(budgetBytes);
+    }
+
+    public synchronized void clearIdle() {
+        evictIdle(0);
+    }
+
+    private void evictIdle(long limit) {
+        // sessions in use are never closed, so the budget can be exceeded while they are
+        List<Entry> evicted = new ArrayList<>();
+        Iterator<Entry> it = entries.values().iterator();
+        while (residentBytes > limit && it.hasNext()) {
+            Entry entry = it.next();
+            if (entry.refs > 0) {
+                continue;
+            }
+            it.remove();
+            bySession.remove(entry.session);
+            residentBytes -= entry.bytes;
+            evicted.add(entry);
+        }
+        for (Entry entry : evicted) {
+            evictions++;
+            try {
+                entry.session.close();
+            } catch (OrtException e) {
+                System.err.println("SESSION POOL ERROR: Failed to close " + entry.key + ": " + e);
+            }
+        }
+    }
+
+    public String fileHash(File file) throws OrtException {
+        // hashed once per file version, extracted assets don't change unless they are re-extracted
+        MappedModel mapped = MappedModel.get(file);
+        String version = mapped != null ? "mapped|" + mapped.getAssetPath() + "|" + mapped.getMappedBytes() :
+                file.getPath() + "|" + file.length() + "|" + file.lastModified();
+        synchronized (this) {
+            String hash = fileHashes.get(version);
+            if (hash != null) {
+                return hash;
+            }
+        }
+        try (InputStream is = mapped != null ? null : Files.newInputStream(file.toPath())) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            if (mapped != null) {
+                digest.update(mapped.getBuffer());
+            } else {
+                byte[] buf = new byte[64 * 1024];
+                int read;
+                while ((read = is.read(buf)) != -1) {
+                    digest.update(buf, 0, read);
+                }
+            }
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+            String hash = hex.toString();
+            synchronized (this) {
+                fileHashes.put(version, hash);
+            }
+            return hash;
+        } catch (IOException | NoSuchAlgorithmException e) {
+            throw new OrtException("Could not hash model file " + file.getPath() + ": " + e);
+        }
+    }
+
+    public synchronized long getHits() { return hits; }
+
+    public synchronized long getMisses() { return misses; }
+
+    public synchronized long getEvictions() { return evictions; }
+
+    public synchronized long getResidentBytes() { return residentBytes; }
+
+    @Override
+    public synchronized String toString() {
+        return "SessionPool{sessions=" + entries.size() +
+                ", hits=" + hits +
+                ", misses=" + misses +
+                ", evictions=" + evictions +
+                ", bytes=" + residentBytes + "}";
+    }
+}
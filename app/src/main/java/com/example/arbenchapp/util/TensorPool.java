@@ -0,0 +1,180 @@
+package com.example.arbenchapp.util;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import ai.onnxruntime.OnnxTensor;
+import ai.onnxruntime.OrtEnvironment;
+import ai.onnxruntime.OrtException;
+
+public class TensorPool implements AutoCloseable {
+
+    public static class PooledTensor {
+        private final TensorPool pool;
+        private final String key;
+        private final long[] shape;
+        private final FloatBuffer buffer;
+        private final OnnxTensor tensor;
+        // guarded by the pool, a buffer goes back only once every holder has released it
+        private int references = 1;
+
+        private PooledTensor(TensorPool pool, String key, long[] shape, FloatBuffer buffer, OnnxTensor tensor) {
+            this.pool = pool;
+            this.key = key;
+            this.shape = shape;
+            this.buffer = buffer;
+            this.tensor = tensor;
+        }
+
+        public FloatBuffer getBuffer() { return buffer; }
+
+        public OnnxTensor getTensor() { return tensor; }
+
+        public long[] getShape() { return shape; }
+
+        public void retain() { pool.retain(this); }
+
+        public void release() { pool.release(this); }
+    }
+
+    private final OrtEnvironment env;
+    private final Map<String, ArrayDeque<PooledTensor>> free = new HashMap<>();
+    private boolean closed = false;
+    // set by retainOnly, buffers of any other shape are freed instead of pooled when they come back
+    private String keep = null;
+
+    private long allocations = 0;
+    private long acquires = 0;
+    private long releases = 0;
+    private long allocatedBytes = 0;
+
+    public TensorPool(OrtEnvironment env) {
+        this.env = env;
+    }
+
+    public synchronized PooledTensor acquire(long[] shape) throws OrtException {
+        acquires++;
+        String key = Arrays.toString(shape);
+        ArrayDeque<PooledTensor> queue = free.get(key);
+        if (!closed && queue != null && !queue.isEmpty()) {
+            PooledTensor pooled = queue.pop();
+            pooled.references = 1;
+            return pooled;
+        }
+        // nothing free with this shape, allocate a new buffer and wrap it once
+        long elements = 1;
+        for (long dim : shape) {
+            elements *= dim;
+        }
+        FloatBuffer buffer = ByteBuffer.allocateDirect((int) (elements * 4))
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        // direct buffers in native order are shared with ORT, so refilling the buffer refills the tensor
+        OnnxTensor tensor = OnnxTensor.createTensor(env, buffer, shape.clone());
+        // a closed pool still hands out one-off tensors to late callers, they are freed on release
+        PooledTensor pooled = new PooledTensor(this, key, shape.clone(), buffer, tensor);
+        allocations++;
+        allocatedBytes += elements * 4;
+        return pooled;
+    }
+
+    public synchronized void retain(PooledTensor pooled) {
+        if (pooled != null && pooled.pool == this) {
+            pooled.references++;
+        }
+    }
+
+    public synchronized void release(PooledTensor pooled) {
+        if (pooled == null || pooled.pool != this || --pooled.references > 0) {
+            return;
+        }
+        releases++;
+        if (closed) {
+            pooled.tensor.close();
+            return;
+        }
+        if (keep != null && !keep.equals(pooled.key)) {
+            // in flight when the shape changed, it would only sit in the pool under a key nobody asks for
+            drop(pooled);
+            return;
+        }
+        ArrayDeque<PooledTensor> queue = free.get(pooled.key);
+        if (queue == null) {
+            queue = new ArrayDeque<>();
+            free.put(pooled.key, queue);
+        }
+        queue.push(pooled);
+    }
+
+    public synchronized void trim() {
+        // drops the free buffers, e.g. after the input size changed and the old shapes are not coming back
+        for (ArrayDeque<PooledTensor> queue : free.values()) {
+            for (PooledTensor pooled : queue) {
+                drop(pooled);
+            }
+        }
+        free.clear();
+    }
+
+    public synchronized void retainOnly(long[] shape) {
+        // for a pool that serves one shape at a time, e.g. camera frames after the input size changed
+        keep = Arrays.toString(shape);
+        free.keySet().removeIf(key -> {
+            if (key.equals(keep)) {
+                return false;
+            }
+            for (PooledTensor pooled : free.get(key)) {
+                drop(pooled);
+            }
+            return true;
+        });
+    }
+
+    private void drop(PooledTensor pooled) {
+        long elements = 1;
+        for (long dim : pooled.shape) {
+            elements *= dim;
+        }
+        allocatedBytes -= elements * 4;
+        pooled.tensor.close();
+    }
+
+    public synchronized long getAllocations() { return allocations; }
+
+    public synchronized long getAcquires() { return acquires; }
+
+    public synchronized long getReleases() { return releases; }
+
+    public synchronized long getInUse() { return acquires - releases; }
+
+    public synchronized long getAllocatedBytes() { return allocatedBytes; }
+
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        // tensors still in use may be mid-run, they are closed when they come back
+        for (ArrayDeque<PooledTensor> queue : free.values()) {
+            for (PooledTensor pooled : queue) {
+                pooled.tensor.close();
+            }
+        }
+        free.clear();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "TensorPool{allocations=" + allocations +
+                ", acquires=" + acquires +
+                ", releases=" + releases +
+                ", inUse=" + (acquires - releases) +
+                ", bytes=" + allocatedBytes + "}";
+    }
+}
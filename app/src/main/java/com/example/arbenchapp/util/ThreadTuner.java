@@ -0,0 +1,174 @@
+package com.example.arbenchapp.util;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+
+import com.example.arbenchapp.datatypes.preprocessing.ExecutionProvider;
+import com.example.arbenchapp.datatypes.preprocessing.SessionConfig;
+import com.example.arbenchapp.datatypes.preprocessing.Settings;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import ai.onnxruntime.OnnxTensor;
+import ai.onnxruntime.OrtEnvironment;
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.OrtSession;
+
+public final class ThreadTuner {
+    private ThreadTuner() {}
+
+    // kept apart from the default preferences so writing it never triggers a rebuild
+    private static final String CACHE_NAME = "thread_tuning_cache";
+    // timed runs per candidate across all workers, enough that p95 isn't just the slowest run
+    private static final int SAMPLES = 40;
+    private static final int MIN_RUNS_PER_THREAD = 8;
+    // candidates within this much of the best throughput are compared on p95 latency instead
+    private static final double THROUGHPUT_TOLERANCE = 0.95;
+
+    private static class Result {
+        final SessionConfig config;
+        final double throughput;
+        final double p95Ms;
+
+        Result(SessionConfig config, double throughput, double p95Ms) {
+            this.config = config;
+            this.throughput = throughput;
+            this.p95Ms = p95Ms;
+        }
+    }
+
+    public static SessionConfig apply(Context context, OrtEnvironment env, File model, SessionConfig config,
+                                      Settings settings, int concurrency, SharedPreferences prefs) throws OrtException {
+        // NNAPI schedules its own work, the thread counts only matter on the CPU side
+        if (!prefs.getBoolean("auto_tune_threads", false) || config.getProvider() == ExecutionProvider.NNAPI) {
+            return config;
+        }
+        SharedPreferences cache = context.getSharedPreferences(CACHE_NAME, Context.MODE_PRIVATE);
+        String key = Build.MANUFACTURER + " " + Build.MODEL + " " + Build.VERSION.SDK_INT + "|" +
+                SessionPool.getInstance().fileHash(model) + "|" + config.getProvider() + "|" + concurrency;
+        String cached = cache.getString(key, null);
+        if (cached != null) {
+            String[] parts = cached.split(",");
+            return config.withThreads(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]));
+        }
+        Result best = tune(env, model, config, settings, Math.max(1, concurrency));
+        if (best == null) {
+            return config;
+        }
+        int intra = best.config.getIntraOpThreads();
+        int inter = best.config.getInterOpThreads();
+        cache.edit().putString(key, intra + "," + inter).apply();
+        return config.withThreads(intra, inter);
+    }
+
+    public static void clearCache(Context context) {
+        context.getSharedPreferences(CACHE_NAME, Context.MODE_PRIVATE).edit().clear().apply();
+    }
+
+    private static Result tune(OrtEnvironment env, File model, SessionConfig config, Settings settings, int concurrency) {
+        // decoders run side by side, so each one only gets its share of the cores
+        int budget = Math.max(1, Runtime.getRuntime().availableProcessors() / concurrency);
+        List<Integer> intraCandidates = new ArrayList<>();
+        for (int intra = 1; intra < budget; intra *= 2) {
+            intraCandidates.add(intra);
+        }
+        intraCandidates.add(budget);
+        List<SessionConfig> candidates = new ArrayList<>();
+        List<Result> results = new ArrayList<>();
+        for (int intra : intraCandidates) {
+            for (int inter = 1; inter <= Math.min(2, budget); inter++) {
+                SessionConfig candidate = config.withThreads(intra, inter);
+                candidates.add(candidate);
+                Result result = measure(env, model, candidate, settings, concurrency);
+                if (result != null) {
+                    System.out.println("THREAD TUNER: " + model.getName() + " intra " + intra + ", inter " + inter +
+                            ": " + result.throughput + " runs/s, p95 " + result.p95Ms + " ms");
+                    results.add(result);
+                }
+            }
+        }
+        double bestThroughput = 0;
+        for (Result result : results) {
+            bestThroughput = Math.max(bestThroughput, result.throughput);
+        }
+        Result best = null;
+        for (Result result : results) {
+            if (result.throughput >= bestThroughput * THROUGHPUT_TOLERANCE && (best == null || result.p95Ms < best.p95Ms)) {
+                best = result;
+            }
+        }
+        // every candidate is its own pooled session, left idle they would push useful ones out of the budget
+        for (SessionConfig candidate : candidates) {
+            if (best == null || !candidate.getKey().equals(best.config.getKey())) {
+                try {
+                    SessionPool.getInstance().discard(model, candidate);
+                } catch (OrtException e) {
+                    System.err.println("THREAD TUNER ERROR: Could not close " + candidate + ": " + e);
+                }
+            }
+        }
+        return best;
+    }
+
+    private static Result measure(OrtEnvironment env, File model, SessionConfig config, Settings settings, int concurrency) {
+        OrtSession session = null;
+        Map<String, OnnxTensor> inputs = null;
+        ExecutorService workers = Executors.newFixedThreadPool(concurrency);
+        int runs = Math.max(MIN_RUNS_PER_THREAD, (SAMPLES + concurrency - 1) / concurrency);
+        CountDownLatch warmedUp = new CountDownLatch(concurrency);
+        CountDownLatch go = new CountDownLatch(1);
+        try {
+            session = SessionPool.getInstance().acquire(env, model, config);
+            inputs = ProviderUtil.dummyInputs(env, session, settings);
+            OrtSession finalSession = session;
+            Map<String, OnnxTensor> finalInputs = inputs;
+            // every worker stands in for one of the decoders running at the same time
+            List<Future<long[]>> futures = new ArrayList<>();
+            for (int i = 0; i < concurrency; i++) {
+                futures.add(workers.submit(() -> {
+                    try {
+                        ProviderUtil.warmUp(finalSession, finalInputs);
+                    } finally {
+                        warmedUp.countDown();
+                    }
+                    // the clock starts once every worker is past its untimed first run
+                    go.await();
+                    return ProviderUtil.timeRuns(finalSession, finalInputs, runs);
+                }));
+            }
+            warmedUp.await();
+            long start = System.nanoTime();
+            go.countDown();
+            long[] all = new long[concurrency * runs];
+            for (int i = 0; i < futures.size(); i++) {
+                System.arraycopy(futures.get(i).get(), 0, all, i * runs, runs);
+            }
+            double seconds = (System.nanoTime() - start) / 1_000_000_000.0;
+            Arrays.sort(all);
+            double p95Ms = all[(int) Math.ceil(all.length * 0.95) - 1] / 1_000_000.0;
+            return new Result(config, all.length / seconds, p95Ms);
+        } catch (OrtException | ExecutionException e) {
+            System.err.println("THREAD TUNER ERROR: " + config + " failed on " + model.getName() + ": " + e);
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } finally {
+            // a worker that failed its warm-up must not leave the others waiting
+            go.countDown();
+            workers.shutdown();
+            ProviderUtil.closeAll(inputs);
+            SessionPool.getInstance().release(session);
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.example.arbenchapp.util;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public final class ThreadUtil {
+    private ThreadUtil() {}
+
+    static {
+        System.loadLibrary("native-lib");
+    }
+
+    private static native int nativePinToCore(int core);
+
+    public static boolean pinToCore(int core) {
+        int cores = Runtime.getRuntime().availableProcessors();
+        if (core < 0 || core >= cores) {
+            return false;
+        }
+        // pins the calling thread only
+        int result = nativePinToCore(core);
+        if (result != 0) {
+            System.err.println("THREAD ERROR: Could not pin thread to core " + core + " (errno " + -result + ")");
+            return false;
+        }
+        return true;
+    }
+
+    public static ThreadFactory workerFactory(String name, int priority, boolean pinCores) {
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            int index = count.getAndIncrement();
+            Thread t = new Thread(() -> {
+                if (pinCores) {
+                    // highest numbered cores first, those are the big cores on most big.LITTLE SoCs
+                    int cores = Runtime.getRuntime().availableProcessors();
+                    pinToCore(cores - 1 - (index % cores));
+                }
+                r.run();
+            }, name + "-" + index);
+            t.setPriority(priority);
+            return t;
+        };
+    }
+}